@@ -0,0 +1,331 @@
+package data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import util.MiscUtils;
+import util.RankingItem;
+
+/**
+ * Corpus processor that takes the tokens of each document from a TokenCache
+ * and only tokenizes the documents missing from it. Bigrams are scored from
+ * NgramCounts, which can be given for the processed documents (e.g., counts
+ * maintained across runs) or are otherwise computed from the tokens. The
+ * selected vocabulary and the numeric documents are the same as those of
+ * CorpusProcessor.process(String[][]) on the same sentences.
+ *
+ * When processing raw texts, the detected sentences are cached along with
+ * their tokens, so a cache shared by several processors (e.g., one per
+ * cross-validation fold) segments and tokenizes each document once. A cache
+ * should be filled either from raw texts or from given sentences, not both.
+ *
+ * @author vietan
+ */
+public class CachedCorpusProcessor extends CorpusProcessor {
+
+    private final TokenCache tokenCache;
+    private List<String> docIds;
+    private NgramCounts counts;
+    private String[] rawTexts;
+    private boolean verbose = true;
+    private int[][] numericDocs;
+    private int[][][] numericSentences;
+
+    /**
+     * @param corpProc The processor whose settings are used, except the
+     * minimum word length which, as with the copy constructor of
+     * CorpusProcessor, is the default
+     * @param tokenCache The token cache, to which newly tokenized documents
+     * are added
+     */
+    public CachedCorpusProcessor(CorpusProcessor corpProc, TokenCache tokenCache) {
+        super(corpProc);
+        this.tokenCache = tokenCache;
+    }
+
+    public void setMinWordLength(int minWordLength) {
+        this.minWordLength = minWordLength;
+    }
+
+    /**
+     * Set the IDs of the documents to be processed, in the order of their
+     * sentences.
+     */
+    public void setDocumentIds(List<String> docIds) {
+        this.docIds = docIds;
+    }
+
+    /**
+     * Set the n-gram counts of exactly the documents to be processed, or
+     * null to compute them from the tokens.
+     */
+    public void setCounts(NgramCounts counts) {
+        this.counts = counts;
+    }
+
+    @Override
+    public void setVerbose(boolean verbose) {
+        super.setVerbose(verbose);
+        this.verbose = verbose;
+    }
+
+    @Override
+    public void setRawTexts(String[] rawTexts) {
+        super.setRawTexts(rawTexts);
+        this.rawTexts = rawTexts;
+    }
+
+    @Override
+    public int[][] getNumerics() {
+        return this.numericDocs;
+    }
+
+    @Override
+    public int[][][] getNumericSentences() {
+        return this.numericSentences;
+    }
+
+    /**
+     * Get the tokens of each document, tokenizing and caching those that are
+     * not in the cache.
+     */
+    private String[][][] getTokens(String[][] sentences) {
+        if (docIds == null || docIds.size() != sentences.length) {
+            throw new RuntimeException("Document IDs are not set for the "
+                    + sentences.length + " documents");
+        }
+        String[][][] tokens = new String[sentences.length][][];
+        int numTokenized = 0;
+        for (int d = 0; d < sentences.length; d++) {
+            tokens[d] = tokenCache.getTokens(docIds.get(d));
+            if (tokens[d] == null) {
+                tokens[d] = TokenCache.tokenize(this, sentences[d]);
+                tokenCache.put(docIds.get(d), null, tokens[d]);
+                numTokenized++;
+            }
+        }
+        if (verbose) {
+            System.out.println("--- # tokenized documents: " + numTokenized
+                    + ". # cached documents: " + (sentences.length - numTokenized));
+        }
+        return tokens;
+    }
+
+    /**
+     * Get the sentences of the raw texts. The sentences of documents missing
+     * from the cache are detected and tokenized, and added to the cache.
+     */
+    public String[][] getSentences() {
+        if (rawTexts == null) {
+            throw new RuntimeException("Raw texts have not been set");
+        }
+        if (docIds == null || docIds.size() != rawTexts.length) {
+            throw new RuntimeException("Document IDs are not set for the "
+                    + rawTexts.length + " documents");
+        }
+        String[][] sentences = new String[rawTexts.length][];
+        for (int d = 0; d < rawTexts.length; d++) {
+            sentences[d] = tokenCache.getSentences(docIds.get(d));
+            if (sentences[d] == null) {
+                sentences[d] = sentenceDetector.sentDetect(rawTexts[d]);
+                tokenCache.put(docIds.get(d), sentences[d], TokenCache.tokenize(this, sentences[d]));
+            }
+        }
+        return sentences;
+    }
+
+    /**
+     * Process the raw texts, using the current vocabulary if it is set.
+     */
+    @Override
+    public void process() {
+        if (getVocab() != null) {
+            if (verbose) {
+                System.out.println("Using existing vocabulary ...");
+            }
+            process(getVocab());
+            return;
+        }
+        process(getSentences());
+    }
+
+    /**
+     * Process the raw texts using a given vocabulary: a token followed by a
+     * non-empty token forms a bigram if the bigram is in the vocabulary, and
+     * is otherwise kept if it is in the vocabulary.
+     */
+    @Override
+    public void process(ArrayList<String> vocab) {
+        String[][] sentences = getSentences();
+        setRawSentences(sentences);
+        String[][][] tokens = getTokens(sentences);
+        HashSet<String> vocabSet = new HashSet<String>(vocab);
+        String[][][] terms = new String[tokens.length][][];
+        for (int d = 0; d < tokens.length; d++) {
+            terms[d] = new String[tokens[d].length][];
+            for (int s = 0; s < tokens[d].length; s++) {
+                terms[d][s] = mergeTokens(tokens[d][s], vocabSet);
+            }
+        }
+        setVocab(vocab);
+        encode(terms, vocab);
+    }
+
+    @Override
+    public void process(String[][] sentences) {
+        setRawSentences(sentences);
+        int D = sentences.length;
+        String[][][] tokens = getTokens(sentences);
+
+        NgramCounts docCounts = counts;
+        if (docCounts == null) {
+            docCounts = new NgramCounts();
+            for (int d = 0; d < D; d++) {
+                docCounts.add(tokens[d]);
+            }
+        }
+        if (verbose) {
+            System.out.println("--- # raw unique unigrams: " + docCounts.getNumUnigrams());
+            System.out.println("--- # raw unique bigrams: " + docCounts.getNumBigrams());
+        }
+        HashSet<String> bigrams = docCounts.getBigrams(bigramCountCutoff, bigramScoreCutoff);
+        if (verbose) {
+            System.out.println("--- # bigrams after being scored: " + bigrams.size());
+        }
+
+        // merge unigrams into bigrams, counting the term and document
+        // frequencies in document order as CorpusProcessor does
+        HashMap<String, Integer> tf = new HashMap<String, Integer>();
+        HashMap<String, Integer> df = new HashMap<String, Integer>();
+        String[][][] terms = new String[D][][];
+        for (int d = 0; d < D; d++) {
+            HashSet<String> docTerms = new HashSet<String>();
+            terms[d] = new String[tokens[d].length][];
+            for (int s = 0; s < tokens[d].length; s++) {
+                terms[d][s] = mergeTokens(tokens[d][s], bigrams, docCounts, tf);
+                Collections.addAll(docTerms, terms[d][s]);
+            }
+            for (String term : docTerms) {
+                MiscUtils.incrementMap(df, term);
+            }
+        }
+
+        ArrayList<RankingItem<String>> rankItems = new ArrayList<RankingItem<String>>();
+        for (String term : tf.keySet()) {
+            int termFreq = tf.get(term);
+            int docFreq = df.get(term);
+            if (termFreq < vocabTermFreqMinCutoff || termFreq > vocabTermFreqMaxCutoff
+                    || docFreq < vocabDocFreqMinCutoff || docFreq > vocabDocFreqMaxCutoff) {
+                continue;
+            }
+            double tfidf = Math.log(termFreq + 1) * (Math.log(D) - Math.log(docFreq + 1));
+            rankItems.add(new RankingItem<String>(term, tfidf));
+        }
+        Collections.sort(rankItems);
+        if (verbose) {
+            System.out.println("Raw vocab size: " + rankItems.size());
+        }
+        ArrayList<String> vocab = new ArrayList<String>();
+        for (int ii = 0; ii < Math.min(maxVocabSize, rankItems.size()); ii++) {
+            vocab.add(rankItems.get(ii).getObject());
+        }
+        Collections.sort(vocab);
+        setVocab(vocab);
+        encode(terms, vocab);
+    }
+
+    /**
+     * Merge the tokens of a sentence greedily from left to right: a token
+     * followed by a non-empty token forms a bigram if the bigram is selected,
+     * otherwise the token is kept if it is frequent enough.
+     */
+    private String[] mergeTokens(String[] sentTokens, HashSet<String> bigrams,
+            NgramCounts docCounts, HashMap<String, Integer> tf) {
+        ArrayList<String> sentTerms = new ArrayList<String>();
+        for (int ii = 0; ii < sentTokens.length; ii++) {
+            String token = sentTokens[ii];
+            if (token.isEmpty()) {
+                continue;
+            }
+            if (ii + 1 < sentTokens.length && !sentTokens[ii + 1].isEmpty()) {
+                String bigram = NgramCounts.getBigramString(token, sentTokens[ii + 1]);
+                if (bigrams.contains(bigram)) {
+                    sentTerms.add(bigram);
+                    MiscUtils.incrementMap(tf, bigram);
+                    ii++;
+                    continue;
+                }
+            }
+            if (docCounts.getTermFrequency(token) < unigramCountCutoff) {
+                continue;
+            }
+            sentTerms.add(token);
+            MiscUtils.incrementMap(tf, token);
+        }
+        return sentTerms.toArray(new String[sentTerms.size()]);
+    }
+
+    private String[] mergeTokens(String[] sentTokens, Set<String> vocab) {
+        ArrayList<String> sentTerms = new ArrayList<String>();
+        for (int ii = 0; ii < sentTokens.length; ii++) {
+            String token = sentTokens[ii];
+            if (token.isEmpty()) {
+                continue;
+            }
+            if (ii + 1 < sentTokens.length && !sentTokens[ii + 1].isEmpty()) {
+                String bigram = NgramCounts.getBigramString(token, sentTokens[ii + 1]);
+                if (vocab.contains(bigram)) {
+                    sentTerms.add(bigram);
+                    ii++;
+                    continue;
+                }
+            }
+            if (vocab.contains(token)) {
+                sentTerms.add(token);
+            }
+        }
+        return sentTerms.toArray(new String[sentTerms.size()]);
+    }
+
+    /**
+     * Map the terms of each sentence to their indices in the vocabulary,
+     * dropping terms that are not in it.
+     */
+    private void encode(String[][][] terms, ArrayList<String> vocab) {
+        HashMap<String, Integer> vocabIndices = new HashMap<String, Integer>();
+        for (int ii = 0; ii < vocab.size(); ii++) {
+            vocabIndices.put(vocab.get(ii), ii);
+        }
+        this.numericDocs = new int[terms.length][];
+        this.numericSentences = new int[terms.length][][];
+        int[] buffer = new int[64];
+        for (int d = 0; d < terms.length; d++) {
+            int docLength = 0;
+            this.numericSentences[d] = new int[terms[d].length][];
+            for (int s = 0; s < terms[d].length; s++) {
+                int sentLength = 0;
+                if (terms[d][s].length > buffer.length) {
+                    buffer = new int[Math.max(terms[d][s].length, 2 * buffer.length)];
+                }
+                for (String term : terms[d][s]) {
+                    Integer idx = vocabIndices.get(term);
+                    if (idx != null) {
+                        buffer[sentLength++] = idx;
+                    }
+                }
+                this.numericSentences[d][s] = new int[sentLength];
+                System.arraycopy(buffer, 0, this.numericSentences[d][s], 0, sentLength);
+                docLength += sentLength;
+            }
+            this.numericDocs[d] = new int[docLength];
+            int pos = 0;
+            for (int[] sent : this.numericSentences[d]) {
+                System.arraycopy(sent, 0, this.numericDocs[d], pos, sent.length);
+                pos += sent.length;
+            }
+        }
+    }
+}
@@ -1,19 +1,34 @@
 package data;
 
 import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
 import core.crossvalidation.CrossValidation;
 import core.crossvalidation.Fold;
 import core.crossvalidation.Instance;
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
-import java.lang.reflect.Type;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
 import mulan.data.MultiLabelInstances;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import util.DataUtils;
 import util.IOUtils;
 
 /**
@@ -24,14 +39,25 @@ public class CompuframesDataset extends LabelTextDataset {
 
     public static enum DocType {
 
-        IMMIGRATION, TOBACCO, ALL
+        IMMIGRATION, TOBACCO, ALL;
+
+        /**
+         * Get the type of a document from its ID (e.g., Immigration1.0-25808),
+         * or null if the ID does not indicate a known type.
+         */
+        public static DocType getDocumentType(String docId) {
+            if (docId.contains("Immigration")) {
+                return IMMIGRATION;
+            } else if (docId.contains("Tobacco")) {
+                return TOBACCO;
+            }
+            return null;
+        }
     }
     public static final String sentInfoExt = ".sentinfo";
-    // raw input from JSON file
-    private HashMap<String, Document> documents;
+    public static final String sentBinExt = ".sent-bin";
     // internal
-    private String[][] sentences;
-    private double[][][] sentenceAnnotations;
+    private CorpusStore store;
     private int[][][] sentenceLabels;
     // cross validation
     private LabelTextDataset trainData;
@@ -40,111 +66,348 @@ public class CompuframesDataset extends LabelTextDataset {
     private MultiLabelInstances mulanTrainData;
     private MultiLabelInstances mulanDevData;
     private MultiLabelInstances mulanTestData;
-    private DocType docType = DocType.ALL;
+    private CorpusFilter filter = new CorpusFilter();
+    // indices of loaded documents of each type
+    private EnumMap<DocType, ArrayList<Integer>> docTypeIndices;
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+    // a batch keeps the JSON trees of its documents until it is parsed, so it
+    // is only large enough to keep a few threads busy
+    private int parseBatchSize = 64;
+    private int formatChunkSize = 256;
+    private File cacheFolder;
+    private boolean outputArff = false;
+    private HashMap<Integer, String> labelStrings = new HashMap<Integer, String>();
 
     public CompuframesDataset(String name, String folder) {
         super(name, folder);
-        this.documents = new HashMap<String, Document>();
     }
 
     public CompuframesDataset(String name, String folder,
             CorpusProcessor corpProc) {
         super(name, folder, corpProc);
-        this.documents = new HashMap<String, Document>();
     }
 
     public void setDocumentType(DocType dType) {
-        this.docType = dType;
+        this.filter.setDocumentType(dType);
+    }
+
+    public void setCorpusFilter(CorpusFilter filter) {
+        this.filter = filter;
+    }
+
+    public CorpusFilter getCorpusFilter() {
+        return this.filter;
+    }
+
+    /**
+     * Get the indices of the loaded documents of a given type.
+     *
+     * @param dType The document type. ALL returns every document.
+     */
+    public ArrayList<Integer> getDocumentIndices(DocType dType) {
+        if (dType == DocType.ALL) {
+            ArrayList<Integer> indices = new ArrayList<Integer>(docIdList.size());
+            for (int dd = 0; dd < docIdList.size(); dd++) {
+                indices.add(dd);
+            }
+            return indices;
+        }
+        return docTypeIndices.get(dType);
     }
 
+    public void setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Set whether the data of each cross-validation split are also exported
+     * as ARFF files. The Mulan instances of a fold are built from the
+     * formatted data, so the files are not needed to run models.
+     */
+    public void setOutputArff(boolean outputArff) {
+        this.outputArff = outputArff;
+    }
+
+    /**
+     * Set the number of documents parsed in parallel at a time. Larger
+     * batches share the work better between threads, but the documents of a
+     * batch are all in memory until it is parsed, so the peak memory grows
+     * with the batch size times the size of the largest documents.
+     */
+    public void setParseBatchSize(int parseBatchSize) {
+        this.parseBatchSize = parseBatchSize;
+    }
+
+    /**
+     * Set the number of documents encoded together when formatting.
+     */
+    public void setFormatChunkSize(int formatChunkSize) {
+        this.formatChunkSize = formatChunkSize;
+    }
+
+    /**
+     * Set the folder storing binary snapshots of loaded corpora, or null to
+     * always parse the JSON file.
+     */
+    public void setCorpusCacheFolder(File cacheFolder) {
+        this.cacheFolder = cacheFolder;
+    }
+
+    /**
+     * Load the corpus from a JSON file. The file is streamed one document
+     * entry at a time so that only the document currently being processed is
+     * kept as a JSON tree. Compressed inputs (.zip, .gz, .bz2) are decompressed
+     * on the fly.
+     *
+     * If a cache folder is set, the loaded corpus is saved there as a binary
+     * snapshot keyed by the content of the input file and the corpus filter,
+     * and later loads of the same input with the same filter read the
+     * snapshot instead of parsing the JSON. A snapshot that cannot be read
+     * (e.g., truncated) is deleted, and the JSON is parsed and saved again.
+     *
+     * @param jsonFile The JSON file
+     */
     public void loadCorpus(File jsonFile) {
         if (verbose) {
             logln("Loading corpus from " + jsonFile);
         }
 
-        try {
-            StringBuilder str = new StringBuilder();
-            BufferedReader reader = IOUtils.getBufferedReader(jsonFile);
-            String line;
-            while ((line = reader.readLine()) != null) {
-                str.append(line).append("\n");
+        this.docIdList = new ArrayList<String>();
+        this.store = null;
+
+        String cacheKey = null;
+        File cacheFile = null;
+        if (cacheFolder != null) {
+            try {
+                cacheKey = CorpusCache.getKey(jsonFile, filter);
+            } catch (Exception e) {
+                e.printStackTrace();
+                throw new RuntimeException("Exception while computing the cache key of "
+                        + jsonFile);
             }
-            reader.close();
+            cacheFile = CorpusCache.getCacheFile(cacheFolder, jsonFile, cacheKey);
+            if (cacheFile.exists()) {
+                try {
+                    this.store = CorpusCache.read(cacheFile, cacheKey, docIdList);
+                } catch (Exception e) {
+                    if (verbose) {
+                        logln("--- Ignoring corrupt corpus cache " + cacheFile
+                                + ": " + e);
+                    }
+                    this.store = null;
+                    this.docIdList.clear();
+                    if (!cacheFile.delete()) {
+                        throw new RuntimeException("Cannot delete corrupt corpus cache "
+                                + cacheFile);
+                    }
+                }
+            }
+        }
 
-            Gson gson = new Gson();
-            Type mapType = new TypeToken<Map<String, Document>>() {
-            }.getType();
-            Map<String, Document> map = (Map<String, Document>) gson.fromJson(str.toString(), mapType);
+        if (this.store != null) {
+            if (verbose) {
+                logln("--- Loaded corpus cache " + cacheFile);
+            }
+        } else {
+            parseCorpus(jsonFile);
+            if (cacheFile != null) {
+                try {
+                    IOUtils.createFolder(cacheFolder);
+                    CorpusCache.write(cacheFile, cacheKey, docIdList, store);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    throw new RuntimeException("Exception while writing corpus cache "
+                            + cacheFile);
+                }
+                if (verbose) {
+                    logln("--- Saved corpus cache " + cacheFile);
+                }
+            }
+        }
+
+        indexDocuments();
 
-            for (String key : map.keySet()) {
-                Document doc = map.get(key);
-                if (doc.getIrrelevant().containsValue(1)) { // filter irrelevant
+        if (verbose) {
+            logln("--- Loaded " + this.docIdList.size() + " documents");
+        }
+    }
+
+    /**
+     * Parse the JSON corpus into the document IDs and the columnar store.
+     */
+    private void parseCorpus(File jsonFile) {
+        this.store = new CorpusStore();
+        ForkJoinPool pool = new ForkJoinPool(numThreads);
+        try {
+            Gson gson = new Gson();
+            JsonReader reader = new JsonReader(getCorpusReader(jsonFile));
+            ArrayList<String> batchKeys = new ArrayList<String>();
+            ArrayList<Document> batchDocs = new ArrayList<Document>();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String key = reader.nextName();
+                if (!filter.acceptDocumentId(key)) {
+                    // skip the entry without building its JSON tree
+                    reader.skipValue();
                     continue;
                 }
+                Document doc = gson.fromJson(reader, Document.class);
+                if (!filter.acceptDocument(doc)) { // filter before parsing
+                    continue;
+                }
+                batchKeys.add(key);
+                batchDocs.add(doc);
 
-                doc.parseAnnotatedSentences();
-                if ((docType == DocType.IMMIGRATION && key.contains("Immigration"))
-                        || (docType == DocType.TOBACCO && key.contains("Tobacco"))
-                        || (docType == DocType.ALL)) {
-                    this.documents.put(key, doc);
+                if (batchDocs.size() == parseBatchSize) {
+                    parseBatch(pool, batchKeys, batchDocs);
                 }
             }
+            parseBatch(pool, batchKeys, batchDocs);
+            reader.endObject();
+            reader.close();
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while loading corpus from "
                     + jsonFile);
+        } finally {
+            pool.shutdown();
         }
+        this.store.trim();
+    }
 
-        if (verbose) {
-            logln("--- Loaded " + this.documents.size() + " documents");
-        }
-
-        // document-level data
-        int D = documents.size();
-        this.docIdList = new ArrayList<String>();
-        this.textList = new ArrayList<String>();
-        this.labelList = new ArrayList<ArrayList<String>>();
-
-        // sentence-level data
-        this.sentences = new String[D][];
-        this.sentenceAnnotations = new double[D][][];
-
-        int dd = 0;
-        for (String docId : documents.keySet()) {
-            this.docIdList.add(docId);
-
-            Document doc = documents.get(docId);
-            int numSents = doc.getAnnotatedSentences().size();
-
+    /**
+     * Build the document texts, the document labels and the indices of each
+     * document type from the document IDs and the columnar store.
+     */
+    private void indexDocuments() {
+        int numDocs = docIdList.size();
+        this.textList = new ArrayList<String>(numDocs);
+        this.labelList = new ArrayList<ArrayList<String>>(numDocs);
+        this.docTypeIndices = new EnumMap<DocType, ArrayList<Integer>>(DocType.class);
+        this.docTypeIndices.put(DocType.IMMIGRATION, new ArrayList<Integer>());
+        this.docTypeIndices.put(DocType.TOBACCO, new ArrayList<Integer>());
+        for (int d = 0; d < numDocs; d++) {
             StringBuilder docText = new StringBuilder();
             ArrayList<String> docLabels = new ArrayList<String>();
+            for (int s = 0; s < store.getNumSentences(d); s++) {
+                int sentIdx = store.getSentenceIndex(d, s);
+                docText.append(" ").append(store.getSentenceText(sentIdx));
+                for (int aa = store.getAnnotationStart(sentIdx); aa < store.getAnnotationEnd(sentIdx); aa++) {
+                    docLabels.add(getLabelString(store.getFrameLabel(aa)));
+                }
+            }
 
-            this.sentences[dd] = new String[numSents];
-            this.sentenceAnnotations[dd] = new double[numSents][];
+            DocType dType = DocType.getDocumentType(docIdList.get(d));
+            if (dType != null) {
+                this.docTypeIndices.get(dType).add(d);
+            }
+            this.textList.add(docText.toString());
+            this.labelList.add(docLabels);
+        }
+    }
 
-            for (int ss = 0; ss < numSents; ss++) {
-                Sentence sent = doc.getAnnotatedSentences().get(ss);
-                this.sentences[dd][ss] = sent.getText();
-                docText.append(" ").append(sent.getText());
+    /**
+     * Parse a batch of documents in parallel and append them, in their
+     * original order, to the internal data. The batch is cleared afterwards.
+     */
+    private void parseBatch(ForkJoinPool pool,
+            ArrayList<String> batchKeys,
+            ArrayList<Document> batchDocs) {
+        Document[] docs = batchDocs.toArray(new Document[batchDocs.size()]);
+        pool.invoke(new ParseTask(docs, 0, docs.length));
+        for (int ii = 0; ii < docs.length; ii++) {
+            addDocument(batchKeys.get(ii), docs[ii]);
+        }
+        batchKeys.clear();
+        batchDocs.clear();
+    }
 
-                List<Annotation> sentAnnts = sent.getAnnotations();
-                if (sentAnnts == null || sentAnnts.isEmpty()) {
-                    this.sentenceAnnotations[dd][ss] = new double[0];
-                } else {
-                    this.sentenceAnnotations[dd][ss] = new double[sentAnnts.size()];
-                    for (int ii = 0; ii < sentAnnts.size(); ii++) {
-                        this.sentenceAnnotations[dd][ss][ii] = sentAnnts.get(ii).getFrame();
+    /**
+     * Open a reader over the JSON corpus. Files ending with .zip, .gz or .bz2
+     * are decompressed as a stream; for a .zip archive the first .json entry
+     * is read.
+     *
+     * @param jsonFile The (possibly compressed) JSON file
+     */
+    public static BufferedReader getCorpusReader(File jsonFile) throws Exception {
+        String filename = jsonFile.getName().toLowerCase();
+        InputStream in = new BufferedInputStream(new FileInputStream(jsonFile));
+        if (filename.endsWith(".zip")) {
+            ZipArchiveInputStream zipIn = new ZipArchiveInputStream(in);
+            ZipArchiveEntry entry;
+            while ((entry = zipIn.getNextZipEntry()) != null) {
+                if (!entry.isDirectory() && entry.getName().toLowerCase().endsWith(".json")) {
+                    break;
+                }
+            }
+            if (entry == null) {
+                zipIn.close();
+                throw new RuntimeException("No JSON file found in archive " + jsonFile);
+            }
+            in = zipIn;
+        } else if (filename.endsWith(".gz")) {
+            in = new GzipCompressorInputStream(in, true);
+        } else if (filename.endsWith(".bz2")) {
+            in = new BZip2CompressorInputStream(in, true);
+        }
+        return new BufferedReader(new InputStreamReader(in, "UTF-8"));
+    }
 
-                        int frameLabel = (int) sentAnnts.get(ii).getFrame();
-                        docLabels.add(Integer.toString(frameLabel));
-                    }
+    /**
+     * Convert a parsed document into the internal document-level data and
+     * append its sentences to the columnar store. Annotations rejected by the
+     * corpus filter are dropped, and so is the document if the filter selects
+     * annotations and none of its annotations is kept.
+     */
+    private void addDocument(String docId, Document doc) {
+        int numSents = doc.getNumSentences();
+        boolean filterAnnts = filter.filtersAnnotations();
+        boolean[] kept = null;
+        if (filterAnnts) {
+            kept = new boolean[doc.getNumAnnotations()];
+            int numKeptAnnts = 0;
+            for (int aa = 0; aa < kept.length; aa++) {
+                kept[aa] = filter.acceptAnnotation(doc.getAnnotator(aa),
+                        doc.getFrame(aa), doc.getRound(aa));
+                if (kept[aa]) {
+                    numKeptAnnts++;
                 }
             }
+            if (numKeptAnnts == 0) {
+                return;
+            }
+        }
 
-            this.textList.add(docText.toString());
-            this.labelList.add(docLabels);
-            dd++;
+        store.startDocument();
+        for (int ss = 0; ss < numSents; ss++) {
+            String text = doc.getSentenceText(ss);
+            store.addSentence(text);
+            for (int aa = doc.getAnnotationStart(ss); aa < doc.getAnnotationEnd(ss); aa++) {
+                if (filterAnnts && !kept[aa]) {
+                    continue;
+                }
+                store.addAnnotation(doc.getAnnotator(aa), doc.getFrame(aa), doc.getRound(aa));
+            }
         }
+
+        this.docIdList.add(docId);
+    }
+
+    /**
+     * Get a shared string for a frame label so that documents do not keep a
+     * separate copy per annotation.
+     */
+    private String getLabelString(int frameLabel) {
+        String label = labelStrings.get(frameLabel);
+        if (label == null) {
+            label = Integer.toString(frameLabel);
+            labelStrings.put(frameLabel, label);
+        }
+        return label;
+    }
+
+    public CorpusStore getCorpusStore() {
+        return this.store;
     }
 
     @Override
@@ -158,87 +421,313 @@ public class CompuframesDataset extends LabelTextDataset {
 
         String[] rawTexts = textList.toArray(new String[textList.size()]);
         corpProc.setRawTexts(rawTexts);
-        corpProc.process(sentences);
+        corpProc.process(store.getDocumentSentences());
 
         outputWordVocab(outputFolder);
-        outputTextData(outputFolder);
-        outputDocumentInfo(outputFolder);
-        outputSentTextData(outputFolder);
+        outputFormattedData(outputFolder);
 
         // provide I/O for JSON files
     }
 
-    @Override
-    protected void outputSentTextData(String outputFolder) throws Exception {
-        File sentTextFile = new File(outputFolder, formatFilename + numSentDataExt);
-        File sentInfoFile = new File(outputFolder, formatFilename + sentInfoExt);
+    /**
+     * Output the numeric documents, document info, numeric and raw sentences
+     * and sentence labels. Chunks of documents are encoded in parallel and
+     * each file is written by its own thread in document order.
+     */
+    protected void outputFormattedData(String outputFolder) throws Exception {
+        outputFormattedData(outputFolder, corpProc, 0, null);
+    }
+
+    /**
+     * Output the formatted data of the documents processed by a corpus
+     * processor.
+     *
+     * @param outputFolder The output folder
+     * @param proc The corpus processor
+     * @param firstDoc The first document to output
+     * @param prevProcessedDocIndices If not null, the documents before
+     * firstDoc that are already in the output files, to which the other
+     * documents are appended
+     */
+    private void outputFormattedData(String outputFolder, CorpusProcessor proc,
+            int firstDoc, ArrayList<Integer> prevProcessedDocIndices) throws Exception {
         if (verbose) {
-            logln("--- Outputing sentence data ... " + outputFolder);
-        }
-
-        int[][][] numSents = corpProc.getNumericSentences();
-        String[][] rawSents = corpProc.getRawSentences();
-        BufferedWriter rawSentWriter = IOUtils.getBufferedWriter(sentTextFile + ".raw");
-        BufferedWriter sentWriter = IOUtils.getBufferedWriter(sentTextFile);
-        BufferedWriter sentInfoWriter = IOUtils.getBufferedWriter(sentInfoFile);
-        for (int d : this.processedDocIndices) {
-            StringBuilder docStr = new StringBuilder();
-            StringBuilder docInfo = new StringBuilder();
-            ArrayList<String> docRawSents = new ArrayList<String>();
-
-            for (int s = 0; s < numSents[d].length; s++) {
-                HashMap<Integer, Integer> sentTypeCounts = new HashMap<Integer, Integer>();
-                for (int w = 0; w < numSents[d][s].length; w++) {
-                    Integer count = sentTypeCounts.get(numSents[d][s][w]);
-                    if (count == null) {
-                        sentTypeCounts.put(numSents[d][s][w], 1);
-                    } else {
-                        sentTypeCounts.put(numSents[d][s][w], count + 1);
-                    }
-                }
+            logln("--- Outputing numeric data, document info and sentence data ... "
+                    + outputFolder);
+        }
+        FormatPipeline pipeline = new FormatPipeline(outputFolder, formatFilename,
+                docIdList, labels,
+                proc.getNumerics(),
+                proc.getNumericSentences(),
+                proc.getRawSentences(),
+                store,
+                proc.docTypeCountCutoff);
+        pipeline.setNumThreads(numThreads);
+        pipeline.setChunkSize(formatChunkSize);
+        if (prevProcessedDocIndices != null) {
+            pipeline.setAppend(firstDoc);
+        }
+        pipeline.run();
+        this.processedDocIndices = new ArrayList<Integer>();
+        if (prevProcessedDocIndices != null) {
+            this.processedDocIndices.addAll(prevProcessedDocIndices);
+        }
+        this.processedDocIndices.addAll(pipeline.getProcessedDocIndices());
 
-                if (sentTypeCounts.size() > 0) {
-                    // store numeric sentence
-                    StringBuilder str = new StringBuilder();
-                    for (int type : sentTypeCounts.keySet()) {
-                        str.append(type).append(":").append(sentTypeCounts.get(type)).append(" ");
-                    }
-                    docStr.append(str.toString().trim()).append("\t");
+        // offset indices for random access to the documents
+        File sentInfoFile = pipeline.getSentenceInfoFile();
+        File rawSentFile = pipeline.getRawSentenceFile();
+        DocumentOffsetIndex.write(DocumentOffsetIndex.getIndexFile(sentInfoFile),
+                DocumentOffsetIndex.buildLineIndex(sentInfoFile));
+        DocumentOffsetIndex.write(DocumentOffsetIndex.getIndexFile(rawSentFile),
+                DocumentOffsetIndex.buildRawSentenceIndex(rawSentFile));
+    }
 
-                    // store raw sentence
-                    docRawSents.add(rawSents[d][s]);
+    /**
+     * Format the loaded corpus incrementally. The loaded documents are merged
+     * into the incremental state kept in the output folder: documents already
+     * in the state keep their position and are replaced if their texts or
+     * annotations changed, new documents are appended, and documents missing
+     * from the loaded corpus are kept. Only new documents and documents whose
+     * texts changed are tokenized, and their n-gram counts are merged into
+     * the counts of the state, from which the vocabulary is selected as in
+     * format().
+     *
+     * If the word and label vocabularies, and the numeric sentences of all
+     * the documents previously formatted, are unchanged, the records of the
+     * new documents are appended to the formatted files. Otherwise the
+     * formatted files are written again from the cached tokens. The
+     * vocabulary files are only written when they change.
+     *
+     * @param outputFolder The output folder
+     */
+    public void formatIncremental(String outputFolder) throws Exception {
+        if (verbose) {
+            logln("Formatting incrementally ...");
+        }
+        IOUtils.createFolder(outputFolder);
+        File stateFolder = new File(outputFolder, IncrementalState.folderName);
+        String settings = getIncrementalSettings();
+        IncrementalState state = IncrementalState.load(stateFolder, settings);
+        int numPrevDocs = state.getNumDocuments();
+        ArrayList<Integer> prevProcessedDocIndices = new ArrayList<Integer>();
+        for (int d = 0; d < numPrevDocs; d++) {
+            if (state.processed.get(d)) {
+                prevProcessedDocIndices.add(d);
+            }
+        }
 
-                    // sentence label
-                    str = new StringBuilder();
-                    for (int ll = 0; ll < this.sentenceAnnotations[d][s].length; ll++) {
-                        int frameLabel = (int) sentenceAnnotations[d][s][ll];
-                        str.append(frameLabel).append(" ");
-                    }
-                    docInfo.append(str.toString().trim()).append("\t");
-                }
+        CachedCorpusProcessor cachedProc = new CachedCorpusProcessor(corpProc, state.tokens);
+        // the documents are tokenized as by format, with the given processor
+        cachedProc.setMinWordLength(corpProc.minWordLength);
+        int numChanged = mergeIntoState(state, cachedProc);
+        this.docIdList = state.docIds;
+        this.store = state.store;
+        indexDocuments();
+
+        // labels
+        File labelVocabFile = new File(outputFolder, formatFilename + labelVocabExt);
+        ArrayList<String> givenLabelVocab = this.labelVocab;
+        ArrayList<String> prevLabelVocab = null;
+        if (labelVocabFile.exists()) {
+            inputLabelVocab(labelVocabFile);
+            prevLabelVocab = this.labelVocab;
+        }
+        this.labelVocab = givenLabelVocab;
+        if (this.labelVocab == null) {
+            createLabelVocab();
+        }
+        boolean labelVocabChanged = !labelVocab.equals(prevLabelVocab);
+        if (labelVocabChanged) {
+            outputLabelVocab(outputFolder);
+        }
+        indexLabels();
+
+        // words
+        cachedProc.setDocumentIds(docIdList);
+        cachedProc.setCounts(state.counts);
+        cachedProc.process(store.getDocumentSentences());
+        File wordVocabFile = new File(outputFolder, formatFilename + wordVocabExt);
+        ArrayList<String> prevWordVocab = null;
+        if (wordVocabFile.exists()) {
+            inputWordVocab(wordVocabFile);
+            prevWordVocab = this.wordVocab;
+        }
+        this.wordVocab = cachedProc.getVocab();
+        boolean wordVocabChanged = !wordVocab.equals(prevWordVocab);
+        if (wordVocabChanged) {
+            if (verbose) {
+                logln("--- Outputing word vocab ... " + wordVocabFile);
+            }
+            DataUtils.outputVocab(wordVocabFile.getAbsolutePath(), wordVocab);
+        }
+
+        // previous records can be kept if they are encoded the same way
+        boolean append = numPrevDocs > 0 && numChanged == 0
+                && !labelVocabChanged && !wordVocabChanged
+                && FormatPipeline.hasOutput(outputFolder, formatFilename,
+                        prevProcessedDocIndices.size());
+        int[][][] numSents = cachedProc.getNumericSentences();
+        for (int d = 0; d < docIdList.size(); d++) {
+            String encodingHash = IncrementalState.getEncodingHash(numSents[d]);
+            if (d < numPrevDocs && !encodingHash.equals(state.encodingHashes.get(d))) {
+                append = false;
+            }
+            state.encodingHashes.set(d, encodingHash);
+        }
+
+        if (append && numPrevDocs == docIdList.size()) {
+            if (verbose) {
+                logln("--- No formatted data to update");
+            }
+            this.processedDocIndices = prevProcessedDocIndices;
+        } else if (append) {
+            if (verbose) {
+                logln("--- Appending " + (docIdList.size() - numPrevDocs) + " documents");
+            }
+            outputFormattedData(outputFolder, cachedProc, numPrevDocs, prevProcessedDocIndices);
+        } else {
+            outputFormattedData(outputFolder, cachedProc, 0, null);
+        }
+
+        for (int d = 0; d < docIdList.size(); d++) {
+            state.processed.set(d, false);
+        }
+        for (int d : processedDocIndices) {
+            state.processed.set(d, true);
+        }
+        state.save(stateFolder, settings);
+        if (verbose) {
+            logln("--- Saved incremental state to " + stateFolder);
+        }
+    }
+
+    /**
+     * Settings that must not change across incremental runs: the corpus
+     * filter and the settings affecting tokenization.
+     */
+    private String getIncrementalSettings() {
+        return filter.getSettings()
+                + "\nmin-word-length:\t" + corpProc.minWordLength
+                + "\nfilter-stopwords:\t" + corpProc.filterStopwords
+                + "\nlemmatization:\t" + corpProc.lemmatization;
+    }
+
+    /**
+     * Merge the loaded documents into an incremental state, tokenizing the
+     * new documents and those whose texts changed and updating the n-gram
+     * counts accordingly.
+     *
+     * @return The number of documents of the state that were replaced
+     */
+    private int mergeIntoState(IncrementalState state, CorpusProcessor tokenProc)
+            throws Exception {
+        HashMap<String, Integer> prevIndices = state.getDocumentIndices();
+        int numPrevDocs = state.getNumDocuments();
+        int[] replacements = new int[numPrevDocs];
+        Arrays.fill(replacements, -1);
+        ArrayList<Integer> newDocs = new ArrayList<Integer>();
+        int numChanged = 0;
+        for (int d = 0; d < docIdList.size(); d++) {
+            String docId = docIdList.get(d);
+            Integer prev = prevIndices.get(docId);
+            if (prev == null) {
+                newDocs.add(d);
+                continue;
             }
-            // write numeric sentence
-            sentWriter.write(docStr.toString().trim() + "\n");
+            String contentHash = IncrementalState.getContentHash(store, d);
+            if (contentHash.equals(state.contentHashes.get(prev))) {
+                continue;
+            }
+            replacements[prev] = d;
+            numChanged++;
+            String textHash = IncrementalState.getTextHash(store, d);
+            if (!textHash.equals(state.textHashes.get(prev))) {
+                state.counts.remove(state.tokens.getTokens(docId));
+                state.tokens.remove(docId);
+            }
+            state.textHashes.set(prev, textHash);
+            state.contentHashes.set(prev, contentHash);
+        }
 
-            // write raw sentence
-            rawSentWriter.write(docRawSents.size() + "\n");
-            for (String docRawSent : docRawSents) {
-                rawSentWriter.write(docRawSent.trim().replaceAll("\n", " ") + "\n");
+        CorpusStore merged = new CorpusStore();
+        for (int d = 0; d < numPrevDocs; d++) {
+            if (replacements[d] >= 0) {
+                merged.addDocument(store, replacements[d]);
+            } else {
+                merged.addDocument(state.store, d);
             }
+        }
+        for (int d : newDocs) {
+            merged.addDocument(store, d);
+            state.docIds.add(docIdList.get(d));
+            state.textHashes.add(IncrementalState.getTextHash(store, d));
+            state.contentHashes.add(IncrementalState.getContentHash(store, d));
+            state.encodingHashes.add("");
+            state.processed.add(false);
+        }
+        merged.trim();
+        state.store = merged;
+
+        int numTokenized = 0;
+        for (int d = 0; d < state.getNumDocuments(); d++) {
+            String docId = state.docIds.get(d);
+            if (state.tokens.contains(docId)) {
+                continue;
+            }
+            String[] sents = new String[merged.getNumSentences(d)];
+            for (int s = 0; s < sents.length; s++) {
+                sents[s] = merged.getSentenceText(merged.getSentenceIndex(d, s));
+            }
+            String[][] tokens = TokenCache.tokenize(tokenProc, sents);
+            state.tokens.put(docId, null, tokens);
+            state.counts.add(tokens);
+            numTokenized++;
+        }
+
+        if (verbose) {
+            logln("--- # new documents: " + newDocs.size()
+                    + ". # changed: " + numChanged
+                    + ". # unchanged: " + (docIdList.size() - newDocs.size() - numChanged)
+                    + ". # kept: " + (numPrevDocs - docIdList.size() + newDocs.size())
+                    + ". # tokenized: " + numTokenized);
+        }
+        return numChanged;
+    }
 
-            // write sentence labels
-            sentInfoWriter.write(docInfo.toString().trim() + "\n");
+    /**
+     * Map the labels of each document to their indices in the label
+     * vocabulary, dropping labels that are not in it.
+     */
+    private void indexLabels() {
+        HashMap<String, Integer> labelIndices = new HashMap<String, Integer>();
+        for (int ll = 0; ll < labelVocab.size(); ll++) {
+            labelIndices.put(labelVocab.get(ll), ll);
+        }
+        this.labels = new int[labelList.size()][];
+        for (int d = 0; d < labels.length; d++) {
+            ArrayList<Integer> docLabels = new ArrayList<Integer>();
+            for (String label : labelList.get(d)) {
+                Integer idx = labelIndices.get(label);
+                if (idx != null) {
+                    docLabels.add(idx);
+                }
+            }
+            this.labels[d] = new int[docLabels.size()];
+            for (int ii = 0; ii < docLabels.size(); ii++) {
+                this.labels[d][ii] = docLabels.get(ii);
+            }
         }
-        sentWriter.close();
-        rawSentWriter.close();
-        sentInfoWriter.close();
     }
 
     @Override
     public void loadFormattedData(String fFolder) {
         try {
+            this.sentenceLabels = null;
             super.loadFormattedData(fFolder);
-            this.inputSentenceInfo(new File(fFolder, formatFilename + sentInfoExt));
+            if (this.sentenceLabels == null) {
+                this.inputSentenceInfo(new File(fFolder, formatFilename + sentInfoExt));
+            }
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while loading formatted data "
@@ -246,34 +735,195 @@ public class CompuframesDataset extends LabelTextDataset {
         }
     }
 
+    /**
+     * Read the sentence words, and the sentence labels, from the binary
+     * sentence file if it exists, otherwise from the text files.
+     */
+    @Override
+    protected void inputSentenceTextData(File sentTextFile) throws Exception {
+        File sentBinFile = new File(sentTextFile.getParentFile(), formatFilename + sentBinExt);
+        if (!sentBinFile.exists()) {
+            super.inputSentenceTextData(sentTextFile);
+            return;
+        }
+
+        if (verbose) {
+            logln("--- Reading binary sentence data from " + sentBinFile);
+        }
+        SparseSentenceReader reader = new SparseSentenceReader(sentBinFile);
+        this.sentWords = new int[reader.getNumDocuments()][][];
+        this.sentenceLabels = new int[reader.getNumDocuments()][][];
+        reader.readAll(sentWords, sentenceLabels);
+        reader.close();
+        if (verbose) {
+            int numSents = 0;
+            int numTokens = 0;
+            for (int d = 0; d < sentWords.length; d++) {
+                numSents += sentWords[d].length;
+                for (int s = 0; s < sentWords[d].length; s++) {
+                    numTokens += sentWords[d][s].length;
+                }
+            }
+            logln("--- --- # docs: " + sentWords.length);
+            logln("--- --- # sents: " + numSents);
+            logln("--- --- # tokens: " + numTokens);
+        }
+
+        File rawSentFile = new File(sentTextFile + ".raw");
+        if (rawSentFile.exists()) {
+            inputRawSentences(rawSentFile);
+        }
+    }
+
+    /**
+     * Read the raw sentences. Each document is stored as its number of
+     * sentences followed by one sentence per line.
+     */
+    protected void inputRawSentences(File rawSentFile) throws Exception {
+        if (verbose) {
+            logln("--- Reading sentence raw text data from " + rawSentFile);
+        }
+        ArrayList<String[]> rawSentList = new ArrayList<String[]>();
+        BufferedReader reader = IOUtils.getBufferedReader(rawSentFile);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] docRawSents = new String[Integer.parseInt(line)];
+            for (int s = 0; s < docRawSents.length; s++) {
+                docRawSents[s] = reader.readLine();
+            }
+            rawSentList.add(docRawSents);
+        }
+        reader.close();
+        this.sentRawWords = rawSentList.toArray(new String[rawSentList.size()][]);
+    }
+
+    /**
+     * Convert the text sentence files (numeric sentences and sentence labels)
+     * of a formatted folder into the binary sentence format.
+     *
+     * @param fFolder The formatted folder
+     */
+    public void convertSentenceData(String fFolder) throws Exception {
+        File sentTextFile = new File(fFolder, formatFilename + numSentDataExt);
+        File sentInfoFile = new File(fFolder, formatFilename + sentInfoExt);
+        File sentBinFile = new File(fFolder, formatFilename + sentBinExt);
+        if (verbose) {
+            logln("--- Converting " + sentTextFile + " and " + sentInfoFile
+                    + " to " + sentBinFile);
+        }
+
+        BufferedReader sentReader = IOUtils.getBufferedReader(sentTextFile);
+        BufferedReader sentInfoReader = IOUtils.getBufferedReader(sentInfoFile);
+        SparseSentenceWriter writer = new SparseSentenceWriter(sentBinFile);
+        SparseSentenceWriter.Block block = new SparseSentenceWriter.Block();
+        int[] labels = new int[16];
+        String line;
+        int d = 0;
+        while ((line = sentReader.readLine()) != null) {
+            String infoLine = sentInfoReader.readLine();
+            if (infoLine == null) {
+                throw new RuntimeException("Missing sentence labels of document " + d);
+            }
+            String[] sents = line.isEmpty() ? new String[0] : line.split("\t");
+            String[] sentInfos = infoLine.split("\t", -1);
+            if (sents.length > 0 && sents.length != sentInfos.length) {
+                throw new RuntimeException("Document " + d + " has " + sents.length
+                        + " sentences but " + sentInfos.length + " label fields");
+            }
+
+            block.clear();
+            block.startDocument(sents.length);
+            for (int s = 0; s < sents.length; s++) {
+                // text bags are not necessarily sorted
+                String[] pairs = sents[s].split(" ");
+                long[] typeCounts = new long[pairs.length];
+                for (int ii = 0; ii < pairs.length; ii++) {
+                    int sep = pairs[ii].indexOf(':');
+                    typeCounts[ii] = ((long) Integer.parseInt(pairs[ii].substring(0, sep)) << 32)
+                            | Integer.parseInt(pairs[ii].substring(sep + 1));
+                }
+                Arrays.sort(typeCounts);
+                int[] types = new int[pairs.length];
+                int[] counts = new int[pairs.length];
+                for (int ii = 0; ii < pairs.length; ii++) {
+                    types[ii] = (int) (typeCounts[ii] >>> 32);
+                    counts[ii] = (int) typeCounts[ii];
+                }
+
+                int numLabels = 0;
+                if (!sentInfos[s].isEmpty()) {
+                    String[] sLabels = sentInfos[s].split(" ");
+                    if (sLabels.length > labels.length) {
+                        labels = new int[sLabels.length];
+                    }
+                    for (String sLabel : sLabels) {
+                        labels[numLabels++] = Integer.parseInt(sLabel);
+                    }
+                }
+                block.writeSentence(types, counts, pairs.length, labels, numLabels);
+            }
+            writer.write(block);
+            d++;
+        }
+        writer.close();
+        sentReader.close();
+        sentInfoReader.close();
+    }
+
+    public int[][][] getSentenceLabels() {
+        return this.sentenceLabels;
+    }
+
+    /**
+     * Read the sentence labels. Each line holds the labels of one document,
+     * with one tab-separated field of space-separated labels per sentence.
+     */
     protected void inputSentenceInfo(File sentInfoFile) throws Exception {
         this.sentenceLabels = new int[docIds.length][][];
         BufferedReader reader = IOUtils.getBufferedReader(sentInfoFile);
         String line;
-        String[] sline;
         int d = 0;
         while ((line = reader.readLine()) != null) {
-            if (line.isEmpty()) {
-                d++;
-                continue;
+            if (d == docIds.length) {
+                reader.close();
+                throw new RuntimeException(sentInfoFile + " has more lines than the "
+                        + docIds.length + " documents");
             }
+            this.sentenceLabels[d++] = parseSentenceLabels(line);
+        }
+        reader.close();
+        if (d != docIds.length) {
+            throw new RuntimeException(sentInfoFile + " has " + d + " lines while there are "
+                    + docIds.length + " documents");
+        }
+    }
 
-            sline = line.split("\t");
-            this.sentenceLabels[d] = new int[sline.length][];
-            for (int s = 0; s < sline.length; s++) {
-                if (sline[s].isEmpty()) {
-                    continue;
-                }
-                String[] ssline = sline[s].split(" ");
-                this.sentenceLabels[d][s] = new int[ssline.length];
-                for (int ii = 0; ii < ssline.length; ii++) {
-                    this.sentenceLabels[d][s][ii] = Integer.parseInt(ssline[ii]);
-                }
+    /**
+     * Parse the sentence labels of a document from a line of the sentence
+     * info file. A sentence without labels gets an empty array.
+     */
+    public static int[][] parseSentenceLabels(String line) {
+        String[] sline = line.split("\t", -1);
+        int[][] labels = new int[sline.length][];
+        for (int s = 0; s < sline.length; s++) {
+            if (sline[s].isEmpty()) {
+                labels[s] = new int[0];
+                continue;
+            }
+            String[] ssline = sline[s].split(" ");
+            labels[s] = new int[ssline.length];
+            for (int ii = 0; ii < ssline.length; ii++) {
+                labels[s][ii] = Integer.parseInt(ssline[ii]);
             }
         }
-        reader.close();
+        return labels;
     }
 
+    /**
+     * Create cross-validation folds. Documents are tokenized once for all
+     * folds, and the folds are then formatted concurrently, each with its own
+     * datasets and corpus processor, using up to numThreads threads.
+     */
     @Override
     public void createCrossValidation(String cvFolder, int numFolds,
             double trToDevRatio) throws Exception {
@@ -285,7 +935,7 @@ public class CompuframesDataset extends LabelTextDataset {
         }
 
         String cvName = "";
-        CrossValidation<String, Instance<String>> cv =
+        final CrossValidation<String, Instance<String>> cv =
                 new CrossValidation<String, Instance<String>>(
                 cvFolder,
                 cvName,
@@ -294,78 +944,186 @@ public class CompuframesDataset extends LabelTextDataset {
         cv.stratify(groupIdList, numFolds, trToDevRatio);
         cv.outputFolds();
 
-        for (Fold<String, Instance<String>> fold : cv.getFolds()) {
-            String foldFolder = fold.getFoldFolderPath();
-            // processor
-            CorpusProcessor cp = new CorpusProcessor(corpProc);
-
-            // training data
-            trainData = new LabelTextDataset(fold.getFoldName(),
-                    cv.getFolderPath(), cp);
-            trainData.setFormatFilename(fold.getFoldName() + Fold.TrainingExt);
-            ArrayList<String> trDocIds = new ArrayList<String>();
-            ArrayList<String> trDocTexts = new ArrayList<String>();
-            ArrayList<ArrayList<String>> trLabelList = new ArrayList<ArrayList<String>>();
-            for (int ii = 0; ii < fold.getNumTrainingInstances(); ii++) {
-                int idx = fold.getTrainingInstances().get(ii);
-                trDocIds.add(this.docIdList.get(idx));
-                trDocTexts.add(this.textList.get(idx));
-                trLabelList.add(this.labelList.get(idx));
-            }
-            trainData.setTextData(trDocIds, trDocTexts);
-            trainData.setLabelList(trLabelList);
-            trainData.format(foldFolder);
-            trainData.loadFormattedData(foldFolder);
-            trainData.outputArffFile(new File(foldFolder,
-                    trainData.getFormatFilename() + arffExt));
-            setLabelVocab(trainData.getLabelVocab());
-            outputLabelVocabXML(foldFolder);
-
-            // development data: process using vocab from training
-            devData = new LabelTextDataset(fold.getFoldName(),
-                    cv.getFolderPath(), cp);
-            devData.setFormatFilename(fold.getFoldName() + Fold.DevelopExt);
-            ArrayList<String> deDocIds = new ArrayList<String>();
-            ArrayList<String> deDocTexts = new ArrayList<String>();
-            ArrayList<ArrayList<String>> deLabelList = new ArrayList<ArrayList<String>>();
-            for (int ii = 0; ii < fold.getNumDevelopmentInstances(); ii++) {
-                int idx = fold.getDevelopmentInstances().get(ii);
-                deDocIds.add(this.docIdList.get(idx));
-                deDocTexts.add(this.textList.get(idx));
-                deLabelList.add(this.labelList.get(idx));
-            }
-            devData.setTextData(deDocIds, deDocTexts);
-            devData.setLabelVocab(trainData.getLabelVocab());
-            devData.setLabelList(deLabelList);
-            devData.format(foldFolder);
-            devData.loadFormattedData(foldFolder);
-            devData.outputArffFile(new File(foldFolder,
-                    devData.getFormatFilename() + arffExt));
-
-            // test data: process using vocab from training
-            testData = new LabelTextDataset(fold.getFoldName(),
-                    cv.getFolderPath(), cp);
-            testData.setFormatFilename(fold.getFoldName() + Fold.TestExt);
-            ArrayList<String> teDocIds = new ArrayList<String>();
-            ArrayList<String> teDocTexts = new ArrayList<String>();
-            ArrayList<ArrayList<String>> teLabelList = new ArrayList<ArrayList<String>>();
-            for (int ii = 0; ii < fold.getNumTestingInstances(); ii++) {
-                int idx = fold.getTestingInstances().get(ii);
-                teDocIds.add(this.docIdList.get(idx));
-                teDocTexts.add(this.textList.get(idx));
-                teLabelList.add(this.labelList.get(idx));
-            }
-            testData.setTextData(teDocIds, teDocTexts);
-            testData.setLabelVocab(trainData.getLabelVocab());
-            testData.setLabelList(teLabelList);
-            testData.format(foldFolder);
-            testData.loadFormattedData(foldFolder);
-            testData.outputArffFile(new File(foldFolder,
-                    testData.getFormatFilename() + arffExt));
+        // segment and tokenize every document once for all folds; the cache
+        // then holds every document and is only read by the folds
+        final TokenCache tokenCache = buildTokenCache();
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(numThreads, numFolds)));
+        try {
+            ArrayList<Future<LabelTextDataset[]>> results =
+                    new ArrayList<Future<LabelTextDataset[]>>();
+            for (final Fold<String, Instance<String>> fold : cv.getFolds()) {
+                results.add(executor.submit(new Callable<LabelTextDataset[]>() {
+                    @Override
+                    public LabelTextDataset[] call() throws Exception {
+                        return createFold(cv, fold, tokenCache);
+                    }
+                }));
+            }
+            LabelTextDataset[] foldData = null;
+            for (Future<LabelTextDataset[]> result : results) {
+                try {
+                    foldData = result.get();
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace();
+                    throw new RuntimeException("Exception while creating "
+                            + "cross-validation folds in " + cvFolder);
+                }
+            }
+
+            // keep the data of the last fold, as when folds were created in turn
+            if (foldData != null) {
+                this.trainData = foldData[0];
+                this.devData = foldData[1];
+                this.testData = foldData[2];
+                setLabelVocab(trainData.getLabelVocab());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Format the training, development and test data of a fold. The
+     * development and test data are processed using the vocabulary of the
+     * training data.
+     *
+     * @return The training, development and test data
+     */
+    private LabelTextDataset[] createFold(CrossValidation<String, Instance<String>> cv,
+            Fold<String, Instance<String>> fold, TokenCache tokenCache) throws Exception {
+        String foldFolder = fold.getFoldFolderPath();
+        // processor
+        CachedCorpusProcessor cp = new CachedCorpusProcessor(corpProc, tokenCache);
+
+        // training data
+        LabelTextDataset foldTrainData = new LabelTextDataset(fold.getFoldName(),
+                cv.getFolderPath(), cp);
+        foldTrainData.setFormatFilename(fold.getFoldName() + Fold.TrainingExt);
+        ArrayList<String> trDocIds = new ArrayList<String>();
+        ArrayList<String> trDocTexts = new ArrayList<String>();
+        ArrayList<ArrayList<String>> trLabelList = new ArrayList<ArrayList<String>>();
+        for (int ii = 0; ii < fold.getNumTrainingInstances(); ii++) {
+            int idx = fold.getTrainingInstances().get(ii);
+            trDocIds.add(this.docIdList.get(idx));
+            trDocTexts.add(this.textList.get(idx));
+            trLabelList.add(this.labelList.get(idx));
+        }
+        cp.setDocumentIds(trDocIds);
+        foldTrainData.setTextData(trDocIds, trDocTexts);
+        foldTrainData.setLabelList(trLabelList);
+        foldTrainData.format(foldFolder);
+        foldTrainData.loadFormattedData(foldFolder);
+        if (outputArff) {
+            foldTrainData.outputArffFile(new File(foldFolder,
+                    foldTrainData.getFormatFilename() + arffExt));
+        }
+        outputLabelVocabXML(foldFolder, foldTrainData.getLabelVocab());
+
+        // development data: process using vocab from training
+        LabelTextDataset foldDevData = new LabelTextDataset(fold.getFoldName(),
+                cv.getFolderPath(), cp);
+        foldDevData.setFormatFilename(fold.getFoldName() + Fold.DevelopExt);
+        ArrayList<String> deDocIds = new ArrayList<String>();
+        ArrayList<String> deDocTexts = new ArrayList<String>();
+        ArrayList<ArrayList<String>> deLabelList = new ArrayList<ArrayList<String>>();
+        for (int ii = 0; ii < fold.getNumDevelopmentInstances(); ii++) {
+            int idx = fold.getDevelopmentInstances().get(ii);
+            deDocIds.add(this.docIdList.get(idx));
+            deDocTexts.add(this.textList.get(idx));
+            deLabelList.add(this.labelList.get(idx));
+        }
+        cp.setDocumentIds(deDocIds);
+        foldDevData.setTextData(deDocIds, deDocTexts);
+        foldDevData.setLabelVocab(foldTrainData.getLabelVocab());
+        foldDevData.setLabelList(deLabelList);
+        foldDevData.format(foldFolder);
+        foldDevData.loadFormattedData(foldFolder);
+        if (outputArff) {
+            foldDevData.outputArffFile(new File(foldFolder,
+                    foldDevData.getFormatFilename() + arffExt));
+        }
+
+        // test data: process using vocab from training
+        LabelTextDataset foldTestData = new LabelTextDataset(fold.getFoldName(),
+                cv.getFolderPath(), cp);
+        foldTestData.setFormatFilename(fold.getFoldName() + Fold.TestExt);
+        ArrayList<String> teDocIds = new ArrayList<String>();
+        ArrayList<String> teDocTexts = new ArrayList<String>();
+        ArrayList<ArrayList<String>> teLabelList = new ArrayList<ArrayList<String>>();
+        for (int ii = 0; ii < fold.getNumTestingInstances(); ii++) {
+            int idx = fold.getTestingInstances().get(ii);
+            teDocIds.add(this.docIdList.get(idx));
+            teDocTexts.add(this.textList.get(idx));
+            teLabelList.add(this.labelList.get(idx));
+        }
+        cp.setDocumentIds(teDocIds);
+        foldTestData.setTextData(teDocIds, teDocTexts);
+        foldTestData.setLabelVocab(foldTrainData.getLabelVocab());
+        foldTestData.setLabelList(teLabelList);
+        foldTestData.format(foldFolder);
+        foldTestData.loadFormattedData(foldFolder);
+        if (outputArff) {
+            foldTestData.outputArffFile(new File(foldFolder,
+                    foldTestData.getFormatFilename() + arffExt));
+        }
+
+        return new LabelTextDataset[]{foldTrainData, foldDevData, foldTestData};
+    }
+
+    /**
+     * Detect the sentences of every loaded document and tokenize them, as
+     * done when formatting a document text. Documents are split into one
+     * range per thread, and each range is tokenized by its own processor
+     * since the tokenizer is not thread-safe.
+     */
+    private TokenCache buildTokenCache() throws Exception {
+        if (verbose) {
+            logln("--- Tokenizing " + docIdList.size() + " documents ...");
         }
+        final String[] texts = textList.toArray(new String[textList.size()]);
+        int numRanges = Math.max(1, Math.min(numThreads, texts.length));
+        ExecutorService executor = Executors.newFixedThreadPool(numRanges);
+        TokenCache tokenCache = new TokenCache();
+        try {
+            ArrayList<Future<TokenCache>> results = new ArrayList<Future<TokenCache>>();
+            for (int rr = 0; rr < numRanges; rr++) {
+                final int start = (int) ((long) texts.length * rr / numRanges);
+                final int end = (int) ((long) texts.length * (rr + 1) / numRanges);
+                results.add(executor.submit(new Callable<TokenCache>() {
+                    @Override
+                    public TokenCache call() {
+                        TokenCache rangeCache = new TokenCache();
+                        CachedCorpusProcessor cp = new CachedCorpusProcessor(corpProc, rangeCache);
+                        cp.setVerbose(false);
+                        cp.setDocumentIds(docIdList.subList(start, end));
+                        cp.setRawTexts(Arrays.copyOfRange(texts, start, end));
+                        cp.getSentences();
+                        return rangeCache;
+                    }
+                }));
+            }
+            for (Future<TokenCache> result : results) {
+                try {
+                    tokenCache.add(result.get());
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace();
+                    throw new RuntimeException("Exception while tokenizing documents");
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return tokenCache;
     }
 
     public void outputLabelVocabXML(String outputFolder) throws Exception {
+        outputLabelVocabXML(outputFolder, this.labelVocab);
+    }
+
+    private void outputLabelVocabXML(String outputFolder, ArrayList<String> labelVocab)
+            throws Exception {
         // format labels in Mulan's XML
         File labelVocXml = new File(outputFolder, formatFilename + xmlExt);
         if (verbose) {
@@ -376,7 +1134,7 @@ public class CompuframesDataset extends LabelTextDataset {
         writer.write("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n");
         writer.write("<labels xmlns=\"http://mulan.sourceforge.net/labels\">\n");
         StringBuilder str = new StringBuilder();
-        for (String label : this.labelVocab) {
+        for (String label : labelVocab) {
             str.append("<label name=\"").append("label_").append(label).append("\"></label>\n");
         }
         writer.write(str.toString());
@@ -384,31 +1142,64 @@ public class CompuframesDataset extends LabelTextDataset {
         writer.close();
     }
 
+    /**
+     * Load the formatted data of a cross-validation fold. The documents of
+     * each split are kept in a single document-term matrix, which is shared
+     * by the split's dataset and its Mulan instances.
+     */
     public void loadCrossValidation(String cvFolder, int foldIdx) {
+        FoldData foldData = loadFold(cvFolder, foldIdx);
+        trainData = foldData.getTrainData();
+        devData = foldData.getDevelopmentData();
+        testData = foldData.getTestData();
+        mulanTrainData = foldData.getMulanTrainData();
+        mulanDevData = foldData.getMulanDevelopmentData();
+        mulanTestData = foldData.getMulanTestData();
+        labelVocab = trainData.labelVocab;
+        wordVocab = trainData.wordVocab;
+    }
+
+    /**
+     * Load the formatted data of a cross-validation fold without changing
+     * the state of any dataset, so that several folds can be loaded and used
+     * at the same time.
+     *
+     * @param cvFolder The cross-validation folder
+     * @param foldIdx The fold index
+     */
+    public static FoldData loadFold(String cvFolder, int foldIdx) {
         try {
-            Fold fold = new Fold(foldIdx, cvFolder);
-            String foldFolderpath = fold.getFoldFolderPath();
-            LabelTextDataset[] foldData = LabelTextDataset.loadCrossValidationFold(fold);
-            trainData = foldData[Fold.TRAIN];
-            devData = foldData[Fold.DEV];
-            testData = foldData[Fold.TEST];
-
-            mulanTrainData = new MultiLabelInstances(
-                    new File(foldFolderpath, fold.getFoldName() + Fold.TrainingExt + arffExt).getAbsolutePath(),
-                    new File(foldFolderpath, formatFilename + xmlExt).getAbsolutePath());
-            mulanDevData = new MultiLabelInstances(
-                    new File(foldFolderpath, fold.getFoldName() + Fold.DevelopExt + arffExt).getAbsolutePath(),
-                    new File(foldFolderpath, formatFilename + xmlExt).getAbsolutePath());
-            mulanTestData = new MultiLabelInstances(
-                    new File(foldFolderpath, fold.getFoldName() + Fold.TestExt + arffExt).getAbsolutePath(),
-                    new File(foldFolderpath, formatFilename + xmlExt).getAbsolutePath());
+            Fold<String, Instance<String>> fold = new Fold<String, Instance<String>>(foldIdx, cvFolder);
+            SparseLabelTextDataset[] splits = SparseLabelTextDataset.loadFoldSplits(fold);
+            LabelTextDataset train = splits[Fold.TRAIN];
+            LabelTextDataset dev = splits[Fold.DEV];
+            LabelTextDataset test = splits[Fold.TEST];
+
+            // the splits of a fold share the vocabularies of its training data
+            MultiLabelInstances mulanTrain = MulanInstances.create(train);
+            MultiLabelInstances mulanDev = MulanInstances.create(dev,
+                    getHeader(dev, train, mulanTrain));
+            MultiLabelInstances mulanTest = MulanInstances.create(test,
+                    getHeader(test, train, mulanTrain));
+            return new FoldData(fold, train, dev, test, mulanTrain, mulanDev, mulanTest);
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("Exception while loading cross validation"
                     + " fold " + foldIdx + " from " + cvFolder);
         }
-        labelVocab = trainData.labelVocab;
-        wordVocab = trainData.wordVocab;
+    }
+
+    /**
+     * Get the training instances if a split has the same vocabularies as the
+     * training data, so that their attributes can be shared.
+     */
+    private static MultiLabelInstances getHeader(LabelTextDataset data,
+            LabelTextDataset train, MultiLabelInstances mulanTrain) {
+        if (data.getWordVocab().equals(train.getWordVocab())
+                && data.getLabelVocab().equals(train.getLabelVocab())) {
+            return mulanTrain;
+        }
+        return null;
     }
 
     public LabelTextDataset getTrainData() {
@@ -434,4 +1225,107 @@ public class CompuframesDataset extends LabelTextDataset {
     public MultiLabelInstances getMulanTestData() {
         return mulanTestData;
     }
+
+    /**
+     * The data of a cross-validation fold: the formatted data of its
+     * training, development and test splits and their Mulan instances.
+     */
+    public static class FoldData {
+
+        private final Fold<String, Instance<String>> fold;
+        private final LabelTextDataset trainData;
+        private final LabelTextDataset devData;
+        private final LabelTextDataset testData;
+        private final MultiLabelInstances mulanTrainData;
+        private final MultiLabelInstances mulanDevData;
+        private final MultiLabelInstances mulanTestData;
+        private String fingerprint;
+
+        FoldData(Fold<String, Instance<String>> fold,
+                LabelTextDataset trainData,
+                LabelTextDataset devData,
+                LabelTextDataset testData,
+                MultiLabelInstances mulanTrainData,
+                MultiLabelInstances mulanDevData,
+                MultiLabelInstances mulanTestData) {
+            this.fold = fold;
+            this.trainData = trainData;
+            this.devData = devData;
+            this.testData = testData;
+            this.mulanTrainData = mulanTrainData;
+            this.mulanDevData = mulanDevData;
+            this.mulanTestData = mulanTestData;
+        }
+
+        public Fold<String, Instance<String>> getFold() {
+            return fold;
+        }
+
+        /**
+         * Get the digest of the files the data were loaded from, or null if
+         * it has not been set.
+         */
+        public synchronized String getFingerprint() {
+            return fingerprint;
+        }
+
+        public synchronized void setFingerprint(String fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+
+        public LabelTextDataset getTrainData() {
+            return trainData;
+        }
+
+        public LabelTextDataset getDevelopmentData() {
+            return devData;
+        }
+
+        public LabelTextDataset getTestData() {
+            return testData;
+        }
+
+        public MultiLabelInstances getMulanTrainData() {
+            return mulanTrainData;
+        }
+
+        public MultiLabelInstances getMulanDevelopmentData() {
+            return mulanDevData;
+        }
+
+        public MultiLabelInstances getMulanTestData() {
+            return mulanTestData;
+        }
+    }
+
+    /**
+     * Fork-join task parsing the annotated sentences of a range of documents.
+     */
+    private static class ParseTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private static final int THRESHOLD = 8;
+        private final Document[] docs;
+        private final int start;
+        private final int end;
+
+        ParseTask(Document[] docs, int start, int end) {
+            this.docs = docs;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= THRESHOLD) {
+                for (int ii = start; ii < end; ii++) {
+                    docs[ii].parseAnnotatedSentences();
+                }
+            } else {
+                int mid = (start + end) >>> 1;
+                invokeAll(new ParseTask(docs, start, mid),
+                        new ParseTask(docs, mid, end));
+            }
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,197 @@
+package data;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+
+/**
+ * Binary snapshot of a loaded corpus. The snapshot stores the document IDs
+ * and the columns of a CorpusStore, and is identified by a key computed from
+ * the content of the input file and the corpus filter settings, so a snapshot
+ * is only reused for the same input and the same selection. Snapshots are read
+ * back through a memory-mapped file.
+ *
+ * Layout (big-endian): magic, version, key, number of documents, sentences,
+ * annotations and annotators, followed by the offset and annotation columns
+ * and the length-prefixed UTF-8 strings (annotators, document IDs, sentence
+ * texts).
+ *
+ * @author vietan
+ */
+public class CorpusCache {
+
+    public static final int MAGIC = 0x43464343; // CFCC
+    public static final int VERSION = 1;
+    public static final String cacheExt = ".cache";
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * Compute the cache key of a corpus file under given filter settings.
+     *
+     * @param jsonFile The (possibly compressed) JSON file
+     * @param filter The corpus filter
+     */
+    public static String getKey(File jsonFile, CorpusFilter filter) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        FileInputStream in = new FileInputStream(jsonFile);
+        FileChannel channel = in.getChannel();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        while (channel.read(buffer) != -1) {
+            buffer.flip();
+            md.update(buffer);
+            buffer.clear();
+        }
+        in.close();
+        md.update(("\n" + VERSION + "\n" + filter.getSettings()).getBytes("UTF-8"));
+        return toHex(md.digest());
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder str = new StringBuilder();
+        for (byte b : bytes) {
+            str.append(Character.forDigit((b >> 4) & 0xF, 16));
+            str.append(Character.forDigit(b & 0xF, 16));
+        }
+        return str.toString();
+    }
+
+    /**
+     * Get the snapshot file of a corpus file in a cache folder.
+     */
+    public static File getCacheFile(File cacheFolder, File jsonFile, String key) {
+        return new File(cacheFolder, jsonFile.getName() + "." + key + cacheExt);
+    }
+
+    /**
+     * Write a snapshot. The snapshot is first written to a temporary file
+     * which is then renamed, so that an interrupted run never leaves a
+     * partial snapshot behind.
+     *
+     * @param cacheFile The snapshot file
+     * @param key The cache key
+     * @param docIds The document IDs
+     * @param store The sentences and annotations of the documents
+     */
+    public static void write(File cacheFile, String key,
+            ArrayList<String> docIds, CorpusStore store) throws Exception {
+        File tempFile = new File(cacheFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tempFile), BUFFER_SIZE));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        writeString(out, key);
+
+        int numDocs = store.getNumDocuments();
+        int numSents = store.getNumSentences();
+        int numAnnts = store.getNumAnnotations();
+        ArrayList<String> annotatorVocab = store.getAnnotatorVocab();
+        out.writeInt(numDocs);
+        out.writeInt(numSents);
+        out.writeInt(numAnnts);
+        out.writeInt(annotatorVocab.size());
+
+        int[] docSentOffsets = store.getDocumentSentenceOffsets();
+        for (int ii = 0; ii <= numDocs; ii++) {
+            out.writeInt(docSentOffsets[ii]);
+        }
+        int[] sentAnntOffsets = store.getSentenceAnnotationOffsets();
+        for (int ii = 0; ii <= numSents; ii++) {
+            out.writeInt(sentAnntOffsets[ii]);
+        }
+        short[] annotators = store.getAnnotators();
+        for (int ii = 0; ii < numAnnts; ii++) {
+            out.writeShort(annotators[ii]);
+        }
+        float[] frames = store.getFrames();
+        for (int ii = 0; ii < numAnnts; ii++) {
+            out.writeFloat(frames[ii]);
+        }
+        out.write(store.getRounds(), 0, numAnnts);
+
+        for (String annotator : annotatorVocab) {
+            writeString(out, annotator);
+        }
+        for (int dd = 0; dd < numDocs; dd++) {
+            writeString(out, docIds.get(dd));
+        }
+        String[] sentTexts = store.getSentenceTexts();
+        for (int ii = 0; ii < numSents; ii++) {
+            writeString(out, sentTexts[ii]);
+        }
+        out.close();
+
+        if (cacheFile.exists() && !cacheFile.delete()) {
+            throw new RuntimeException("Cannot replace " + cacheFile);
+        }
+        if (!tempFile.renameTo(cacheFile)) {
+            throw new RuntimeException("Cannot rename " + tempFile + " to " + cacheFile);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws Exception {
+        byte[] bytes = str.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Read a snapshot.
+     *
+     * @param cacheFile The snapshot file
+     * @param key The expected cache key
+     * @param docIds List to which the document IDs are added
+     * @return The sentences and annotations of the documents, or null if the
+     * file is not a snapshot of the current version with the expected key
+     */
+    public static CorpusStore read(File cacheFile, String key,
+            ArrayList<String> docIds) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(cacheFile, "r");
+        try {
+            MappedInput in = new MappedInput(raf.getChannel());
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || !in.readString().equals(key)) {
+                return null;
+            }
+
+            int numDocs = in.readInt();
+            int numSents = in.readInt();
+            int numAnnts = in.readInt();
+            int numAnnotators = in.readInt();
+
+            int[] docSentOffsets = new int[numDocs + 1];
+            in.readInts(docSentOffsets);
+            int[] sentAnntOffsets = new int[numSents + 1];
+            in.readInts(sentAnntOffsets);
+            short[] annotators = new short[numAnnts];
+            in.readShorts(annotators);
+            float[] frames = new float[numAnnts];
+            in.readFloats(frames);
+            byte[] rounds = new byte[numAnnts];
+            in.readBytes(rounds, rounds.length);
+
+            ArrayList<String> annotatorVocab = new ArrayList<String>(numAnnotators);
+            for (int ii = 0; ii < numAnnotators; ii++) {
+                annotatorVocab.add(in.readString());
+            }
+            docIds.ensureCapacity(numDocs);
+            for (int dd = 0; dd < numDocs; dd++) {
+                docIds.add(in.readString());
+            }
+            String[] sentTexts = new String[numSents];
+            for (int ii = 0; ii < numSents; ii++) {
+                sentTexts[ii] = in.readString();
+            }
+            return new CorpusStore(docSentOffsets, sentTexts, sentAnntOffsets,
+                    annotators, frames, rounds, annotatorVocab);
+        } finally {
+            raf.close();
+        }
+    }
+}
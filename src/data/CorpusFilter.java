@@ -0,0 +1,164 @@
+package data;
+
+import data.CompuframesDataset.DocType;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Selection criteria applied while loading the corpus. Document-level
+ * criteria are checked before a document is parsed: the document type from
+ * the document ID alone, before the document entry is read, and the relevance
+ * and annotators from the document metadata. Annotation-level criteria
+ * (round, annotator and frame) are checked on each annotation; when any of
+ * them is set, a document is kept only if at least one of its annotations is
+ * selected.
+ *
+ * @author vietan
+ */
+public class CorpusFilter {
+
+    private DocType docType = DocType.ALL;
+    private Set<Integer> rounds;
+    private Set<String> annotators;
+    private Set<Integer> frames;
+
+    public DocType getDocumentType() {
+        return docType;
+    }
+
+    public void setDocumentType(DocType docType) {
+        this.docType = docType;
+    }
+
+    public Set<Integer> getRounds() {
+        return rounds;
+    }
+
+    public void setRounds(Set<Integer> rounds) {
+        this.rounds = rounds;
+    }
+
+    public Set<String> getAnnotators() {
+        return annotators;
+    }
+
+    public void setAnnotators(Set<String> annotators) {
+        this.annotators = annotators;
+    }
+
+    public Set<Integer> getFrames() {
+        return frames;
+    }
+
+    /**
+     * Set the frame labels to keep. A frame label is the integer part of the
+     * annotated frame (e.g., 6 for 6.2).
+     */
+    public void setFrames(Set<Integer> frames) {
+        this.frames = frames;
+    }
+
+    /**
+     * Whether any annotation-level criterion is set.
+     */
+    public boolean filtersAnnotations() {
+        return rounds != null || annotators != null || frames != null;
+    }
+
+    /**
+     * Check whether the entry of a document should be read at all, using only
+     * the document ID.
+     *
+     * @param docId The document ID
+     */
+    public boolean acceptDocumentId(String docId) {
+        return docType == DocType.ALL || docType == DocType.getDocumentType(docId);
+    }
+
+    /**
+     * Check whether a document whose ID is accepted should be parsed, using
+     * its unparsed metadata.
+     *
+     * @param doc The unparsed document
+     */
+    public boolean acceptDocument(Document doc) {
+        HashMap<String, Integer> irrelevant = doc.getIrrelevant();
+        if (irrelevant != null && irrelevant.containsValue(1)) {
+            return false;
+        }
+        if (annotators != null && irrelevant != null) {
+            // the relevance judgments list all annotators who coded the document
+            boolean coded = false;
+            for (String annotator : irrelevant.keySet()) {
+                if (annotators.contains(annotator)) {
+                    coded = true;
+                    break;
+                }
+            }
+            if (!coded) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check whether an annotation should be kept.
+     *
+     * @param annotator The annotator
+     * @param frame The annotated frame
+     * @param round The annotation round
+     */
+    public boolean acceptAnnotation(String annotator, double frame, int round) {
+        return (rounds == null || rounds.contains(round))
+                && (annotators == null || annotators.contains(annotator))
+                && (frames == null || frames.contains((int) frame));
+    }
+
+    /**
+     * Canonical description of the filter settings.
+     */
+    public String getSettings() {
+        StringBuilder str = new StringBuilder();
+        str.append("doc-type:\t").append(docType).append("\n");
+        str.append("rounds:\t").append(toSortedString(rounds)).append("\n");
+        str.append("annotators:\t").append(toSortedString(annotators)).append("\n");
+        str.append("frames:\t").append(toSortedString(frames));
+        return str.toString();
+    }
+
+    private static String toSortedString(Set<?> set) {
+        if (set == null) {
+            return "all";
+        }
+        return new TreeSet<Object>(set).toString();
+    }
+
+    /**
+     * Parse a comma-separated list of integers.
+     */
+    public static Set<Integer> parseIntegerSet(String str) {
+        Set<Integer> set = new HashSet<Integer>();
+        for (String s : str.split(",")) {
+            if (!s.trim().isEmpty()) {
+                set.add(Integer.parseInt(s.trim()));
+            }
+        }
+        return set;
+    }
+
+    /**
+     * Parse a comma-separated list of strings.
+     */
+    public static Set<String> parseStringSet(String str) {
+        Set<String> set = new HashSet<String>();
+        for (String s : str.split(",")) {
+            if (!s.trim().isEmpty()) {
+                set.add(s.trim());
+            }
+        }
+        return set;
+    }
+}
@@ -0,0 +1,269 @@
+package data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Columnar storage of the annotated sentences of a corpus. Sentences and
+ * annotations are stored in flat arrays indexed through offsets: the
+ * sentences of document d are [docSentOffsets[d], docSentOffsets[d + 1]) and
+ * the annotations of sentence s are [sentAnntOffsets[s], sentAnntOffsets[s +
+ * 1]). Annotators are dictionary-encoded as shorts, frames are stored as
+ * floats and rounds as bytes.
+ *
+ * @author vietan
+ */
+public class CorpusStore {
+
+    private static final int INIT_CAPACITY = 1024;
+    private int numDocs;
+    private int numSents;
+    private int numAnnts;
+    // documents
+    private int[] docSentOffsets;
+    // sentences
+    private String[] sentTexts;
+    private int[] sentAnntOffsets;
+    // annotations
+    private short[] anntAnnotators;
+    private float[] anntFrames;
+    private byte[] anntRounds;
+    // annotator dictionary
+    private ArrayList<String> annotatorVocab;
+    private HashMap<String, Short> annotatorIndices;
+
+    public CorpusStore() {
+        this.docSentOffsets = new int[INIT_CAPACITY + 1];
+        this.sentTexts = new String[INIT_CAPACITY];
+        this.sentAnntOffsets = new int[INIT_CAPACITY + 1];
+        this.anntAnnotators = new short[INIT_CAPACITY];
+        this.anntFrames = new float[INIT_CAPACITY];
+        this.anntRounds = new byte[INIT_CAPACITY];
+        this.annotatorVocab = new ArrayList<String>();
+        this.annotatorIndices = new HashMap<String, Short>();
+    }
+
+    /**
+     * Create a store directly from its columns.
+     */
+    public CorpusStore(int[] docSentOffsets,
+            String[] sentTexts,
+            int[] sentAnntOffsets,
+            short[] anntAnnotators,
+            float[] anntFrames,
+            byte[] anntRounds,
+            ArrayList<String> annotatorVocab) {
+        this.numDocs = docSentOffsets.length - 1;
+        this.numSents = sentTexts.length;
+        this.numAnnts = anntAnnotators.length;
+        this.docSentOffsets = docSentOffsets;
+        this.sentTexts = sentTexts;
+        this.sentAnntOffsets = sentAnntOffsets;
+        this.anntAnnotators = anntAnnotators;
+        this.anntFrames = anntFrames;
+        this.anntRounds = anntRounds;
+        this.annotatorVocab = annotatorVocab;
+        this.annotatorIndices = new HashMap<String, Short>();
+        for (int ii = 0; ii < annotatorVocab.size(); ii++) {
+            this.annotatorIndices.put(annotatorVocab.get(ii), (short) ii);
+        }
+    }
+
+    /**
+     * Start a new document. Sentences added afterwards belong to it.
+     */
+    public void startDocument() {
+        if (numDocs + 2 > docSentOffsets.length) {
+            docSentOffsets = Arrays.copyOf(docSentOffsets, 2 * docSentOffsets.length);
+        }
+        numDocs++;
+        docSentOffsets[numDocs] = numSents;
+    }
+
+    /**
+     * Add a sentence to the current document. Annotations added afterwards
+     * belong to it.
+     */
+    public void addSentence(String text) {
+        if (numSents + 1 > sentTexts.length) {
+            int capacity = 2 * sentTexts.length;
+            sentTexts = Arrays.copyOf(sentTexts, capacity);
+            sentAnntOffsets = Arrays.copyOf(sentAnntOffsets, capacity + 1);
+        }
+        sentTexts[numSents++] = text;
+        sentAnntOffsets[numSents] = numAnnts;
+        docSentOffsets[numDocs] = numSents;
+    }
+
+    /**
+     * Add an annotation to the current sentence.
+     */
+    public void addAnnotation(String annotator, float frame, int round) {
+        if (round < Byte.MIN_VALUE || round > Byte.MAX_VALUE) {
+            throw new RuntimeException("Round " + round + " is out of range");
+        }
+        if (numAnnts + 1 > anntFrames.length) {
+            int capacity = 2 * anntFrames.length;
+            anntAnnotators = Arrays.copyOf(anntAnnotators, capacity);
+            anntFrames = Arrays.copyOf(anntFrames, capacity);
+            anntRounds = Arrays.copyOf(anntRounds, capacity);
+        }
+        anntAnnotators[numAnnts] = getAnnotatorIndex(annotator);
+        anntFrames[numAnnts] = frame;
+        anntRounds[numAnnts] = (byte) round;
+        numAnnts++;
+        sentAnntOffsets[numSents] = numAnnts;
+    }
+
+    /**
+     * Append a copy of a document of another store.
+     */
+    public void addDocument(CorpusStore other, int d) {
+        startDocument();
+        for (int ss = other.docSentOffsets[d]; ss < other.docSentOffsets[d + 1]; ss++) {
+            addSentence(other.sentTexts[ss]);
+            for (int aa = other.sentAnntOffsets[ss]; aa < other.sentAnntOffsets[ss + 1]; aa++) {
+                addAnnotation(other.getAnnotator(aa), other.anntFrames[aa], other.anntRounds[aa]);
+            }
+        }
+    }
+
+    private short getAnnotatorIndex(String annotator) {
+        Short idx = annotatorIndices.get(annotator);
+        if (idx == null) {
+            if (annotatorVocab.size() > Short.MAX_VALUE) {
+                throw new RuntimeException("Too many annotators");
+            }
+            idx = (short) annotatorVocab.size();
+            annotatorVocab.add(annotator);
+            annotatorIndices.put(annotator, idx);
+        }
+        return idx;
+    }
+
+    /**
+     * Shrink the arrays to their actual sizes once loading is done.
+     */
+    public void trim() {
+        docSentOffsets = Arrays.copyOf(docSentOffsets, numDocs + 1);
+        sentTexts = Arrays.copyOf(sentTexts, numSents);
+        sentAnntOffsets = Arrays.copyOf(sentAnntOffsets, numSents + 1);
+        anntAnnotators = Arrays.copyOf(anntAnnotators, numAnnts);
+        anntFrames = Arrays.copyOf(anntFrames, numAnnts);
+        anntRounds = Arrays.copyOf(anntRounds, numAnnts);
+    }
+
+    public int getNumDocuments() {
+        return numDocs;
+    }
+
+    public int getNumSentences() {
+        return numSents;
+    }
+
+    public int getNumAnnotations() {
+        return numAnnts;
+    }
+
+    public int getNumSentences(int d) {
+        return docSentOffsets[d + 1] - docSentOffsets[d];
+    }
+
+    /**
+     * Get the global index of the s-th sentence of document d.
+     */
+    public int getSentenceIndex(int d, int s) {
+        return docSentOffsets[d] + s;
+    }
+
+    public String getSentenceText(int sentIdx) {
+        return sentTexts[sentIdx];
+    }
+
+    /**
+     * Get the global index of the first annotation of a sentence.
+     */
+    public int getAnnotationStart(int sentIdx) {
+        return sentAnntOffsets[sentIdx];
+    }
+
+    /**
+     * Get the global index after the last annotation of a sentence.
+     */
+    public int getAnnotationEnd(int sentIdx) {
+        return sentAnntOffsets[sentIdx + 1];
+    }
+
+    public String getAnnotator(int anntIdx) {
+        return annotatorVocab.get(anntAnnotators[anntIdx]);
+    }
+
+    public float getFrame(int anntIdx) {
+        return anntFrames[anntIdx];
+    }
+
+    public int getFrameLabel(int anntIdx) {
+        return (int) anntFrames[anntIdx];
+    }
+
+    public int getRound(int anntIdx) {
+        return anntRounds[anntIdx];
+    }
+
+    public ArrayList<String> getAnnotatorVocab() {
+        return annotatorVocab;
+    }
+
+    public int[] getDocumentSentenceOffsets() {
+        return docSentOffsets;
+    }
+
+    public String[] getSentenceTexts() {
+        return sentTexts;
+    }
+
+    public int[] getSentenceAnnotationOffsets() {
+        return sentAnntOffsets;
+    }
+
+    public short[] getAnnotators() {
+        return anntAnnotators;
+    }
+
+    public float[] getFrames() {
+        return anntFrames;
+    }
+
+    public byte[] getRounds() {
+        return anntRounds;
+    }
+
+    /**
+     * Get the sentence texts grouped by document. The inner arrays reference
+     * the stored strings.
+     */
+    public String[][] getDocumentSentences() {
+        String[][] docSents = new String[numDocs][];
+        for (int d = 0; d < numDocs; d++) {
+            docSents[d] = Arrays.copyOfRange(sentTexts, docSentOffsets[d], docSentOffsets[d + 1]);
+        }
+        return docSents;
+    }
+
+    /**
+     * Materialize the annotated sentences of a document.
+     */
+    public List<Sentence> getSentences(int d) {
+        List<Sentence> sents = new ArrayList<Sentence>(getNumSentences(d));
+        for (int ss = docSentOffsets[d]; ss < docSentOffsets[d + 1]; ss++) {
+            List<Annotation> annts = new ArrayList<Annotation>();
+            for (int aa = sentAnntOffsets[ss]; aa < sentAnntOffsets[ss + 1]; aa++) {
+                annts.add(new Annotation(getAnnotator(aa), anntFrames[aa], anntRounds[aa]));
+            }
+            sents.add(new Sentence(sentTexts[ss], annts));
+        }
+        return sents;
+    }
+}
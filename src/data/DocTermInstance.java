@@ -0,0 +1,74 @@
+package data;
+
+/**
+ * Sparse Weka instance that reads the word counts of a document from a
+ * SparseDocTermMatrix instead of keeping its own arrays. Its values are the
+ * word counts followed by a value of 1 for each label of the document, the
+ * label attributes coming after the word attributes.
+ *
+ * Copies share the matrix until modified.
+ *
+ * @author vietan
+ */
+class DocTermInstance extends SparseInstanceView {
+
+    private static final long serialVersionUID = 1L;
+    // null once the values have been copied into the instance's own arrays
+    private SparseDocTermMatrix matrix;
+    private int row;
+    private int[] labels;
+
+    /**
+     * @param matrix The document-term matrix
+     * @param row The document
+     * @param labels The label indices of the document, in increasing order
+     * @param numAttributes The number of word and label attributes
+     */
+    DocTermInstance(SparseDocTermMatrix matrix, int row, int[] labels, int numAttributes) {
+        this.matrix = matrix;
+        this.row = row;
+        this.labels = labels;
+        this.m_Weight = 1.0;
+        this.m_NumAttributes = numAttributes;
+    }
+
+    @Override
+    public Object copy() {
+        if (!isShared()) {
+            return super.copy();
+        }
+        DocTermInstance result = new DocTermInstance(matrix, row, labels, m_NumAttributes);
+        result.m_Weight = m_Weight;
+        result.m_Dataset = m_Dataset;
+        return result;
+    }
+
+    @Override
+    protected int getNumViewValues() {
+        return matrix.getRowEnd(row) - matrix.getRowStart(row) + labels.length;
+    }
+
+    @Override
+    protected int getViewIndex(int position) {
+        int numWordValues = matrix.getRowEnd(row) - matrix.getRowStart(row);
+        if (position < numWordValues) {
+            return matrix.getColumn(matrix.getRowStart(row) + position);
+        }
+        return matrix.getNumColumns() + labels[position - numWordValues];
+    }
+
+    @Override
+    protected double getViewValue(int position) {
+        int numWordValues = matrix.getRowEnd(row) - matrix.getRowStart(row);
+        if (position < numWordValues) {
+            return matrix.getCount(matrix.getRowStart(row) + position);
+        }
+        return 1.0;
+    }
+
+    @Override
+    protected void releaseView() {
+        matrix = null;
+        labels = null;
+    }
+}
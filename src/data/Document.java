@@ -1,6 +1,5 @@
 package data;
 
-import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -16,7 +15,12 @@ public class Document {
     private JsonArray sentences;
     private List<String> xml_file;
     private String filename;
-    private List<Sentence> annotatedSentences;
+    // parsed sentences, in columnar form
+    private transient String[] sentTexts;
+    private transient int[] sentAnntOffsets;
+    private transient String[] anntAnnotators;
+    private transient float[] anntFrames;
+    private transient int[] anntRounds;
 
     public HashMap<String, Integer> getIrrelevant() {
         return irrelevant;
@@ -26,31 +30,86 @@ public class Document {
         this.irrelevant = irrelevant;
     }
 
+    /**
+     * Materialize the parsed sentences as Sentence objects.
+     */
     public List<Sentence> getAnnotatedSentences() {
-        return this.annotatedSentences;
+        List<Sentence> annotatedSentences = new ArrayList<Sentence>(getNumSentences());
+        for (int ss = 0; ss < getNumSentences(); ss++) {
+            List<Annotation> annts = new ArrayList<Annotation>();
+            for (int aa = sentAnntOffsets[ss]; aa < sentAnntOffsets[ss + 1]; aa++) {
+                annts.add(new Annotation(anntAnnotators[aa], anntFrames[aa], anntRounds[aa]));
+            }
+            annotatedSentences.add(new Sentence(sentTexts[ss], annts));
+        }
+        return annotatedSentences;
     }
 
+    /**
+     * Parse the raw JSON sentences into flat arrays of sentences and
+     * annotations, and release the JSON tree. Values are read directly from
+     * the JSON tree without going through reflection so that documents can be
+     * parsed concurrently.
+     */
     public void parseAnnotatedSentences() {
-        Gson gson = new Gson();
-        this.annotatedSentences = new ArrayList<Sentence>();
-        for (int ii = 0; ii < sentences.size(); ii++) {
+        int numSents = sentences.size();
+        int numAnnts = 0;
+        for (int ii = 0; ii < numSents; ii++) {
+            numAnnts += sentences.get(ii).getAsJsonArray().get(1).getAsJsonArray().size();
+        }
+
+        this.sentTexts = new String[numSents];
+        this.sentAnntOffsets = new int[numSents + 1];
+        this.anntAnnotators = new String[numAnnts];
+        this.anntFrames = new float[numAnnts];
+        this.anntRounds = new int[numAnnts];
+        int aa = 0;
+        for (int ii = 0; ii < numSents; ii++) {
             JsonArray sentence = sentences.get(ii).getAsJsonArray();
-            String text = gson.fromJson(sentence.get(0), String.class);
+            sentTexts[ii] = sentence.get(0).getAsString();
             JsonArray annotations = sentence.get(1).getAsJsonArray();
-
-            List<Annotation> annts = new ArrayList<Annotation>();
             for (int jj = 0; jj < annotations.size(); jj++) {
                 JsonArray annotation = annotations.get(jj).getAsJsonArray();
-                String annotator = gson.fromJson(annotation.get(0), String.class);
-                double frame = gson.fromJson(annotation.get(1), Double.class);
-                int round = gson.fromJson(annotation.get(2), Integer.class);
-                Annotation annt = new Annotation(annotator, frame, round);
-                annts.add(annt);
+                anntAnnotators[aa] = annotation.get(0).getAsString();
+                anntFrames[aa] = (float) annotation.get(1).getAsDouble();
+                anntRounds[aa] = annotation.get(2).getAsInt();
+                aa++;
             }
-
-            Sentence sent = new Sentence(text, annts);
-            this.annotatedSentences.add(sent);
+            sentAnntOffsets[ii + 1] = aa;
         }
+        this.sentences = null;
+    }
+
+    public int getNumSentences() {
+        return sentTexts.length;
+    }
+
+    public int getNumAnnotations() {
+        return anntFrames.length;
+    }
+
+    public String getSentenceText(int s) {
+        return sentTexts[s];
+    }
+
+    public int getAnnotationStart(int s) {
+        return sentAnntOffsets[s];
+    }
+
+    public int getAnnotationEnd(int s) {
+        return sentAnntOffsets[s + 1];
+    }
+
+    public String getAnnotator(int a) {
+        return anntAnnotators[a];
+    }
+
+    public float getFrame(int a) {
+        return anntFrames[a];
+    }
+
+    public int getRound(int a) {
+        return anntRounds[a];
     }
 
     public JsonArray getSentences() {
@@ -80,7 +139,7 @@ public class Document {
     @Override
     public String toString() {
         return irrelevant
-                + "\n" + annotatedSentences.size()
+                + "\n" + (sentTexts == null ? sentences.size() : sentTexts.length)
                 + "\n" + xml_file
                 + "\n" + filename;
     }
@@ -0,0 +1,142 @@
+package data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Byte offsets of the document records of a formatted text file, stored in a
+ * sidecar file (the data file name followed by .idx). The record of document
+ * d spans bytes [offsets[d], offsets[d + 1]). The index is built by scanning
+ * the bytes of the data file, so it can also be built for existing files.
+ *
+ * @author vietan
+ */
+public class DocumentOffsetIndex {
+
+    public static final String indexExt = ".idx";
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    public static File getIndexFile(File dataFile) {
+        return new File(dataFile.getPath() + indexExt);
+    }
+
+    /**
+     * Build the index of a file with one line per document (e.g., .sentinfo).
+     */
+    public static long[] buildLineIndex(File dataFile) throws Exception {
+        return buildIndex(dataFile, false);
+    }
+
+    /**
+     * Build the index of a raw sentence file, in which each document is its
+     * number of sentences on one line followed by one sentence per line.
+     */
+    public static long[] buildRawSentenceIndex(File dataFile) throws Exception {
+        return buildIndex(dataFile, true);
+    }
+
+    private static long[] buildIndex(File dataFile, boolean counted) throws Exception {
+        long[] offsets = new long[1024];
+        int numDocs = 0;
+        long position = 0;
+        boolean inCountLine = true;
+        int count = 0;
+        int remainingLines = 0;
+
+        InputStream in = new BufferedInputStream(new FileInputStream(dataFile), BUFFER_SIZE);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            for (int ii = 0; ii < n; ii++, position++) {
+                byte b = buffer[ii];
+                if (counted && inCountLine && b != '\n') {
+                    if (b < '0' || b > '9') {
+                        in.close();
+                        throw new RuntimeException("Malformed sentence count at byte "
+                                + position + " of " + dataFile);
+                    }
+                    count = 10 * count + (b - '0');
+                    continue;
+                }
+                if (b != '\n') {
+                    continue;
+                }
+
+                boolean endOfDoc;
+                if (!counted) {
+                    endOfDoc = true;
+                } else if (inCountLine) {
+                    inCountLine = false;
+                    remainingLines = count;
+                    count = 0;
+                    endOfDoc = remainingLines == 0;
+                } else {
+                    remainingLines--;
+                    endOfDoc = remainingLines == 0;
+                }
+                if (endOfDoc) {
+                    if (numDocs + 2 > offsets.length) {
+                        offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+                    }
+                    numDocs++;
+                    offsets[numDocs] = position + 1;
+                    inCountLine = true;
+                }
+            }
+        }
+        in.close();
+        if (offsets[numDocs] != position) {
+            throw new RuntimeException("Incomplete last document in " + dataFile);
+        }
+        return Arrays.copyOf(offsets, numDocs + 1);
+    }
+
+    /**
+     * Write an index: the number of documents followed by the offsets.
+     */
+    public static void write(File indexFile, long[] offsets) throws Exception {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(indexFile)));
+        out.writeInt(offsets.length - 1);
+        for (long offset : offsets) {
+            out.writeLong(offset);
+        }
+        out.close();
+    }
+
+    public static long[] read(File indexFile) throws Exception {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(indexFile)));
+        long[] offsets = new long[in.readInt() + 1];
+        for (int ii = 0; ii < offsets.length; ii++) {
+            offsets[ii] = in.readLong();
+        }
+        in.close();
+        return offsets;
+    }
+
+    /**
+     * Read the index of a data file, building and saving it first if it does
+     * not exist or is older than the data file.
+     *
+     * @param dataFile The data file
+     * @param counted Whether documents are prefixed by their number of lines,
+     * as in raw sentence files
+     */
+    public static long[] load(File dataFile, boolean counted) throws Exception {
+        File indexFile = getIndexFile(dataFile);
+        if (indexFile.exists() && indexFile.lastModified() >= dataFile.lastModified()) {
+            return read(indexFile);
+        }
+        long[] offsets = buildIndex(dataFile, counted);
+        write(indexFile, offsets);
+        return offsets;
+    }
+}
@@ -0,0 +1,452 @@
+package data;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import util.IOUtils;
+
+/**
+ * Pipelined output of the formatted numeric data. Documents are split into
+ * chunks, and worker threads encode each chunk into the records of all
+ * output files (.dat, .docinfo, .sent-dat, .sent-dat.raw, .sentinfo and
+ * .sent-bin). Each output file has its own writer thread, which appends the
+ * encoded chunks in their original order. A writer is fed through a bounded
+ * queue of pending chunks, so only a limited number of encoded chunks are
+ * kept in memory.
+ *
+ * The records are the same as those written one file at a time, except that
+ * the type:count pairs of a document in .dat are in increasing type order.
+ *
+ * In append mode only the documents from a given index on are encoded, and
+ * their records are appended to the existing files.
+ *
+ * @author vietan
+ */
+class FormatPipeline {
+
+    private static final int DAT = 0;
+    private static final int DOC_INFO = 1;
+    private static final int SENT_DAT = 2;
+    private static final int SENT_RAW = 3;
+    private static final int SENT_INFO = 4;
+    // the text files come before the binary sentence file
+    private static final int NUM_TEXT_FILES = 5;
+    private static final int SENT_BIN = 5;
+    private static final int NUM_FILES = 6;
+    private final File[] files;
+    // input
+    private final ArrayList<String> docIds;
+    private final int[][] labels;
+    private final int[][] numerics;
+    private final int[][][] numSents;
+    private final String[][] rawSents;
+    private final CorpusStore store;
+    private final int docTypeCountCutoff;
+    // settings
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+    private int chunkSize = 256;
+    private int firstDoc = 0;
+    private boolean append = false;
+    // output
+    private ArrayList<Integer> processedDocIndices;
+
+    /**
+     * @param outputFolder The output folder
+     * @param formatFilename The format file name
+     * @param docIds The document IDs
+     * @param labels The document labels
+     * @param numerics The numeric documents
+     * @param numSents The numeric sentences of each document
+     * @param rawSents The raw sentences of each document
+     * @param store The columnar store holding the sentence annotations
+     * @param docTypeCountCutoff Minimum number of word types of a document
+     */
+    FormatPipeline(String outputFolder, String formatFilename,
+            ArrayList<String> docIds,
+            int[][] labels,
+            int[][] numerics,
+            int[][][] numSents,
+            String[][] rawSents,
+            CorpusStore store,
+            int docTypeCountCutoff) {
+        this.files = getFiles(outputFolder, formatFilename);
+        this.docIds = docIds;
+        this.labels = labels;
+        this.numerics = numerics;
+        this.numSents = numSents;
+        this.rawSents = rawSents;
+        this.store = store;
+        this.docTypeCountCutoff = docTypeCountCutoff;
+    }
+
+    private static File[] getFiles(String outputFolder, String formatFilename) {
+        File[] files = new File[NUM_FILES];
+        files[DAT] = new File(outputFolder, formatFilename + TextDataset.numDocDataExt);
+        files[DOC_INFO] = new File(outputFolder, formatFilename + TextDataset.docInfoExt);
+        files[SENT_DAT] = new File(outputFolder, formatFilename + TextDataset.numSentDataExt);
+        files[SENT_RAW] = new File(outputFolder, formatFilename + TextDataset.numSentDataExt + ".raw");
+        files[SENT_INFO] = new File(outputFolder, formatFilename + CompuframesDataset.sentInfoExt);
+        files[SENT_BIN] = new File(outputFolder, formatFilename + CompuframesDataset.sentBinExt);
+        return files;
+    }
+
+    /**
+     * Check whether all output files exist and hold the given number of
+     * documents, so that documents can be appended to them.
+     */
+    static boolean hasOutput(String outputFolder, String formatFilename,
+            int numProcessedDocs) throws Exception {
+        File[] files = getFiles(outputFolder, formatFilename);
+        for (File file : files) {
+            if (!file.exists()) {
+                return false;
+            }
+        }
+        return DocumentOffsetIndex.buildLineIndex(files[DOC_INFO]).length - 1 == numProcessedDocs;
+    }
+
+    void setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Only encode the documents from firstDoc on, and append them to the
+     * existing output files.
+     */
+    void setAppend(int firstDoc) {
+        this.firstDoc = firstDoc;
+        this.append = true;
+    }
+
+    /**
+     * Indices of the documents written, i.e., those with at least
+     * docTypeCountCutoff word types.
+     */
+    ArrayList<Integer> getProcessedDocIndices() {
+        return processedDocIndices;
+    }
+
+    File getSentenceInfoFile() {
+        return files[SENT_INFO];
+    }
+
+    File getRawSentenceFile() {
+        return files[SENT_RAW];
+    }
+
+    /**
+     * Encode and write all documents, or those from the first document on in
+     * append mode.
+     */
+    void run() throws Exception {
+        this.processedDocIndices = new ArrayList<Integer>();
+        FutureTask<EncodedChunk> end = new FutureTask<EncodedChunk>(new Callable<EncodedChunk>() {
+            @Override
+            public EncodedChunk call() {
+                return null;
+            }
+        });
+
+        ExecutorService encoders = Executors.newFixedThreadPool(numThreads);
+        ExecutorService writers = Executors.newFixedThreadPool(NUM_FILES);
+        try {
+            ArrayList<BlockingQueue<Future<EncodedChunk>>> queues =
+                    new ArrayList<BlockingQueue<Future<EncodedChunk>>>();
+            ArrayList<Future<Void>> writerResults = new ArrayList<Future<Void>>();
+            for (int ff = 0; ff < NUM_FILES; ff++) {
+                BlockingQueue<Future<EncodedChunk>> queue =
+                        new ArrayBlockingQueue<Future<EncodedChunk>>(2 * numThreads);
+                queues.add(queue);
+                writerResults.add(writers.submit(new WriteTask(ff, queue, end)));
+            }
+
+            for (int start = firstDoc; start < numerics.length; start += chunkSize) {
+                Future<EncodedChunk> chunk = encoders.submit(
+                        new EncodeTask(start, Math.min(start + chunkSize, numerics.length)));
+                for (BlockingQueue<Future<EncodedChunk>> queue : queues) {
+                    queue.put(chunk);
+                }
+            }
+            for (BlockingQueue<Future<EncodedChunk>> queue : queues) {
+                queue.put(end);
+            }
+            for (Future<Void> writerResult : writerResults) {
+                writerResult.get();
+            }
+        } finally {
+            encoders.shutdownNow();
+            writers.shutdownNow();
+        }
+    }
+
+    /**
+     * The records of a chunk of documents for every output file.
+     */
+    private static class EncodedChunk {
+
+        int[] processedDocs;
+        int numProcessedDocs;
+        String[] texts = new String[NUM_TEXT_FILES];
+        SparseSentenceWriter.Block block = new SparseSentenceWriter.Block();
+    }
+
+    /**
+     * Encode the documents in [start, end).
+     */
+    private class EncodeTask implements Callable<EncodedChunk> {
+
+        private final int start;
+        private final int end;
+        // buffers reused across sentences and documents
+        private int[] tokens = new int[64];
+        private int[] types = new int[64];
+        private int[] counts = new int[64];
+        private int[] sentLabels = new int[16];
+
+        EncodeTask(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * Count the word types of a token array by sorting a copy of it.
+         *
+         * @return The number of distinct word types, stored with their counts
+         * in types and counts
+         */
+        private int countTypes(int[] words) {
+            if (words.length > tokens.length) {
+                tokens = new int[Math.max(words.length, 2 * tokens.length)];
+                types = new int[tokens.length];
+                counts = new int[tokens.length];
+            }
+            System.arraycopy(words, 0, tokens, 0, words.length);
+            Arrays.sort(tokens, 0, words.length);
+            int numTypes = 0;
+            int typeStart = 0;
+            for (int ii = 1; ii <= words.length; ii++) {
+                if (ii == words.length || tokens[ii] != tokens[typeStart]) {
+                    types[numTypes] = tokens[typeStart];
+                    counts[numTypes] = ii - typeStart;
+                    numTypes++;
+                    typeStart = ii;
+                }
+            }
+            return numTypes;
+        }
+
+        @Override
+        public EncodedChunk call() {
+            EncodedChunk chunk = new EncodedChunk();
+            chunk.processedDocs = new int[end - start];
+            StringBuilder[] strs = new StringBuilder[NUM_TEXT_FILES];
+            for (int ff = 0; ff < NUM_TEXT_FILES; ff++) {
+                strs[ff] = new StringBuilder();
+            }
+
+            for (int d = start; d < end; d++) {
+                // numeric document
+                int numTypes = countTypes(numerics[d]);
+                if (numTypes < docTypeCountCutoff) {
+                    continue;
+                }
+                chunk.processedDocs[chunk.numProcessedDocs++] = d;
+                StringBuilder str = strs[DAT];
+                str.append(numTypes);
+                for (int ii = 0; ii < numTypes; ii++) {
+                    str.append(' ').append(types[ii]).append(':').append(counts[ii]);
+                }
+                str.append('\n');
+
+                // document info
+                str = strs[DOC_INFO];
+                str.append(docIds.get(d));
+                for (int label : labels[d]) {
+                    str.append('\t').append(label);
+                }
+                str.append('\n');
+
+                encodeSentences(d, strs, chunk.block);
+            }
+
+            for (int ff = 0; ff < NUM_TEXT_FILES; ff++) {
+                chunk.texts[ff] = strs[ff].toString();
+            }
+            return chunk;
+        }
+
+        /**
+         * Encode the non-empty sentences of a document.
+         */
+        private void encodeSentences(int d, StringBuilder[] strs,
+                SparseSentenceWriter.Block block) {
+            int numDocSents = 0;
+            for (int s = 0; s < numSents[d].length; s++) {
+                if (numSents[d][s].length > 0) {
+                    numDocSents++;
+                }
+            }
+            block.startDocument(numDocSents);
+            strs[SENT_RAW].append(numDocSents).append('\n');
+
+            int sentCount = 0;
+            for (int s = 0; s < numSents[d].length; s++) {
+                if (numSents[d][s].length == 0) {
+                    continue;
+                }
+                int numTypes = countTypes(numSents[d][s]);
+
+                // sentence labels
+                int sentIdx = store.getSentenceIndex(d, s);
+                int anntStart = store.getAnnotationStart(sentIdx);
+                int numLabels = store.getAnnotationEnd(sentIdx) - anntStart;
+                if (numLabels > sentLabels.length) {
+                    sentLabels = new int[Math.max(numLabels, 2 * sentLabels.length)];
+                }
+                for (int ii = 0; ii < numLabels; ii++) {
+                    sentLabels[ii] = store.getFrameLabel(anntStart + ii);
+                }
+
+                // numeric sentence
+                StringBuilder str = strs[SENT_DAT];
+                if (sentCount > 0) {
+                    str.append('\t');
+                }
+                for (int ii = 0; ii < numTypes; ii++) {
+                    if (ii > 0) {
+                        str.append(' ');
+                    }
+                    str.append(types[ii]).append(':').append(counts[ii]);
+                }
+
+                // raw sentence
+                appendRawSentence(strs[SENT_RAW], rawSents[d][s]);
+
+                // sentence labels, one field per sentence
+                str = strs[SENT_INFO];
+                if (sentCount > 0) {
+                    str.append('\t');
+                }
+                for (int ii = 0; ii < numLabels; ii++) {
+                    if (ii > 0) {
+                        str.append(' ');
+                    }
+                    str.append(sentLabels[ii]);
+                }
+
+                block.writeSentence(types, counts, numTypes, sentLabels, numLabels);
+                sentCount++;
+            }
+            strs[SENT_DAT].append('\n');
+            strs[SENT_INFO].append('\n');
+        }
+    }
+
+    /**
+     * Append a raw sentence on one line, without its leading and trailing
+     * whitespace and with its line breaks replaced by spaces.
+     */
+    private static void appendRawSentence(StringBuilder str, String sent) {
+        int start = 0;
+        int end = sent.length();
+        while (start < end && sent.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && sent.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        for (int ii = start; ii < end; ii++) {
+            char c = sent.charAt(ii);
+            str.append(c == '\n' ? ' ' : c);
+        }
+        str.append('\n');
+    }
+
+    /**
+     * Write the encoded chunks to one output file in order. On failure the
+     * task keeps draining its queue so that the producer never blocks, and
+     * rethrows the failure at the end.
+     */
+    private class WriteTask implements Callable<Void> {
+
+        private final int fileIdx;
+        private final BlockingQueue<Future<EncodedChunk>> queue;
+        private final Future<EncodedChunk> end;
+
+        WriteTask(int fileIdx, BlockingQueue<Future<EncodedChunk>> queue,
+                Future<EncodedChunk> end) {
+            this.fileIdx = fileIdx;
+            this.queue = queue;
+            this.end = end;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            Exception error = null;
+            BufferedWriter writer = null;
+            SparseSentenceWriter binWriter = null;
+            try {
+                if (fileIdx == SENT_BIN) {
+                    binWriter = new SparseSentenceWriter(files[fileIdx], append);
+                } else if (append) {
+                    writer = IOUtils.getBufferedWriterAppend(files[fileIdx]);
+                } else {
+                    writer = IOUtils.getBufferedWriter(files[fileIdx]);
+                }
+            } catch (Exception e) {
+                error = e;
+            }
+
+            Future<EncodedChunk> next;
+            while ((next = queue.take()) != end) {
+                if (error != null) {
+                    continue;
+                }
+                try {
+                    EncodedChunk chunk = next.get();
+                    if (fileIdx == SENT_BIN) {
+                        binWriter.write(chunk.block);
+                    } else {
+                        writer.write(chunk.texts[fileIdx]);
+                    }
+                    if (fileIdx == DAT) {
+                        for (int ii = 0; ii < chunk.numProcessedDocs; ii++) {
+                            processedDocIndices.add(chunk.processedDocs[ii]);
+                        }
+                    }
+                } catch (Exception e) {
+                    error = e;
+                }
+            }
+
+            try {
+                if (writer != null) {
+                    writer.close();
+                }
+                if (binWriter != null) {
+                    binWriter.close();
+                }
+            } catch (Exception e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package data;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import util.IOUtils;
+
+/**
+ * State kept between incremental preprocessing runs, in a subfolder of the
+ * formatted folder: the accumulated corpus, the tokens and n-gram counts of
+ * its documents, and a manifest with, for each document, hashes of its
+ * sentence texts, of its content (texts and annotations) and of its numeric
+ * sentences, and whether it was written to the formatted files.
+ *
+ * The manifest is written last and removed first, so that a state which was
+ * only partially saved is not loaded.
+ *
+ * @author vietan
+ */
+class IncrementalState {
+
+    static final String folderName = "incremental";
+    private static final int VERSION = 1;
+    private static final String settingsFile = "settings.txt";
+    private static final String corpusFile = "corpus" + CorpusCache.cacheExt;
+    private static final String tokenFile = "tokens.bin";
+    private static final String countFile = "counts.bin";
+    private static final String manifestFile = "manifest.txt";
+    ArrayList<String> docIds = new ArrayList<String>();
+    CorpusStore store = new CorpusStore();
+    TokenCache tokens = new TokenCache();
+    NgramCounts counts = new NgramCounts();
+    ArrayList<String> textHashes = new ArrayList<String>();
+    ArrayList<String> contentHashes = new ArrayList<String>();
+    ArrayList<String> encodingHashes = new ArrayList<String>();
+    ArrayList<Boolean> processed = new ArrayList<Boolean>();
+
+    int getNumDocuments() {
+        return docIds.size();
+    }
+
+    int getNumProcessedDocuments() {
+        int count = 0;
+        for (boolean p : processed) {
+            if (p) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    HashMap<String, Integer> getDocumentIndices() {
+        HashMap<String, Integer> docIndices = new HashMap<String, Integer>();
+        for (int d = 0; d < docIds.size(); d++) {
+            docIndices.put(docIds.get(d), d);
+        }
+        return docIndices;
+    }
+
+    /**
+     * Load the state saved in a folder, or return an empty state if there is
+     * none.
+     *
+     * @param folder The state folder
+     * @param settings The settings the state must have been created with
+     */
+    static IncrementalState load(File folder, String settings) throws Exception {
+        IncrementalState state = new IncrementalState();
+        if (!new File(folder, manifestFile).exists()) {
+            state.store.trim();
+            return state;
+        }
+
+        String savedSettings = readSettings(new File(folder, settingsFile));
+        if (!savedSettings.equals(getVersionedSettings(settings))) {
+            throw new RuntimeException("The incremental state in " + folder
+                    + " was created with different settings:\n" + savedSettings
+                    + "\nDelete the folder to preprocess from scratch.");
+        }
+        state.store = CorpusCache.read(new File(folder, corpusFile),
+                getKey(settings), state.docIds);
+        if (state.store == null) {
+            throw new RuntimeException("Invalid corpus snapshot in " + folder);
+        }
+        state.tokens = TokenCache.read(new File(folder, tokenFile));
+        state.counts = NgramCounts.read(new File(folder, countFile));
+
+        BufferedReader reader = IOUtils.getBufferedReader(new File(folder, manifestFile));
+        String line;
+        int d = 0;
+        while ((line = reader.readLine()) != null) {
+            String[] sline = line.split("\t");
+            if (sline.length != 5 || d >= state.docIds.size()
+                    || !sline[0].equals(state.docIds.get(d))) {
+                reader.close();
+                throw new RuntimeException("Manifest in " + folder
+                        + " does not match the corpus snapshot at line " + (d + 1));
+            }
+            state.textHashes.add(sline[1]);
+            state.contentHashes.add(sline[2]);
+            state.encodingHashes.add(sline[3]);
+            state.processed.add(sline[4].equals("1"));
+            d++;
+        }
+        reader.close();
+        if (d != state.docIds.size()) {
+            throw new RuntimeException("Manifest in " + folder + " has " + d
+                    + " documents while the corpus snapshot has " + state.docIds.size());
+        }
+        return state;
+    }
+
+    void save(File folder, String settings) throws Exception {
+        IOUtils.createFolder(folder);
+        File manifest = new File(folder, manifestFile);
+        if (manifest.exists() && !manifest.delete()) {
+            throw new RuntimeException("Cannot delete " + manifest);
+        }
+
+        BufferedWriter writer = IOUtils.getBufferedWriter(new File(folder, settingsFile));
+        writer.write(getVersionedSettings(settings));
+        writer.close();
+        CorpusCache.write(new File(folder, corpusFile), getKey(settings), docIds, store);
+        tokens.write(new File(folder, tokenFile));
+        counts.write(new File(folder, countFile));
+
+        writer = IOUtils.getBufferedWriter(manifest);
+        for (int d = 0; d < docIds.size(); d++) {
+            writer.write(docIds.get(d)
+                    + "\t" + textHashes.get(d)
+                    + "\t" + contentHashes.get(d)
+                    + "\t" + encodingHashes.get(d)
+                    + "\t" + (processed.get(d) ? "1" : "0")
+                    + "\n");
+        }
+        writer.close();
+    }
+
+    private static String getVersionedSettings(String settings) {
+        return "version:\t" + VERSION + "\n" + settings;
+    }
+
+    private static String getKey(String settings) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        md.update(getVersionedSettings(settings).getBytes("UTF-8"));
+        return CorpusCache.toHex(md.digest());
+    }
+
+    private static String readSettings(File file) throws Exception {
+        StringBuilder str = new StringBuilder();
+        BufferedReader reader = IOUtils.getBufferedReader(file);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (str.length() > 0) {
+                str.append("\n");
+            }
+            str.append(line);
+        }
+        reader.close();
+        return str.toString();
+    }
+
+    /**
+     * Hash of the sentence texts of a document.
+     */
+    static String getTextHash(CorpusStore store, int d) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        updateTexts(md, store, d);
+        return CorpusCache.toHex(md.digest());
+    }
+
+    /**
+     * Hash of the sentence texts and annotations of a document.
+     */
+    static String getContentHash(CorpusStore store, int d) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        updateTexts(md, store, d);
+        for (int s = 0; s < store.getNumSentences(d); s++) {
+            int sentIdx = store.getSentenceIndex(d, s);
+            md.update((byte) 0);
+            for (int aa = store.getAnnotationStart(sentIdx); aa < store.getAnnotationEnd(sentIdx); aa++) {
+                md.update((store.getAnnotator(aa) + "\t" + Float.floatToIntBits(store.getFrame(aa))
+                        + "\t" + store.getRound(aa) + "\n").getBytes("UTF-8"));
+            }
+        }
+        return CorpusCache.toHex(md.digest());
+    }
+
+    private static void updateTexts(MessageDigest md, CorpusStore store, int d) throws Exception {
+        for (int s = 0; s < store.getNumSentences(d); s++) {
+            md.update(store.getSentenceText(store.getSentenceIndex(d, s)).getBytes("UTF-8"));
+            md.update((byte) 0);
+        }
+    }
+
+    /**
+     * Hash of the numeric sentences of a document.
+     */
+    static String getEncodingHash(int[][] numSents) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        for (int[] sent : numSents) {
+            updateInt(md, sent.length);
+            for (int w : sent) {
+                updateInt(md, w);
+            }
+        }
+        return CorpusCache.toHex(md.digest());
+    }
+
+    private static void updateInt(MessageDigest md, int value) {
+        md.update((byte) (value >>> 24));
+        md.update((byte) (value >>> 16));
+        md.update((byte) (value >>> 8));
+        md.update((byte) value);
+    }
+}
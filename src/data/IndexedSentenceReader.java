@@ -0,0 +1,141 @@
+package data;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import util.IOUtils;
+
+/**
+ * Random-access reader of the sentence labels (.sentinfo) and raw sentences
+ * (.sent-dat.raw) of a formatted folder. Only the document IDs and the offset
+ * indices are loaded up front; the sentences of a document are read with a
+ * single seek in each file when requested.
+ *
+ * @author vietan
+ */
+public class IndexedSentenceReader {
+
+    private final String[] docIds;
+    private final HashMap<String, Integer> docIndices;
+    private final RandomAccessFile sentInfoFile;
+    private final long[] sentInfoOffsets;
+    private final RandomAccessFile rawSentFile;
+    private final long[] rawSentOffsets;
+
+    /**
+     * @param folder The formatted folder
+     * @param formatFilename The format file name (e.g., compuframes)
+     */
+    public IndexedSentenceReader(String folder, String formatFilename) throws Exception {
+        ArrayList<String> docIdList = new ArrayList<String>();
+        BufferedReader reader = IOUtils.getBufferedReader(
+                new File(folder, formatFilename + TextDataset.docInfoExt));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            docIdList.add(line.split("\t")[0]);
+        }
+        reader.close();
+        this.docIds = docIdList.toArray(new String[docIdList.size()]);
+        this.docIndices = new HashMap<String, Integer>();
+        for (int d = 0; d < docIds.length; d++) {
+            this.docIndices.put(docIds[d], d);
+        }
+
+        File infoFile = new File(folder, formatFilename + CompuframesDataset.sentInfoExt);
+        this.sentInfoOffsets = DocumentOffsetIndex.load(infoFile, false);
+        this.sentInfoFile = new RandomAccessFile(infoFile, "r");
+        checkNumDocuments(infoFile, sentInfoOffsets);
+
+        File rawFile = new File(folder, formatFilename + TextDataset.numSentDataExt + ".raw");
+        if (rawFile.exists()) {
+            this.rawSentOffsets = DocumentOffsetIndex.load(rawFile, true);
+            this.rawSentFile = new RandomAccessFile(rawFile, "r");
+            checkNumDocuments(rawFile, rawSentOffsets);
+        } else {
+            this.rawSentOffsets = null;
+            this.rawSentFile = null;
+        }
+    }
+
+    private void checkNumDocuments(File file, long[] offsets) {
+        if (offsets.length - 1 != docIds.length) {
+            throw new RuntimeException(file + " has " + (offsets.length - 1)
+                    + " documents while there are " + docIds.length + " document IDs");
+        }
+    }
+
+    public int getNumDocuments() {
+        return docIds.length;
+    }
+
+    public String getDocumentId(int d) {
+        return docIds[d];
+    }
+
+    /**
+     * Get the index of a document, or -1 if the document is not in the
+     * formatted data.
+     */
+    public int getDocumentIndex(String docId) {
+        Integer idx = docIndices.get(docId);
+        if (idx == null) {
+            return -1;
+        }
+        return idx;
+    }
+
+    private static String readRecord(RandomAccessFile file, long[] offsets, int d)
+            throws Exception {
+        byte[] bytes = new byte[(int) (offsets[d + 1] - offsets[d])];
+        file.seek(offsets[d]);
+        file.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Get the labels of each sentence of a document.
+     */
+    public int[][] getSentenceLabels(int d) throws Exception {
+        String line = readRecord(sentInfoFile, sentInfoOffsets, d);
+        return CompuframesDataset.parseSentenceLabels(line.substring(0, line.length() - 1));
+    }
+
+    public int[][] getSentenceLabels(String docId) throws Exception {
+        return getSentenceLabels(getDocumentIndexOrFail(docId));
+    }
+
+    /**
+     * Get the raw text of each sentence of a document.
+     */
+    public String[] getRawSentences(int d) throws Exception {
+        if (rawSentFile == null) {
+            throw new RuntimeException("No raw sentence file");
+        }
+        String record = readRecord(rawSentFile, rawSentOffsets, d);
+        String[] lines = record.split("\n", -1);
+        String[] rawSents = new String[Integer.parseInt(lines[0])];
+        System.arraycopy(lines, 1, rawSents, 0, rawSents.length);
+        return rawSents;
+    }
+
+    public String[] getRawSentences(String docId) throws Exception {
+        return getRawSentences(getDocumentIndexOrFail(docId));
+    }
+
+    private int getDocumentIndexOrFail(String docId) {
+        int d = getDocumentIndex(docId);
+        if (d < 0) {
+            throw new RuntimeException("Document " + docId + " not found");
+        }
+        return d;
+    }
+
+    public void close() throws Exception {
+        sentInfoFile.close();
+        if (rawSentFile != null) {
+            rawSentFile.close();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package data;
+
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Big-endian reader over a memory-mapped file. The file is mapped one window
+ * at a time since a single mapping is limited to 2GB.
+ *
+ * @author vietan
+ */
+class MappedInput {
+
+    private static final int WINDOW_SIZE = 1 << 30;
+    private final FileChannel channel;
+    private final long size;
+    private long windowStart;
+    private MappedByteBuffer buffer;
+    private byte[] scratch = new byte[1024];
+
+    MappedInput(FileChannel channel) throws Exception {
+        this.channel = channel;
+        this.size = channel.size();
+        map(0);
+    }
+
+    private void map(long position) throws Exception {
+        this.windowStart = position;
+        this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                Math.min(WINDOW_SIZE, size - position));
+    }
+
+    /**
+     * Make sure that the next n bytes are in the current window.
+     */
+    private void ensure(int n) throws Exception {
+        if (buffer.remaining() < n) {
+            long position = getPosition();
+            if (position + n > size) {
+                throw new RuntimeException("Unexpected end of file");
+            }
+            map(position);
+        }
+    }
+
+    long size() {
+        return size;
+    }
+
+    long getPosition() {
+        return windowStart + buffer.position();
+    }
+
+    /**
+     * Move to an absolute position in the file.
+     */
+    void seek(long position) throws Exception {
+        if (position < 0 || position > size) {
+            throw new RuntimeException("Position " + position + " is out of range");
+        }
+        if (position >= windowStart && position <= windowStart + buffer.limit()) {
+            buffer.position((int) (position - windowStart));
+        } else {
+            map(position);
+        }
+    }
+
+    int readInt() throws Exception {
+        ensure(4);
+        return buffer.getInt();
+    }
+
+    long readLong() throws Exception {
+        ensure(8);
+        return buffer.getLong();
+    }
+
+    /**
+     * Read an unsigned variable-length integer (7 bits per byte, least
+     * significant group first).
+     */
+    int readVarInt() throws Exception {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            ensure(1);
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new RuntimeException("Malformed variable-length integer");
+    }
+
+    String readString() throws Exception {
+        int length = readInt();
+        if (length > scratch.length) {
+            scratch = new byte[Math.max(length, 2 * scratch.length)];
+        }
+        readBytes(scratch, length);
+        return new String(scratch, 0, length, "UTF-8");
+    }
+
+    void readBytes(byte[] dest, int length) throws Exception {
+        int offset = 0;
+        while (offset < length) {
+            ensure(1);
+            int n = Math.min(buffer.remaining(), length - offset);
+            buffer.get(dest, offset, n);
+            offset += n;
+        }
+    }
+
+    void readInts(int[] dest) throws Exception {
+        int offset = 0;
+        while (offset < dest.length) {
+            ensure(4);
+            int n = Math.min(buffer.remaining() / 4, dest.length - offset);
+            buffer.asIntBuffer().get(dest, offset, n);
+            buffer.position(buffer.position() + 4 * n);
+            offset += n;
+        }
+    }
+
+    void readLongs(long[] dest) throws Exception {
+        int offset = 0;
+        while (offset < dest.length) {
+            ensure(8);
+            int n = Math.min(buffer.remaining() / 8, dest.length - offset);
+            buffer.asLongBuffer().get(dest, offset, n);
+            buffer.position(buffer.position() + 8 * n);
+            offset += n;
+        }
+    }
+
+    void readShorts(short[] dest) throws Exception {
+        int offset = 0;
+        while (offset < dest.length) {
+            ensure(2);
+            int n = Math.min(buffer.remaining() / 2, dest.length - offset);
+            buffer.asShortBuffer().get(dest, offset, n);
+            buffer.position(buffer.position() + 2 * n);
+            offset += n;
+        }
+    }
+
+    void readFloats(float[] dest) throws Exception {
+        int offset = 0;
+        while (offset < dest.length) {
+            ensure(4);
+            int n = Math.min(buffer.remaining() / 4, dest.length - offset);
+            buffer.asFloatBuffer().get(dest, offset, n);
+            buffer.position(buffer.position() + 4 * n);
+            offset += n;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package data;
+
+import java.util.ArrayList;
+import java.util.TreeSet;
+import mulan.data.LabelNodeImpl;
+import mulan.data.LabelsMetaData;
+import mulan.data.LabelsMetaDataImpl;
+import mulan.data.MultiLabelInstances;
+import weka.core.Attribute;
+import weka.core.Instances;
+import weka.core.SparseInstance;
+
+/**
+ * Build Mulan multi-label instances directly from the numeric documents and
+ * labels of a LabelTextDataset, without writing and parsing an ARFF file.
+ * The instances are the same as those read back from the ARFF file written by
+ * LabelTextDataset.outputArffFile and the XML label file of the same labels:
+ * one numeric attribute "voc_<word>" per word holding its count in the
+ * document, followed by one binary attribute "label_<label>" per label.
+ *
+ * @author vietan
+ */
+public class MulanInstances {
+
+    public static final String wordAttributePrefix = "voc_";
+    public static final String labelAttributePrefix = "label_";
+
+    /**
+     * Create the multi-label instances of a dataset. The instances of a
+     * SparseLabelTextDataset read the word counts from its matrix.
+     *
+     * @param data The dataset, whose formatted data have been loaded
+     */
+    public static MultiLabelInstances create(LabelTextDataset data) throws Exception {
+        return create(data, null);
+    }
+
+    /**
+     * Create the multi-label instances of a dataset, sharing the attributes
+     * and label metadata of other instances with the same word and label
+     * vocabularies (e.g., the training data of the same fold).
+     *
+     * @param data The dataset, whose formatted data have been loaded
+     * @param header Instances whose attributes are shared, or null
+     */
+    public static MultiLabelInstances create(LabelTextDataset data,
+            MultiLabelInstances header) throws Exception {
+        if (data instanceof SparseLabelTextDataset) {
+            SparseDocTermMatrix matrix = ((SparseLabelTextDataset) data).getMatrix();
+            Instances instances = createDataset(data.getName(), data.getWordVocab(),
+                    data.getLabelVocab(), header, matrix.getNumRows());
+            int numAttributes = instances.numAttributes();
+            int[][] labels = data.getLabels();
+            for (int d = 0; d < matrix.getNumRows(); d++) {
+                instances.add(new DocTermInstance(matrix, d, getSortedLabels(labels[d]),
+                        numAttributes));
+            }
+            return new MultiLabelInstances(instances, getLabelsMetaData(data.getLabelVocab(), header));
+        }
+        return create(data.getName(), data.getWordVocab(), data.getLabelVocab(),
+                data.getWords(), data.getLabels());
+    }
+
+    /**
+     * Create an empty dataset, with the attributes of a header if given.
+     */
+    private static Instances createDataset(String name, ArrayList<String> wordVocab,
+            ArrayList<String> labelVocab, MultiLabelInstances header, int capacity) {
+        if (header == null) {
+            return new Instances(name, createAttributes(wordVocab, labelVocab), capacity);
+        }
+        Instances dataset = header.getDataSet();
+        if (dataset.numAttributes() != wordVocab.size() + labelVocab.size()
+                || header.getNumLabels() != labelVocab.size()) {
+            throw new RuntimeException("Header with " + dataset.numAttributes()
+                    + " attributes does not match " + wordVocab.size() + " words and "
+                    + labelVocab.size() + " labels");
+        }
+        Instances instances = new Instances(dataset, capacity);
+        instances.setRelationName(name);
+        return instances;
+    }
+
+    private static LabelsMetaData getLabelsMetaData(ArrayList<String> labelVocab,
+            MultiLabelInstances header) {
+        if (header == null) {
+            return createLabelsMetaData(labelVocab);
+        }
+        return header.getLabelsMetaData();
+    }
+
+    /**
+     * Get the distinct labels of a document in increasing order, reusing the
+     * given array if it already is.
+     */
+    private static int[] getSortedLabels(int[] docLabels) {
+        for (int ii = 1; ii < docLabels.length; ii++) {
+            if (docLabels[ii - 1] >= docLabels[ii]) {
+                TreeSet<Integer> labelSet = new TreeSet<Integer>();
+                for (int ll : docLabels) {
+                    labelSet.add(ll);
+                }
+                int[] sorted = new int[labelSet.size()];
+                int jj = 0;
+                for (int ll : labelSet) {
+                    sorted[jj++] = ll;
+                }
+                return sorted;
+            }
+        }
+        return docLabels;
+    }
+
+    /**
+     * Create multi-label instances.
+     *
+     * @param name The relation name
+     * @param wordVocab The word vocabulary
+     * @param labelVocab The label vocabulary
+     * @param words The word indices of each document
+     * @param labels The label indices of each document
+     */
+    public static MultiLabelInstances create(String name,
+            ArrayList<String> wordVocab, ArrayList<String> labelVocab,
+            int[][] words, int[][] labels) throws Exception {
+        Instances instances = new Instances(name,
+                createAttributes(wordVocab, labelVocab), words.length);
+        int numWords = wordVocab.size();
+        int numAttributes = numWords + labelVocab.size();
+        int[] counts = new int[numWords];
+        for (int d = 0; d < words.length; d++) {
+            // sparse values in increasing attribute order
+            int numValues = 0;
+            for (int w : words[d]) {
+                if (counts[w]++ == 0) {
+                    numValues++;
+                }
+            }
+            boolean[] docLabels = new boolean[labelVocab.size()];
+            for (int ll : labels[d]) {
+                if (!docLabels[ll]) {
+                    docLabels[ll] = true;
+                    numValues++;
+                }
+            }
+            int[] indices = new int[numValues];
+            double[] values = new double[numValues];
+            int ii = 0;
+            for (int w = 0; w < numWords && ii < numValues; w++) {
+                if (counts[w] > 0) {
+                    indices[ii] = w;
+                    values[ii++] = counts[w];
+                    counts[w] = 0;
+                }
+            }
+            for (int ll = 0; ll < docLabels.length; ll++) {
+                if (docLabels[ll]) {
+                    indices[ii] = numWords + ll;
+                    values[ii++] = 1.0;
+                }
+            }
+            instances.add(new SparseInstance(1.0, values, indices, numAttributes));
+        }
+        return new MultiLabelInstances(instances, createLabelsMetaData(labelVocab));
+    }
+
+    private static ArrayList<Attribute> createAttributes(
+            ArrayList<String> wordVocab, ArrayList<String> labelVocab) {
+        ArrayList<Attribute> attributes = new ArrayList<Attribute>(
+                wordVocab.size() + labelVocab.size());
+        for (String word : wordVocab) {
+            attributes.add(new Attribute(wordAttributePrefix + word));
+        }
+        ArrayList<String> labelValues = new ArrayList<String>();
+        labelValues.add("0");
+        labelValues.add("1");
+        for (String label : labelVocab) {
+            attributes.add(new Attribute(labelAttributePrefix + label, labelValues));
+        }
+        return attributes;
+    }
+
+    private static LabelsMetaDataImpl createLabelsMetaData(ArrayList<String> labelVocab) {
+        LabelsMetaDataImpl metaData = new LabelsMetaDataImpl();
+        for (String label : labelVocab) {
+            metaData.addRootNode(new LabelNodeImpl(labelAttributePrefix + label));
+        }
+        return metaData;
+    }
+}
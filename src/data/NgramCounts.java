@@ -0,0 +1,186 @@
+package data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import org.apache.commons.math3.stat.inference.ChiSquareTest;
+
+/**
+ * Raw unigram and bigram counts of a set of tokenized documents, as used by
+ * CorpusProcessor to select bigrams and unigrams. Counts are additive over
+ * documents, so documents can be added and removed and count tables of
+ * disjoint sets of documents can be merged.
+ *
+ * @author vietan
+ */
+public class NgramCounts {
+
+    public static final int MAGIC = 0x43464e43; // CFNC
+    public static final int VERSION = 1;
+    private HashMap<String, Integer> termFreq = new HashMap<String, Integer>();
+    private HashMap<String, Integer> leftFreq = new HashMap<String, Integer>();
+    private HashMap<String, Integer> rightFreq = new HashMap<String, Integer>();
+    private HashMap<String, Integer> bigramFreq = new HashMap<String, Integer>();
+    private long totalBigram;
+
+    /**
+     * Add the counts of a tokenized document. Empty tokens are those removed
+     * by normalization; they are skipped and break bigrams.
+     *
+     * @param tokens The normalized tokens of each sentence
+     */
+    public void add(String[][] tokens) {
+        update(tokens, 1);
+    }
+
+    /**
+     * Remove the counts of a tokenized document previously added.
+     */
+    public void remove(String[][] tokens) {
+        update(tokens, -1);
+    }
+
+    private void update(String[][] tokens, int delta) {
+        for (String[] sent : tokens) {
+            for (int ii = 0; ii < sent.length; ii++) {
+                if (sent[ii].isEmpty()) {
+                    continue;
+                }
+                increment(termFreq, sent[ii], delta);
+                if (ii == 0 || sent[ii - 1].isEmpty()) {
+                    continue;
+                }
+                increment(leftFreq, sent[ii - 1], delta);
+                increment(rightFreq, sent[ii], delta);
+                increment(bigramFreq, getBigramString(sent[ii - 1], sent[ii]), delta);
+                totalBigram += delta;
+            }
+        }
+    }
+
+    /**
+     * Merge the counts of another table into this one.
+     */
+    public void add(NgramCounts other) {
+        merge(termFreq, other.termFreq);
+        merge(leftFreq, other.leftFreq);
+        merge(rightFreq, other.rightFreq);
+        merge(bigramFreq, other.bigramFreq);
+        totalBigram += other.totalBigram;
+    }
+
+    private static void merge(HashMap<String, Integer> counts, HashMap<String, Integer> other) {
+        for (Map.Entry<String, Integer> entry : other.entrySet()) {
+            increment(counts, entry.getKey(), entry.getValue());
+        }
+    }
+
+    private static void increment(HashMap<String, Integer> counts, String key, int delta) {
+        Integer count = counts.get(key);
+        int newCount = (count == null ? 0 : count) + delta;
+        if (newCount == 0) {
+            counts.remove(key);
+        } else {
+            counts.put(key, newCount);
+        }
+    }
+
+    public static String getBigramString(String left, String right) {
+        return left + "_" + right;
+    }
+
+    public int getTermFrequency(String term) {
+        Integer count = termFreq.get(term);
+        return count == null ? 0 : count;
+    }
+
+    public int getNumUnigrams() {
+        return termFreq.size();
+    }
+
+    public int getNumBigrams() {
+        return bigramFreq.size();
+    }
+
+    /**
+     * Select the bigrams that occur at least countCutoff times and whose
+     * chi-square score is at least scoreCutoff.
+     */
+    public HashSet<String> getBigrams(int countCutoff, double scoreCutoff) {
+        ChiSquareTest chiSquareTest = new ChiSquareTest();
+        HashSet<String> bigrams = new HashSet<String>();
+        long[][] table = new long[2][2];
+        for (Map.Entry<String, Integer> entry : bigramFreq.entrySet()) {
+            if (entry.getValue() < countCutoff) {
+                continue;
+            }
+            String bigram = entry.getKey();
+            int sep = bigram.indexOf('_');
+            table[0][0] = entry.getValue();
+            table[1][0] = leftFreq.get(bigram.substring(0, sep)) - table[0][0];
+            table[0][1] = rightFreq.get(bigram.substring(sep + 1)) - table[0][0];
+            table[1][1] = totalBigram - table[0][0] - table[0][1] - table[1][0];
+            if (chiSquareTest.chiSquare(table) >= scoreCutoff) {
+                bigrams.add(bigram);
+            }
+        }
+        return bigrams;
+    }
+
+    public void write(File file) throws Exception {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(totalBigram);
+        writeCounts(out, termFreq);
+        writeCounts(out, leftFreq);
+        writeCounts(out, rightFreq);
+        writeCounts(out, bigramFreq);
+        out.close();
+    }
+
+    private static void writeCounts(DataOutputStream out, HashMap<String, Integer> counts)
+            throws Exception {
+        out.writeInt(counts.size());
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeInt(entry.getValue());
+        }
+    }
+
+    public static NgramCounts read(File file) throws Exception {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file), 1 << 16));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new RuntimeException("Unsupported count file " + file);
+            }
+            NgramCounts counts = new NgramCounts();
+            counts.totalBigram = in.readLong();
+            counts.termFreq = readCounts(in);
+            counts.leftFreq = readCounts(in);
+            counts.rightFreq = readCounts(in);
+            counts.bigramFreq = readCounts(in);
+            return counts;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static HashMap<String, Integer> readCounts(DataInputStream in) throws Exception {
+        int size = in.readInt();
+        HashMap<String, Integer> counts = new HashMap<String, Integer>(2 * size);
+        for (int ii = 0; ii < size; ii++) {
+            counts.put(in.readUTF(), in.readInt());
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,263 @@
+package data;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import util.IOUtils;
+
+/**
+ * Document-term count matrix in compressed sparse row (CSR) format: the
+ * non-zero entries of row r are at positions rowOffsets[r] to
+ * rowOffsets[r + 1] - 1 of the columns (word indices, in increasing order)
+ * and counts arrays. Rows are documents, or sentences when reading a
+ * .sent-dat file.
+ *
+ * In the formatted files, the word:count pairs of a row are not necessarily
+ * sorted. The order of the pairs in the file is kept so that tokens can be
+ * expanded in the same order as when TextDataset reads the file.
+ *
+ * The matrix is serializable so that learners keeping DocTermInstances of
+ * their training data (e.g., Mulan's BinaryRelevance) can be copied.
+ *
+ * @author vietan
+ */
+public class SparseDocTermMatrix implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private final int numColumns;
+    private final int[] rowOffsets;
+    private final int[] columns;
+    private final int[] counts;
+    // position, within its row, of each entry in the file order; null if the
+    // entries of every row are already in increasing word order in the file
+    private final int[] fileOrder;
+
+    private SparseDocTermMatrix(int numColumns, int[] rowOffsets, int[] columns,
+            int[] counts, int[] fileOrder) {
+        this.numColumns = numColumns;
+        this.rowOffsets = rowOffsets;
+        this.columns = columns;
+        this.counts = counts;
+        this.fileOrder = fileOrder;
+    }
+
+    public int getNumRows() {
+        return rowOffsets.length - 1;
+    }
+
+    public int getNumColumns() {
+        return numColumns;
+    }
+
+    public int getNumNonZeros() {
+        return rowOffsets[rowOffsets.length - 1];
+    }
+
+    /**
+     * Get the position of the first entry of a row.
+     */
+    public int getRowStart(int row) {
+        return rowOffsets[row];
+    }
+
+    /**
+     * Get the position after the last entry of a row.
+     */
+    public int getRowEnd(int row) {
+        return rowOffsets[row + 1];
+    }
+
+    public int getColumn(int position) {
+        return columns[position];
+    }
+
+    public int getCount(int position) {
+        return counts[position];
+    }
+
+    /**
+     * Get the position of the ii-th entry of a row in the file order.
+     */
+    public int getFilePosition(int row, int ii) {
+        int start = rowOffsets[row];
+        return fileOrder == null ? start + ii : start + fileOrder[start + ii];
+    }
+
+    /**
+     * Get the number of tokens of a row.
+     */
+    public int getRowLength(int row) {
+        int length = 0;
+        for (int p = rowOffsets[row]; p < rowOffsets[row + 1]; p++) {
+            length += counts[p];
+        }
+        return length;
+    }
+
+    /**
+     * Create the tokens of a row, with the word types in the file order.
+     */
+    public int[] getTokens(int row) {
+        int numValues = rowOffsets[row + 1] - rowOffsets[row];
+        int[] tokens = new int[getRowLength(row)];
+        int n = 0;
+        for (int ii = 0; ii < numValues; ii++) {
+            int p = getFilePosition(row, ii);
+            for (int c = 0; c < counts[p]; c++) {
+                tokens[n++] = columns[p];
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Create the tokens of all rows.
+     */
+    public int[][] getTokens() {
+        int[][] tokens = new int[getNumRows()][];
+        for (int r = 0; r < tokens.length; r++) {
+            tokens[r] = getTokens(r);
+        }
+        return tokens;
+    }
+
+    /**
+     * Read a .dat file, in which each line is a document written as the
+     * number of its word types followed by its word:count pairs.
+     *
+     * @param file The .dat file
+     * @param numColumns The vocabulary size
+     */
+    public static SparseDocTermMatrix read(File file, int numColumns) throws Exception {
+        Builder builder = new Builder(numColumns);
+        BufferedReader reader = IOUtils.getBufferedReader(file);
+        String line;
+        try {
+            while ((line = reader.readLine()) != null) {
+                String[] sline = line.split(" ");
+                builder.addRow(sline, 1, Integer.parseInt(sline[0]));
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new RuntimeException("Exception while reading " + file
+                    + " at line " + (builder.getNumRows() + 1));
+        } finally {
+            reader.close();
+        }
+        return builder.build();
+    }
+
+    /**
+     * Read a .sent-dat file, in which each line is a document whose
+     * tab-separated sentences are written as their word:count pairs. Each
+     * sentence is a row of the matrix.
+     *
+     * @param file The .sent-dat file
+     * @param numColumns The vocabulary size
+     * @param docSentOffsets List to which the index of the first sentence of
+     * each document, followed by the total number of sentences, is added
+     */
+    public static SparseDocTermMatrix readSentences(File file, int numColumns,
+            ArrayList<Integer> docSentOffsets) throws Exception {
+        Builder builder = new Builder(numColumns);
+        BufferedReader reader = IOUtils.getBufferedReader(file);
+        String line;
+        int numDocs = 0;
+        try {
+            while ((line = reader.readLine()) != null) {
+                docSentOffsets.add(builder.getNumRows());
+                for (String sent : line.split("\t")) {
+                    String[] sline = sent.isEmpty() ? new String[0] : sent.split(" ");
+                    builder.addRow(sline, 0, sline.length);
+                }
+                numDocs++;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new RuntimeException("Exception while reading " + file
+                    + " at line " + (numDocs + 1));
+        } finally {
+            reader.close();
+        }
+        docSentOffsets.add(builder.getNumRows());
+        return builder.build();
+    }
+
+    /**
+     * Accumulate the rows of a matrix.
+     */
+    private static class Builder {
+
+        private final int numColumns;
+        private int[] rowOffsets = new int[1024];
+        private int[] columns = new int[1 << 16];
+        private int[] counts = new int[1 << 16];
+        private int[] fileOrder = new int[1 << 16];
+        private boolean sorted = true;
+        private int numRows = 0;
+        private int nnz = 0;
+
+        Builder(int numColumns) {
+            this.numColumns = numColumns;
+        }
+
+        int getNumRows() {
+            return numRows;
+        }
+
+        /**
+         * Add a row given as word:count pairs.
+         *
+         * @param pairs The array containing the pairs
+         * @param offset The index of the first pair
+         * @param numValues The number of pairs
+         */
+        void addRow(String[] pairs, int offset, int numValues) {
+            if (nnz + numValues > columns.length) {
+                int capacity = Math.max(nnz + numValues, 2 * columns.length);
+                columns = Arrays.copyOf(columns, capacity);
+                counts = Arrays.copyOf(counts, capacity);
+                fileOrder = Arrays.copyOf(fileOrder, capacity);
+            }
+            long[] entries = new long[numValues];
+            int[] rowCounts = new int[numValues];
+            for (int ii = 0; ii < numValues; ii++) {
+                String pair = pairs[offset + ii];
+                int sep = pair.indexOf(':');
+                int column = Integer.parseInt(pair.substring(0, sep));
+                if (column < 0 || column >= numColumns) {
+                    throw new RuntimeException("Word index " + column + " out of range");
+                }
+                // sort by column while remembering the position in the file
+                entries[ii] = ((long) column << 32) | ii;
+                rowCounts[ii] = Integer.parseInt(pair.substring(sep + 1));
+            }
+            Arrays.sort(entries);
+            for (int ii = 0; ii < numValues; ii++) {
+                int filePos = (int) entries[ii];
+                columns[nnz + ii] = (int) (entries[ii] >>> 32);
+                counts[nnz + ii] = rowCounts[filePos];
+                fileOrder[nnz + filePos] = ii;
+                if (filePos != ii) {
+                    sorted = false;
+                }
+            }
+            nnz += numValues;
+            numRows++;
+            if (numRows + 1 > rowOffsets.length) {
+                rowOffsets = Arrays.copyOf(rowOffsets, 2 * rowOffsets.length);
+            }
+            rowOffsets[numRows] = nnz;
+        }
+
+        SparseDocTermMatrix build() {
+            return new SparseDocTermMatrix(numColumns,
+                    Arrays.copyOf(rowOffsets, numRows + 1),
+                    Arrays.copyOf(columns, nnz),
+                    Arrays.copyOf(counts, nnz),
+                    sorted ? null : Arrays.copyOf(fileOrder, nnz));
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package data;
+
+import weka.core.Instance;
+import weka.core.SparseInstance;
+
+/**
+ * Sparse Weka instance whose values are read from arrays owned by someone
+ * else (shared with other instances or reused for other instances) rather
+ * than from its own arrays. The non-zero values are given by position, in
+ * increasing order of attribute index.
+ *
+ * As with SparseInstance, whose copies share their arrays until modified, the
+ * values are copied into the instance's own arrays before the first
+ * modification.
+ *
+ * @author vietan
+ */
+public abstract class SparseInstanceView extends SparseInstance {
+
+    private static final long serialVersionUID = 1L;
+    // false once the values have been copied into the instance's own arrays
+    private boolean shared = true;
+
+    /**
+     * Get the number of values of the view.
+     */
+    protected abstract int getNumViewValues();
+
+    /**
+     * Get the attribute index of the value at a position of the view.
+     */
+    protected abstract int getViewIndex(int position);
+
+    /**
+     * Get the value at a position of the view.
+     */
+    protected abstract double getViewValue(int position);
+
+    protected boolean isShared() {
+        return shared;
+    }
+
+    /**
+     * Called once the values have been copied into the instance's own arrays,
+     * so that subclasses can drop their references to the shared data.
+     */
+    protected void releaseView() {
+    }
+
+    /**
+     * Read the values from the view again, after the arrays of the view have
+     * been changed.
+     */
+    protected void share() {
+        shared = true;
+        m_AttValues = null;
+        m_Indices = null;
+    }
+
+    @Override
+    public Object copy() {
+        if (!shared) {
+            return super.copy();
+        }
+        return toSparseInstance();
+    }
+
+    @Override
+    public int numValues() {
+        if (!shared) {
+            return super.numValues();
+        }
+        return getNumViewValues();
+    }
+
+    @Override
+    public int index(int position) {
+        if (!shared) {
+            return super.index(position);
+        }
+        return getViewIndex(position);
+    }
+
+    @Override
+    public double valueSparse(int position) {
+        if (!shared) {
+            return super.valueSparse(position);
+        }
+        return getViewValue(position);
+    }
+
+    @Override
+    public int locateIndex(int index) {
+        if (!shared) {
+            return super.locateIndex(index);
+        }
+        // position of the largest attribute index not greater than index
+        int min = 0;
+        int max = getNumViewValues() - 1;
+        while (min <= max) {
+            int mid = (min + max) >>> 1;
+            if (getViewIndex(mid) <= index) {
+                min = mid + 1;
+            } else {
+                max = mid - 1;
+            }
+        }
+        return max;
+    }
+
+    @Override
+    public double value(int attIndex) {
+        if (!shared) {
+            return super.value(attIndex);
+        }
+        int position = locateIndex(attIndex);
+        if (position >= 0 && getViewIndex(position) == attIndex) {
+            return getViewValue(position);
+        }
+        return 0.0;
+    }
+
+    @Override
+    public double[] toDoubleArray() {
+        if (!shared) {
+            return super.toDoubleArray();
+        }
+        double[] values = new double[m_NumAttributes];
+        for (int ii = 0; ii < getNumViewValues(); ii++) {
+            values[getViewIndex(ii)] = getViewValue(ii);
+        }
+        return values;
+    }
+
+    @Override
+    public String toStringNoWeight() {
+        if (!shared) {
+            return super.toStringNoWeight();
+        }
+        return toSparseInstance().toStringNoWeight();
+    }
+
+    @Override
+    public Instance mergeInstance(Instance inst) {
+        if (!shared) {
+            return super.mergeInstance(inst);
+        }
+        return toSparseInstance().mergeInstance(inst);
+    }
+
+    @Override
+    public void replaceMissingValues(double[] array) {
+        materialize();
+        super.replaceMissingValues(array);
+    }
+
+    @Override
+    public void setValue(int attIndex, double value) {
+        materialize();
+        super.setValue(attIndex, value);
+    }
+
+    @Override
+    public void setValueSparse(int indexOfIndex, double value) {
+        materialize();
+        super.setValueSparse(indexOfIndex, value);
+    }
+
+    @Override
+    protected void forceDeleteAttributeAt(int position) {
+        materialize();
+        super.forceDeleteAttributeAt(position);
+    }
+
+    @Override
+    protected void forceInsertAttributeAt(int position) {
+        materialize();
+        super.forceInsertAttributeAt(position);
+    }
+
+    /**
+     * Create a SparseInstance with the same values, weight and dataset.
+     */
+    protected SparseInstance toSparseInstance() {
+        int numValues = numValues();
+        double[] values = new double[numValues];
+        int[] indices = new int[numValues];
+        for (int ii = 0; ii < numValues; ii++) {
+            values[ii] = valueSparse(ii);
+            indices[ii] = index(ii);
+        }
+        SparseInstance inst = new SparseInstance(m_Weight, values, indices, m_NumAttributes);
+        inst.setDataset(m_Dataset);
+        return inst;
+    }
+
+    /**
+     * Copy the values into the instance's own arrays.
+     */
+    private void materialize() {
+        if (!shared) {
+            return;
+        }
+        int numValues = getNumViewValues();
+        m_AttValues = new double[numValues];
+        m_Indices = new int[numValues];
+        for (int ii = 0; ii < numValues; ii++) {
+            m_AttValues[ii] = getViewValue(ii);
+            m_Indices[ii] = getViewIndex(ii);
+        }
+        shared = false;
+        releaseView();
+    }
+}
@@ -0,0 +1,257 @@
+package data;
+
+import core.crossvalidation.Fold;
+import java.io.BufferedReader;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import util.IOUtils;
+
+/**
+ * LabelTextDataset whose documents and sentences are kept in sparse
+ * document-term matrices only. The token arrays used by the samplers are
+ * created from the matrices when requested, and the Mulan instances of the
+ * dataset (see MulanInstances) read the same document matrix, so the
+ * documents are not kept in memory twice. The raw sentence texts are read
+ * from the .sent-dat.raw file on first use, and no tokenizer model is
+ * loaded.
+ *
+ * Since getWords() and getSentenceWords() create new arrays on each call,
+ * callers should keep the returned arrays rather than call them repeatedly.
+ * The data are read-only.
+ *
+ * @author vietan
+ */
+public class SparseLabelTextDataset extends LabelTextDataset {
+
+    private SparseDocTermMatrix matrix;
+    private SparseDocTermMatrix sentMatrix;
+    private int[] docSentOffsets;
+    private File rawSentenceFile;
+
+    /**
+     * Create a dataset to load formatted data. Unlike the LabelTextDataset
+     * constructors that take a folder, no tokenizer model is loaded since the
+     * dataset does not process texts.
+     *
+     * @param name The dataset name
+     * @param folder The dataset folder
+     */
+    public SparseLabelTextDataset(String name, String folder) {
+        super(name);
+        this.folder = folder;
+    }
+
+    public SparseDocTermMatrix getMatrix() {
+        return this.matrix;
+    }
+
+    /**
+     * Get the sentence-term matrix, whose rows are the sentences of all
+     * documents in order.
+     */
+    public SparseDocTermMatrix getSentenceMatrix() {
+        return this.sentMatrix;
+    }
+
+    /**
+     * Get the row of the first sentence of a document in the sentence-term
+     * matrix.
+     */
+    public int getSentenceStart(int doc) {
+        return this.docSentOffsets[doc];
+    }
+
+    /**
+     * Get the row after the last sentence of a document in the sentence-term
+     * matrix.
+     */
+    public int getSentenceEnd(int doc) {
+        return this.docSentOffsets[doc + 1];
+    }
+
+    @Override
+    protected void inputTextData(File file) throws Exception {
+        if (verbose) {
+            logln("--- Reading text data from " + file);
+        }
+        this.matrix = SparseDocTermMatrix.read(file, wordVocab.size());
+        if (verbose) {
+            int numTokens = 0;
+            for (int d = 0; d < matrix.getNumRows(); d++) {
+                numTokens += matrix.getRowLength(d);
+            }
+            logln("--- --- # docs: " + matrix.getNumRows());
+            logln("--- --- # tokens: " + numTokens);
+        }
+    }
+
+    @Override
+    protected void inputSentenceTextData(File file) throws Exception {
+        if (verbose) {
+            logln("--- Reading sentence text data from " + file);
+        }
+        ArrayList<Integer> offsets = new ArrayList<Integer>();
+        this.sentMatrix = SparseDocTermMatrix.readSentences(file, wordVocab.size(), offsets);
+        this.docSentOffsets = new int[offsets.size()];
+        for (int ii = 0; ii < docSentOffsets.length; ii++) {
+            this.docSentOffsets[ii] = offsets.get(ii);
+        }
+        if (verbose) {
+            int numTokens = 0;
+            for (int s = 0; s < sentMatrix.getNumRows(); s++) {
+                numTokens += sentMatrix.getRowLength(s);
+            }
+            logln("--- --- # docs: " + (docSentOffsets.length - 1));
+            logln("--- --- # sents: " + sentMatrix.getNumRows());
+            logln("--- --- # tokens: " + numTokens);
+        }
+        File rawFile = new File(file + ".raw");
+        this.rawSentenceFile = rawFile.exists() ? rawFile : null;
+    }
+
+    @Override
+    public int[][] getWords() {
+        return matrix.getTokens();
+    }
+
+    @Override
+    public int[][] getDocWords(ArrayList<Integer> docIndices) {
+        int[][] docWords = new int[docIndices.size()][];
+        for (int ii = 0; ii < docIndices.size(); ii++) {
+            docWords[ii] = matrix.getTokens(docIndices.get(ii));
+        }
+        return docWords;
+    }
+
+    @Override
+    public int[][][] getSentenceWords() {
+        int[][][] sentWordArrays = new int[docSentOffsets.length - 1][][];
+        for (int d = 0; d < sentWordArrays.length; d++) {
+            sentWordArrays[d] = getSentenceWords(d);
+        }
+        return sentWordArrays;
+    }
+
+    @Override
+    public int[][][] getDocSentWords(ArrayList<Integer> docIndices) {
+        int[][][] sentWordArrays = new int[docIndices.size()][][];
+        for (int ii = 0; ii < docIndices.size(); ii++) {
+            sentWordArrays[ii] = getSentenceWords(docIndices.get(ii));
+        }
+        return sentWordArrays;
+    }
+
+    /**
+     * Create the tokens of the sentences of a document. As in
+     * TextDataset.inputSentenceTextData, the word types of a sentence are in
+     * the iteration order of a HashMap filled in the file order.
+     */
+    private int[][] getSentenceWords(int doc) {
+        int[][] docSentWords = new int[docSentOffsets[doc + 1] - docSentOffsets[doc]][];
+        for (int s = 0; s < docSentWords.length; s++) {
+            int row = docSentOffsets[doc] + s;
+            int numValues = sentMatrix.getRowEnd(row) - sentMatrix.getRowStart(row);
+            HashMap<Integer, Integer> typeCounts = new HashMap<Integer, Integer>();
+            for (int ii = 0; ii < numValues; ii++) {
+                int p = sentMatrix.getFilePosition(row, ii);
+                typeCounts.put(sentMatrix.getColumn(p), sentMatrix.getCount(p));
+            }
+            docSentWords[s] = new int[sentMatrix.getRowLength(row)];
+            int n = 0;
+            for (Map.Entry<Integer, Integer> entry : typeCounts.entrySet()) {
+                for (int c = 0; c < entry.getValue(); c++) {
+                    docSentWords[s][n++] = entry.getKey();
+                }
+            }
+        }
+        return docSentWords;
+    }
+
+    /**
+     * Get the raw sentences of each document, reading them on first use.
+     */
+    @Override
+    public String[][] getRawSentences() {
+        if (sentRawWords == null && rawSentenceFile != null) {
+            try {
+                inputRawSentences(rawSentenceFile);
+            } catch (Exception e) {
+                e.printStackTrace();
+                throw new RuntimeException("Exception while loading raw sentences from "
+                        + rawSentenceFile);
+            }
+        }
+        return sentRawWords;
+    }
+
+    private void inputRawSentences(File file) throws Exception {
+        if (verbose) {
+            logln("--- Reading sentence raw text data from " + file);
+        }
+        String[][] rawSents = new String[docSentOffsets.length - 1][];
+        BufferedReader reader = IOUtils.getBufferedReader(file);
+        String line;
+        int d = 0;
+        while ((line = reader.readLine()) != null) {
+            String[] docSents = new String[Integer.parseInt(line)];
+            for (int s = 0; s < docSents.length; s++) {
+                docSents[s] = reader.readLine();
+            }
+            rawSents[d++] = docSents;
+        }
+        reader.close();
+        this.sentRawWords = rawSents;
+    }
+
+    @Override
+    public void computeTFIDFs() {
+        this.words = getWords();
+        try {
+            super.computeTFIDFs();
+        } finally {
+            this.words = null;
+        }
+    }
+
+    @Override
+    public void prepareTopicCoherence(int numTopWords) {
+        this.words = getWords();
+        try {
+            super.prepareTopicCoherence(numTopWords);
+        } finally {
+            this.words = null;
+        }
+    }
+
+    @Override
+    public void filterShortSentences(int minLength) {
+        throw new RuntimeException("Sentences of " + getClass().getSimpleName()
+                + " cannot be modified. Use LabelTextDataset instead.");
+    }
+
+    /**
+     * Load the training, development and test data of a cross-validation
+     * fold, as LabelTextDataset.loadCrossValidationFold does.
+     *
+     * @return The training, development (or null) and test (or null) data
+     */
+    public static SparseLabelTextDataset[] loadFoldSplits(Fold<?, ?> fold) throws Exception {
+        SparseLabelTextDataset[] foldData = new SparseLabelTextDataset[3];
+        String[] exts = {Fold.TrainingExt, Fold.DevelopExt, Fold.TestExt};
+        for (int ii = 0; ii < exts.length; ii++) {
+            String formatFilename = fold.getFoldName() + exts[ii];
+            if (ii != Fold.TRAIN && !new File(fold.getFoldFolderPath(),
+                    formatFilename + wordVocabExt).exists()) {
+                continue;
+            }
+            SparseLabelTextDataset data = new SparseLabelTextDataset(
+                    fold.getFoldName(), fold.getFolder());
+            data.setFormatFilename(formatFilename);
+            data.loadFormattedData(fold.getFoldFolderPath());
+            foldData[ii] = data;
+        }
+        return foldData;
+    }
+}
@@ -0,0 +1,110 @@
+package data;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+/**
+ * Reader of the binary sparse sentence format written by
+ * SparseSentenceWriter. The file is memory-mapped and values are decoded
+ * directly from the mapping into the output arrays. Documents can be read
+ * all at once or one at a time through the offsets table.
+ *
+ * @author vietan
+ */
+public class SparseSentenceReader {
+
+    private final RandomAccessFile raf;
+    private final MappedInput in;
+    private final long[] docOffsets;
+    // buffers reused across sentences
+    private int[] types = new int[64];
+    private int[] counts = new int[64];
+
+    public SparseSentenceReader(File file) throws Exception {
+        this.raf = new RandomAccessFile(file, "r");
+        this.in = new MappedInput(raf.getChannel());
+        if (in.readInt() != SparseSentenceWriter.MAGIC
+                || in.readInt() != SparseSentenceWriter.VERSION) {
+            raf.close();
+            throw new RuntimeException("Unsupported sentence data file " + file);
+        }
+        in.seek(in.size() - 4);
+        int numDocs = in.readInt();
+        this.docOffsets = new long[numDocs + 1];
+        in.seek(in.size() - 4 - 8L * (numDocs + 1));
+        in.readLongs(docOffsets);
+    }
+
+    public int getNumDocuments() {
+        return docOffsets.length - 1;
+    }
+
+    /**
+     * Read all documents.
+     *
+     * @param sentWords Output tokens of each sentence of each document, or
+     * null
+     * @param sentLabels Output labels of each sentence of each document, or
+     * null
+     */
+    public void readAll(int[][][] sentWords, int[][][] sentLabels) throws Exception {
+        for (int dd = 0; dd < getNumDocuments(); dd++) {
+            readDocument(dd, sentWords, sentLabels);
+        }
+    }
+
+    /**
+     * Read a document. The tokens of a sentence are its word types, in
+     * increasing order, each repeated as many times as it occurs.
+     *
+     * @param d Index of the document
+     * @param sentWords Array where the tokens of the sentences of the document
+     * are stored at index d, or null
+     * @param sentLabels Array where the labels of the sentences of the
+     * document are stored at index d, or null
+     */
+    public void readDocument(int d, int[][][] sentWords, int[][][] sentLabels) throws Exception {
+        in.seek(docOffsets[d]);
+        int numSents = in.readVarInt();
+        int[][] words = new int[numSents][];
+        int[][] labels = new int[numSents][];
+        for (int ss = 0; ss < numSents; ss++) {
+            int numTypes = in.readVarInt();
+            if (numTypes > types.length) {
+                types = new int[Math.max(numTypes, 2 * types.length)];
+                counts = new int[types.length];
+            }
+            int numTokens = 0;
+            int type = 0;
+            for (int ii = 0; ii < numTypes; ii++) {
+                type += in.readVarInt();
+                types[ii] = type;
+                counts[ii] = in.readVarInt();
+                numTokens += counts[ii];
+            }
+            words[ss] = new int[numTokens];
+            int nn = 0;
+            for (int ii = 0; ii < numTypes; ii++) {
+                for (int cc = 0; cc < counts[ii]; cc++) {
+                    words[ss][nn++] = types[ii];
+                }
+            }
+
+            labels[ss] = new int[in.readVarInt()];
+            for (int ii = 0; ii < labels[ss].length; ii++) {
+                int value = in.readVarInt();
+                labels[ss][ii] = (value >>> 1) ^ -(value & 1);
+            }
+        }
+        if (sentWords != null) {
+            sentWords[d] = words;
+        }
+        if (sentLabels != null) {
+            sentLabels[d] = labels;
+        }
+    }
+
+    public void close() throws Exception {
+        raf.close();
+    }
+}
@@ -0,0 +1,182 @@
+package data;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Writer of the binary sparse sentence format. The file has a header (magic
+ * and version), a payload with one record per document, an offsets table of
+ * numDocs + 1 longs giving the position of each record and the end of the
+ * payload, and finally the number of documents. The table is placed at the
+ * end of the file so that the file can be written in one pass.
+ *
+ * A document record is the number of sentences followed by the sentences.
+ * Each sentence is stored as the number of word types, the delta-encoded
+ * sorted word types each followed by its count, the number of labels and the
+ * labels. All values are unsigned variable-length integers, except labels
+ * which are zigzag encoded.
+ *
+ * Records are encoded into a Block, which can be filled on any thread, and
+ * blocks are appended to the file in order. Documents can also be appended to
+ * an existing file, whose offsets table is then removed and written again
+ * when the writer is closed.
+ *
+ * @author vietan
+ */
+public class SparseSentenceWriter {
+
+    public static final int MAGIC = 0x43465342; // CFSB
+    public static final int VERSION = 1;
+    private final OutputStream out;
+    private long position;
+    private long[] docOffsets = new long[1024];
+    private int numDocs;
+
+    public SparseSentenceWriter(File file) throws Exception {
+        this(file, false);
+    }
+
+    /**
+     * @param file The output file
+     * @param append Whether to append documents to the file if it exists
+     */
+    public SparseSentenceWriter(File file, boolean append) throws Exception {
+        if (append && file.exists()) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                if (raf.readInt() != MAGIC || raf.readInt() != VERSION) {
+                    throw new RuntimeException("Unsupported sentence file " + file);
+                }
+                raf.seek(raf.length() - 4);
+                this.numDocs = raf.readInt();
+                this.docOffsets = new long[Math.max(numDocs + 1, docOffsets.length)];
+                raf.seek(raf.length() - 4 - 8L * (numDocs + 1));
+                for (int dd = 0; dd <= numDocs; dd++) {
+                    this.docOffsets[dd] = raf.readLong();
+                }
+                this.position = docOffsets[numDocs];
+                raf.setLength(position);
+            } finally {
+                raf.close();
+            }
+            this.out = new BufferedOutputStream(new FileOutputStream(file, true), 1 << 16);
+        } else {
+            this.out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+            writeInt(MAGIC);
+            writeInt(VERSION);
+        }
+    }
+
+    /**
+     * Append the documents of a block.
+     */
+    public void write(Block block) throws Exception {
+        if (numDocs + block.numDocs + 1 > docOffsets.length) {
+            docOffsets = Arrays.copyOf(docOffsets,
+                    Math.max(numDocs + block.numDocs + 1, 2 * docOffsets.length));
+        }
+        for (int ii = 0; ii < block.numDocs; ii++) {
+            docOffsets[numDocs++] = position + block.docStarts[ii];
+        }
+        out.write(block.bytes, 0, block.length);
+        position += block.length;
+    }
+
+    /**
+     * Write the offsets table and close the file.
+     */
+    public void close() throws Exception {
+        docOffsets[numDocs] = position;
+        for (int dd = 0; dd <= numDocs; dd++) {
+            writeLong(docOffsets[dd]);
+        }
+        writeInt(numDocs);
+        out.close();
+    }
+
+    private void writeInt(int value) throws Exception {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+        position += 4;
+    }
+
+    private void writeLong(long value) throws Exception {
+        writeInt((int) (value >>> 32));
+        writeInt((int) value);
+    }
+
+    /**
+     * Encoded records of consecutive documents.
+     */
+    public static class Block {
+
+        private byte[] bytes = new byte[1024];
+        private int length;
+        private int[] docStarts = new int[16];
+        private int numDocs;
+
+        public void clear() {
+            length = 0;
+            numDocs = 0;
+        }
+
+        public int getNumDocuments() {
+            return numDocs;
+        }
+
+        /**
+         * Start a new document. The given number of sentences must be
+         * written afterwards.
+         *
+         * @param numSents Number of sentences of the document
+         */
+        public void startDocument(int numSents) {
+            if (numDocs == docStarts.length) {
+                docStarts = Arrays.copyOf(docStarts, 2 * docStarts.length);
+            }
+            docStarts[numDocs++] = length;
+            writeVarInt(numSents);
+        }
+
+        /**
+         * Write a sentence of the current document.
+         *
+         * @param types Sorted distinct word types
+         * @param counts Count of each word type
+         * @param numTypes Number of word types
+         * @param labels Labels of the sentence
+         * @param numLabels Number of labels
+         */
+        public void writeSentence(int[] types, int[] counts, int numTypes,
+                int[] labels, int numLabels) {
+            writeVarInt(numTypes);
+            int prev = 0;
+            for (int ii = 0; ii < numTypes; ii++) {
+                writeVarInt(types[ii] - prev);
+                writeVarInt(counts[ii]);
+                prev = types[ii];
+            }
+            writeVarInt(numLabels);
+            for (int ii = 0; ii < numLabels; ii++) {
+                writeVarInt((labels[ii] << 1) ^ (labels[ii] >> 31));
+            }
+        }
+
+        private void writeVarInt(int value) {
+            if (length + 5 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, 2 * bytes.length);
+            }
+            while ((value & ~0x7F) != 0) {
+                bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+    }
+}
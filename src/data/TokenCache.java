@@ -0,0 +1,207 @@
+package data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Normalized tokens of documents, keyed by document ID, so that a document
+ * is tokenized once and reused by later runs. Tokens are those returned by
+ * CorpusProcessor.normalize, including the empty tokens of removed words.
+ * The sentences the tokens were computed from can optionally be kept as well.
+ *
+ * The cache is persisted as a token dictionary followed by the documents,
+ * each token being stored as its index in the dictionary.
+ *
+ * @author vietan
+ */
+public class TokenCache {
+
+    public static final int MAGIC = 0x43465443; // CFTC
+    public static final int VERSION = 1;
+    private final HashMap<String, String[][]> docTokens = new HashMap<String, String[][]>();
+    private final HashMap<String, String[]> docSentences = new HashMap<String, String[]>();
+    // shared token strings
+    private final HashMap<String, String> dictionary = new HashMap<String, String>();
+
+    /**
+     * Tokenize and normalize sentences in the same way as CorpusProcessor.
+     * The processor's tokenizer is not thread-safe.
+     *
+     * @param corpProc The corpus processor
+     * @param sentences The sentences of a document
+     */
+    public static String[][] tokenize(CorpusProcessor corpProc, String[] sentences) {
+        String[][] tokens = new String[sentences.length][];
+        for (int s = 0; s < sentences.length; s++) {
+            String[] sentTokens = corpProc.tokenizer.tokenize(sentences[s].toLowerCase());
+            tokens[s] = new String[sentTokens.length];
+            for (int ii = 0; ii < sentTokens.length; ii++) {
+                tokens[s][ii] = corpProc.normalize(sentTokens[ii]);
+            }
+        }
+        return tokens;
+    }
+
+    public boolean contains(String docId) {
+        return docTokens.containsKey(docId);
+    }
+
+    public int size() {
+        return docTokens.size();
+    }
+
+    public String[][] getTokens(String docId) {
+        return docTokens.get(docId);
+    }
+
+    /**
+     * Get the sentences of a document, or null if they are not kept.
+     */
+    public String[] getSentences(String docId) {
+        return docSentences.get(docId);
+    }
+
+    /**
+     * Add the tokens of a document, replacing any previous entry.
+     *
+     * @param docId The document ID
+     * @param sentences The sentences, or null not to keep them
+     * @param tokens The normalized tokens of each sentence
+     */
+    public void put(String docId, String[] sentences, String[][] tokens) {
+        for (String[] sentTokens : tokens) {
+            for (int ii = 0; ii < sentTokens.length; ii++) {
+                sentTokens[ii] = getSharedString(sentTokens[ii]);
+            }
+        }
+        docTokens.put(docId, tokens);
+        if (sentences != null) {
+            docSentences.put(docId, sentences);
+        } else {
+            docSentences.remove(docId);
+        }
+    }
+
+    /**
+     * Add all documents of another cache, replacing existing entries.
+     */
+    public void add(TokenCache other) {
+        for (Map.Entry<String, String[][]> entry : other.docTokens.entrySet()) {
+            put(entry.getKey(), other.docSentences.get(entry.getKey()), entry.getValue());
+        }
+    }
+
+    public void remove(String docId) {
+        docTokens.remove(docId);
+        docSentences.remove(docId);
+    }
+
+    private String getSharedString(String token) {
+        String shared = dictionary.get(token);
+        if (shared == null) {
+            dictionary.put(token, token);
+            shared = token;
+        }
+        return shared;
+    }
+
+    public void write(File file) throws Exception {
+        HashMap<String, Integer> tokenIndices = new HashMap<String, Integer>();
+        ArrayList<String> tokenList = new ArrayList<String>();
+        for (String[][] tokens : docTokens.values()) {
+            for (String[] sentTokens : tokens) {
+                for (String token : sentTokens) {
+                    if (!tokenIndices.containsKey(token)) {
+                        tokenIndices.put(token, tokenList.size());
+                        tokenList.add(token);
+                    }
+                }
+            }
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(tokenList.size());
+        for (String token : tokenList) {
+            out.writeUTF(token);
+        }
+        out.writeInt(docTokens.size());
+        for (Map.Entry<String, String[][]> entry : docTokens.entrySet()) {
+            String[][] tokens = entry.getValue();
+            String[] sentences = docSentences.get(entry.getKey());
+            writeString(out, entry.getKey());
+            out.writeInt(tokens.length);
+            out.writeBoolean(sentences != null);
+            for (int s = 0; s < tokens.length; s++) {
+                if (sentences != null) {
+                    writeString(out, sentences[s]);
+                }
+                out.writeInt(tokens[s].length);
+                for (String token : tokens[s]) {
+                    out.writeInt(tokenIndices.get(token));
+                }
+            }
+        }
+        out.close();
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws Exception {
+        byte[] bytes = str.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws Exception {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    public static TokenCache read(File file) throws Exception {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file), 1 << 16));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new RuntimeException("Unsupported token cache file " + file);
+            }
+            TokenCache cache = new TokenCache();
+            String[] tokenList = new String[in.readInt()];
+            for (int ii = 0; ii < tokenList.length; ii++) {
+                tokenList[ii] = in.readUTF();
+                cache.dictionary.put(tokenList[ii], tokenList[ii]);
+            }
+            int numDocs = in.readInt();
+            for (int d = 0; d < numDocs; d++) {
+                String docId = readString(in);
+                String[][] tokens = new String[in.readInt()][];
+                String[] sentences = in.readBoolean() ? new String[tokens.length] : null;
+                for (int s = 0; s < tokens.length; s++) {
+                    if (sentences != null) {
+                        sentences[s] = readString(in);
+                    }
+                    tokens[s] = new String[in.readInt()];
+                    for (int ii = 0; ii < tokens[s].length; ii++) {
+                        tokens[s][ii] = tokenList[in.readInt()];
+                    }
+                }
+                cache.docTokens.put(docId, tokens);
+                if (sentences != null) {
+                    cache.docSentences.put(docId, sentences);
+                }
+            }
+            return cache;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package experiment;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import util.IOUtils;
+
+/**
+ * A step of an experiment (e.g., loading a fold, training, testing or
+ * evaluating a model) in a graph of steps. The fingerprint of a step is a
+ * digest of its name, its parameters, the fingerprints of the steps it
+ * depends on and its other inputs (e.g., the content of input files). Once a
+ * step has been executed, its fingerprint is stored in
+ * [output folder]/steps/[name].fp, and the step is skipped as long as the
+ * stored fingerprint is the same and its outputs exist. Changing a parameter
+ * or an input thus only re-executes the steps depending on it.
+ *
+ * The fingerprint is stored after the step has been executed, so a step that
+ * was interrupted is executed again. Steps without an output folder (e.g.,
+ * loading data into memory) are executed when a step depending on them
+ * needs to be executed, at most once.
+ *
+ * @author vietan
+ */
+public abstract class ExperimentStep {
+
+    public static final String stampFolderName = "steps";
+    private static final String stampExt = ".fp";
+    private final String name;
+    private final File stampFile;
+    private final ArrayList<ExperimentStep> dependencies = new ArrayList<ExperimentStep>();
+    private final TreeMap<String, String> parameters = new TreeMap<String, String>();
+    private String fingerprint;
+    private boolean updated = false;
+
+    /**
+     * @param name The step name, unique within the output folder
+     * @param outputFolder The folder of the outputs of the step, or null if
+     * the step has no persistent outputs
+     */
+    public ExperimentStep(String name, File outputFolder) {
+        this.name = name;
+        if (outputFolder == null) {
+            this.stampFile = null;
+        } else {
+            this.stampFile = new File(new File(outputFolder, stampFolderName), name + stampExt);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Add a step whose outputs this step needs.
+     */
+    public ExperimentStep dependsOn(ExperimentStep step) {
+        this.dependencies.add(step);
+        this.fingerprint = null;
+        return this;
+    }
+
+    /**
+     * Add a parameter that the outputs of this step depend on.
+     */
+    public ExperimentStep setParameter(String paramName, Object value) {
+        this.parameters.put(paramName, String.valueOf(value));
+        this.fingerprint = null;
+        return this;
+    }
+
+    /**
+     * Add the inputs of the step other than its parameters and dependencies
+     * (e.g., the content of input files) to its fingerprint.
+     */
+    protected void addInputs(MessageDigest md) throws Exception {
+    }
+
+    /**
+     * Check whether the outputs of the step exist, in case they were deleted
+     * after the step was executed.
+     */
+    protected boolean hasOutputs() {
+        return true;
+    }
+
+    /**
+     * Compute the outputs of the step. The outputs of its dependencies are up
+     * to date when this is called.
+     */
+    protected abstract void execute() throws Exception;
+
+    /**
+     * Log a message about this step.
+     */
+    protected void logln(String msg) {
+    }
+
+    public String getFingerprint() throws Exception {
+        if (fingerprint == null) {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            md.update(name.getBytes("UTF-8"));
+            for (Map.Entry<String, String> param : parameters.entrySet()) {
+                md.update(("\t" + param.getKey() + "=" + param.getValue()).getBytes("UTF-8"));
+            }
+            for (ExperimentStep step : dependencies) {
+                md.update(("\t" + step.getFingerprint()).getBytes("UTF-8"));
+            }
+            addInputs(md);
+            fingerprint = toHex(md.digest());
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Check whether the outputs of the step are up to date, without bringing
+     * its dependencies up to date.
+     */
+    public boolean isUpToDate() throws Exception {
+        if (updated) {
+            return true;
+        }
+        if (stampFile == null || !stampFile.exists() || !hasOutputs()) {
+            return false;
+        }
+        BufferedReader reader = IOUtils.getBufferedReader(stampFile);
+        String storedFingerprint = reader.readLine();
+        reader.close();
+        return getFingerprint().equals(storedFingerprint);
+    }
+
+    /**
+     * Bring the outputs of the step up to date. If the step needs to be
+     * executed, its dependencies are first brought up to date.
+     *
+     * @param force Whether to execute the step and its dependencies even if
+     * they are up to date
+     * @return Whether the step was executed
+     */
+    public boolean update(boolean force) throws Exception {
+        if (updated) {
+            return false;
+        }
+        if (!force && isUpToDate()) {
+            logln("--- Skipping " + name + " (up to date)");
+            updated = true;
+            return false;
+        }
+        for (ExperimentStep step : dependencies) {
+            step.update(force);
+        }
+        logln("--- Executing " + name);
+        if (stampFile != null) {
+            stampFile.delete();
+        }
+        execute();
+        if (stampFile != null) {
+            IOUtils.createFolder(stampFile.getParentFile());
+            BufferedWriter writer = IOUtils.getBufferedWriter(stampFile);
+            writer.write(getFingerprint() + "\n");
+            writer.close();
+        }
+        updated = true;
+        return true;
+    }
+
+    /**
+     * Add the names and contents of the files of a folder to a digest.
+     */
+    public static void addFolder(MessageDigest md, File folder) throws Exception {
+        String[] filenames = folder.list();
+        if (filenames == null) {
+            throw new RuntimeException("Folder " + folder + " does not exist");
+        }
+        Arrays.sort(filenames);
+        for (String filename : filenames) {
+            File file = new File(folder, filename);
+            if (file.isFile()) {
+                md.update(("\t" + filename + "\t").getBytes("UTF-8"));
+                addFile(md, file);
+            }
+        }
+    }
+
+    /**
+     * Get a digest of the names and contents of the files of a folder.
+     */
+    public static String getFolderFingerprint(File folder) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        addFolder(md, folder);
+        return toHex(md.digest());
+    }
+
+    /**
+     * Add the content of a file to a digest.
+     */
+    public static void addFile(MessageDigest md, File file) throws Exception {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[1 << 16];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                md.update(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder str = new StringBuilder();
+        for (byte b : bytes) {
+            str.append(Character.forDigit((b >> 4) & 0xF, 16));
+            str.append(Character.forDigit(b & 0xF, 16));
+        }
+        return str.toString();
+    }
+}
@@ -0,0 +1,202 @@
+package experiment;
+
+import core.AbstractRunner;
+import core.crossvalidation.Fold;
+import core.crossvalidation.Instance;
+import data.CompuframesDataset;
+import data.CompuframesDataset.FoldData;
+import data.LabelTextDataset;
+import java.io.BufferedReader;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import mulan.data.MultiLabelInstances;
+import util.IOUtils;
+
+/**
+ * Everything a model needs to run on one cross-validation fold: the fold's
+ * data and the folder its results are written to. Each fold run has its own
+ * context, so folds can be run at the same time.
+ *
+ * The data of the fold are loaded on first use, so that a run whose outputs
+ * are all up to date does not load them.
+ *
+ * @author vietan
+ */
+public class FoldContext {
+
+    private final Fold<String, Instance<String>> fold;
+    private final File outputFolder;
+    private final HashMap<String, String> parameters;
+    private FoldData data;
+    private String foldFingerprint;
+    private ArrayList<String> wordVocab;
+    private ArrayList<String> labelVocab;
+
+    /**
+     * @param cvFolder The cross-validation folder
+     * @param foldIdx The fold index
+     * @param outputFolder The folder storing the results of the fold
+     * @param parameters Values of command line options that replace those
+     * given on the command line for this run (e.g., the hyperparameters of a
+     * queued job)
+     */
+    public FoldContext(String cvFolder, int foldIdx, File outputFolder,
+            Map<String, String> parameters) {
+        this.fold = new Fold<String, Instance<String>>(foldIdx, cvFolder);
+        this.outputFolder = outputFolder;
+        this.parameters = new HashMap<String, String>(parameters);
+    }
+
+    /**
+     * @param data The data of the fold, already loaded
+     * @param outputFolder The folder storing the results of the fold
+     * @param parameters Values of command line options that replace those
+     * given on the command line for this run
+     */
+    public FoldContext(FoldData data, File outputFolder, Map<String, String> parameters) {
+        this.fold = data.getFold();
+        this.data = data;
+        this.outputFolder = outputFolder;
+        this.parameters = new HashMap<String, String>(parameters);
+    }
+
+    public String getFoldName() {
+        return fold.getFoldName();
+    }
+
+    public int getFoldIndex() {
+        return fold.getIndex();
+    }
+
+    /**
+     * Get the folder containing the formatted data of the fold.
+     */
+    public File getFoldFolder() {
+        return new File(fold.getFoldFolderPath());
+    }
+
+    public File getOutputFolder() {
+        return outputFolder;
+    }
+
+    /**
+     * Get the value of an option for this run, or null if it is not replaced.
+     */
+    public String getParameter(String name) {
+        return parameters.get(name);
+    }
+
+    public synchronized boolean isLoaded() {
+        return data != null;
+    }
+
+    /**
+     * Get the data of the fold, loading them on first use.
+     */
+    public synchronized FoldData getFoldData() {
+        if (data == null) {
+            data = CompuframesDataset.loadFold(fold.getFolder(), fold.getIndex());
+            if (foldFingerprint != null) {
+                data.setFingerprint(foldFingerprint);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Get a digest of the formatted data files of the fold. It is computed
+     * once for the loaded data of a fold, which are shared by the runs on the
+     * fold, rather than reading the files for every run.
+     */
+    public synchronized String getFoldFingerprint() throws Exception {
+        if (data != null && data.getFingerprint() != null) {
+            return data.getFingerprint();
+        }
+        if (foldFingerprint == null) {
+            foldFingerprint = ExperimentStep.getFolderFingerprint(getFoldFolder());
+        }
+        if (data != null) {
+            data.setFingerprint(foldFingerprint);
+        }
+        return foldFingerprint;
+    }
+
+    public LabelTextDataset getTrainData() {
+        return getFoldData().getTrainData();
+    }
+
+    public LabelTextDataset getDevelopmentData() {
+        return getFoldData().getDevelopmentData();
+    }
+
+    public LabelTextDataset getTestData() {
+        return getFoldData().getTestData();
+    }
+
+    public MultiLabelInstances getMulanTrainData() {
+        return getFoldData().getMulanTrainData();
+    }
+
+    public MultiLabelInstances getMulanDevelopmentData() {
+        return getFoldData().getMulanDevelopmentData();
+    }
+
+    public MultiLabelInstances getMulanTestData() {
+        return getFoldData().getMulanTestData();
+    }
+
+    /**
+     * Get the word vocabulary of the fold, which is that of its training data.
+     * If the data are not loaded, the vocabulary is read from its file.
+     */
+    public synchronized ArrayList<String> getWordVocab() {
+        if (data != null) {
+            return data.getTrainData().getWordVocab();
+        }
+        if (wordVocab == null) {
+            wordVocab = readVocab(LabelTextDataset.wordVocabExt);
+        }
+        return wordVocab;
+    }
+
+    /**
+     * Get the label vocabulary of the fold, which is that of its training
+     * data. If the data are not loaded, the vocabulary is read from its file.
+     */
+    public synchronized ArrayList<String> getLabelVocab() {
+        if (data != null) {
+            return data.getTrainData().getLabelVocab();
+        }
+        if (labelVocab == null) {
+            labelVocab = readVocab(LabelTextDataset.labelVocabExt);
+        }
+        return labelVocab;
+    }
+
+    private ArrayList<String> readVocab(String ext) {
+        File file = new File(getFoldFolder(), fold.getFoldName() + Fold.TrainingExt + ext);
+        ArrayList<String> vocab = new ArrayList<String>();
+        try {
+            BufferedReader reader = IOUtils.getBufferedReader(file);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                vocab.add(line);
+            }
+            reader.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new RuntimeException("Exception while reading vocabulary from " + file);
+        }
+        return vocab;
+    }
+
+    /**
+     * Log a message prefixed by the fold name, so that the messages of folds
+     * running at the same time can be told apart.
+     */
+    public void logln(String msg) {
+        AbstractRunner.logln("[" + getFoldName() + "] " + msg);
+    }
+}
@@ -0,0 +1,374 @@
+package experiment;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import util.IOUtils;
+
+/**
+ * Queue of experiment jobs, each running one model with given
+ * hyperparameters on one cross-validation fold, shared through a folder by
+ * worker processes on one or several hosts. The folder contains:
+ * <ul>
+ * <li>jobs/[id].job: the model, fold and hyperparameters of a job</li>
+ * <li>claims/[id].[generation].lock: the claim of the worker running a job,
+ * touched regularly while the job runs</li>
+ * <li>done/[id].done and failed/[id].failed: written when a job has finished
+ * or thrown an exception</li>
+ * </ul>
+ *
+ * A job is claimed by atomically creating its lock file. A claim whose lock
+ * file has not been touched for the lock timeout is considered abandoned by
+ * a crashed worker, and is taken over by atomically creating the lock file of
+ * the next generation, so that only one worker gets it. The hosts sharing a
+ * queue must have roughly synchronized clocks.
+ *
+ * @author vietan
+ */
+public class JobQueue {
+
+    public static final String folderName = "queue";
+    private static final String jobExt = ".job";
+    private static final String lockExt = ".lock";
+    private static final String doneExt = ".done";
+    private static final String failedExt = ".failed";
+    private final File jobFolder;
+    private final File claimFolder;
+    private final File doneFolder;
+    private final File failedFolder;
+    private final long lockTimeout;
+    private final String workerId;
+
+    /**
+     * @param folder The queue folder
+     * @param lockTimeout Time in milliseconds after which a claim that has not
+     * been touched can be taken over
+     */
+    public JobQueue(File folder, long lockTimeout) {
+        this.jobFolder = new File(folder, "jobs");
+        this.claimFolder = new File(folder, "claims");
+        this.doneFolder = new File(folder, "done");
+        this.failedFolder = new File(folder, "failed");
+        this.lockTimeout = lockTimeout;
+        this.workerId = ManagementFactory.getRuntimeMXBean().getName();
+        IOUtils.createFolder(jobFolder);
+        IOUtils.createFolder(claimFolder);
+        IOUtils.createFolder(doneFolder);
+        IOUtils.createFolder(failedFolder);
+    }
+
+    /**
+     * Get the identifier (process id and host name) of this process.
+     */
+    public String getWorkerId() {
+        return workerId;
+    }
+
+    /**
+     * Add a job to the queue. A job that is already queued is kept, and is
+     * run again if it had failed.
+     *
+     * @return Whether the job was not in the queue yet
+     */
+    public boolean submit(Job job) throws Exception {
+        new File(failedFolder, job.getId() + failedExt).delete();
+        File jobFile = new File(jobFolder, job.getId() + jobExt);
+        if (jobFile.exists()) {
+            return false;
+        }
+        BufferedWriter writer = IOUtils.getBufferedWriter(new File(jobFolder,
+                job.getId() + jobExt + ".tmp"));
+        writer.write("model\t" + job.getModel() + "\n");
+        writer.write("fold\t" + job.getFold() + "\n");
+        for (Map.Entry<String, String> param : job.getParameters().entrySet()) {
+            writer.write("param\t" + param.getKey() + "\t" + param.getValue() + "\n");
+        }
+        writer.close();
+        writeAtomically(jobFile, new File(jobFolder, job.getId() + jobExt + ".tmp"));
+        return true;
+    }
+
+    /**
+     * Get the jobs of the queue, ordered by identifier so that the jobs of a
+     * fold are next to each other.
+     */
+    public ArrayList<Job> getJobs() throws Exception {
+        ArrayList<Job> jobs = new ArrayList<Job>();
+        String[] filenames = jobFolder.list();
+        if (filenames == null) {
+            return jobs;
+        }
+        Arrays.sort(filenames);
+        for (String filename : filenames) {
+            if (filename.endsWith(jobExt)) {
+                jobs.add(readJob(new File(jobFolder, filename)));
+            }
+        }
+        return jobs;
+    }
+
+    public boolean isDone(Job job) {
+        return new File(doneFolder, job.getId() + doneExt).exists();
+    }
+
+    public boolean isFailed(Job job) {
+        return new File(failedFolder, job.getId() + failedExt).exists();
+    }
+
+    public boolean isFinished(Job job) {
+        return isDone(job) || isFailed(job);
+    }
+
+    /**
+     * Check whether a job is being run by a worker whose claim has not
+     * expired.
+     */
+    public boolean isClaimed(Job job) {
+        int generation = getLastGeneration(job);
+        return generation >= 0 && !isExpired(getLockFile(job, generation));
+    }
+
+    /**
+     * Try to claim a job that has not finished and is not claimed, or whose
+     * claim has expired.
+     *
+     * @return The claim, or null if the job cannot be claimed
+     */
+    public Claim claim(Job job) throws Exception {
+        if (isFinished(job)) {
+            return null;
+        }
+        int generation = getLastGeneration(job);
+        if (generation >= 0 && !isExpired(getLockFile(job, generation))) {
+            return null;
+        }
+        File lockFile = getLockFile(job, generation + 1);
+        if (!lockFile.createNewFile()) {
+            return null; // claimed by another worker in the meantime
+        }
+        if (generation >= 0) {
+            getLockFile(job, generation).delete();
+        }
+        if (isFinished(job)) {
+            lockFile.delete();
+            return null;
+        }
+        BufferedWriter writer = IOUtils.getBufferedWriter(lockFile);
+        writer.write(workerId + "\n");
+        writer.close();
+        return new Claim(job, lockFile, generation + 1);
+    }
+
+    private File getLockFile(Job job, int generation) {
+        return new File(claimFolder, job.getId() + "." + generation + lockExt);
+    }
+
+    /**
+     * Get the generation of the latest claim of a job, or -1 if it has none.
+     */
+    private int getLastGeneration(Job job) {
+        int generation = -1;
+        String[] filenames = claimFolder.list();
+        if (filenames == null) {
+            return generation;
+        }
+        String prefix = job.getId() + ".";
+        for (String filename : filenames) {
+            if (filename.startsWith(prefix) && filename.endsWith(lockExt)) {
+                String gen = filename.substring(prefix.length(),
+                        filename.length() - lockExt.length());
+                try {
+                    generation = Math.max(generation, Integer.parseInt(gen));
+                } catch (NumberFormatException e) {
+                    // lock of another job whose identifier starts with this one
+                }
+            }
+        }
+        return generation;
+    }
+
+    private boolean isExpired(File lockFile) {
+        return System.currentTimeMillis() - lockFile.lastModified() > lockTimeout;
+    }
+
+    private static Job readJob(File file) throws Exception {
+        String filename = file.getName();
+        String id = filename.substring(0, filename.length() - jobExt.length());
+        String model = null;
+        int fold = -1;
+        LinkedHashMap<String, String> params = new LinkedHashMap<String, String>();
+        BufferedReader reader = IOUtils.getBufferedReader(file);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] sline = line.split("\t");
+            if (sline[0].equals("model")) {
+                model = sline[1];
+            } else if (sline[0].equals("fold")) {
+                fold = Integer.parseInt(sline[1]);
+            } else if (sline[0].equals("param")) {
+                params.put(sline[1], sline[2]);
+            }
+        }
+        reader.close();
+        if (model == null || fold < 0) {
+            throw new RuntimeException("Incomplete job file " + file);
+        }
+        return new Job(id, model, fold, params);
+    }
+
+    private static void writeAtomically(File file, File tempFile) {
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new RuntimeException("Exception while renaming " + tempFile
+                    + " to " + file);
+        }
+    }
+
+    /**
+     * A job: one model with given hyperparameters on one fold.
+     */
+    public static class Job {
+
+        private final String id;
+        private final String model;
+        private final int fold;
+        private final LinkedHashMap<String, String> parameters;
+
+        /**
+         * Create a job whose identifier is made of its fold, model and
+         * hyperparameters.
+         *
+         * @param model The model name
+         * @param fold The fold index
+         * @param parameters The values of the command line options to use
+         * instead of those of the worker
+         */
+        public Job(String model, int fold, LinkedHashMap<String, String> parameters) {
+            this(createId(model, fold, parameters), model, fold, parameters);
+        }
+
+        private Job(String id, String model, int fold,
+                LinkedHashMap<String, String> parameters) {
+            this.id = id;
+            this.model = model;
+            this.fold = fold;
+            this.parameters = parameters;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getModel() {
+            return model;
+        }
+
+        public int getFold() {
+            return fold;
+        }
+
+        public LinkedHashMap<String, String> getParameters() {
+            return parameters;
+        }
+
+        @Override
+        public String toString() {
+            return id;
+        }
+
+        private static String createId(String model, int fold,
+                LinkedHashMap<String, String> parameters) {
+            StringBuilder str = new StringBuilder();
+            str.append(String.format("fold-%03d", fold)).append("_").append(model);
+            for (Map.Entry<String, String> param : parameters.entrySet()) {
+                str.append("_").append(param.getKey()).append("-").append(param.getValue());
+            }
+            return str.toString().replaceAll("[^A-Za-z0-9._-]", "_");
+        }
+    }
+
+    /**
+     * The claim of this process on a job. Its lock file is touched in the
+     * background until the job is marked as done or failed.
+     */
+    public class Claim {
+
+        private final Job job;
+        private final File lockFile;
+        private final int generation;
+        private final Timer heartbeat;
+
+        private Claim(Job job, File lockFile, int generation) {
+            this.job = job;
+            this.lockFile = lockFile;
+            this.generation = generation;
+            this.heartbeat = new Timer("heartbeat-" + job.getId(), true);
+            long period = Math.max(1, lockTimeout / 4);
+            this.heartbeat.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    Claim.this.lockFile.setLastModified(System.currentTimeMillis());
+                }
+            }, period, period);
+        }
+
+        public Job getJob() {
+            return job;
+        }
+
+        /**
+         * Check whether the claim has been taken over by another worker, after
+         * this process was unable to touch it in time.
+         */
+        public boolean isLost() {
+            return getLastGeneration(job) > generation;
+        }
+
+        /**
+         * Mark the job as done and release the claim.
+         *
+         * @param message Information stored with the completion record
+         */
+        public void complete(String message) throws Exception {
+            finish(new File(doneFolder, job.getId() + doneExt), message);
+        }
+
+        /**
+         * Mark the job as failed and release the claim. Failed jobs are not
+         * claimed again until they are submitted again.
+         *
+         * @param message The reason of the failure
+         */
+        public void fail(String message) throws Exception {
+            finish(new File(failedFolder, job.getId() + failedExt), message);
+        }
+
+        /**
+         * Release a lost claim without marking the job, which is left to the
+         * worker that took it over.
+         */
+        public void release() {
+            heartbeat.cancel();
+            lockFile.delete();
+        }
+
+        private void finish(File markerFile, String message) throws Exception {
+            heartbeat.cancel();
+            File tempFile = new File(markerFile.getParentFile(),
+                    markerFile.getName() + "." + generation + ".tmp");
+            BufferedWriter writer = IOUtils.getBufferedWriter(tempFile);
+            writer.write(workerId + "\n");
+            writer.write(message + "\n");
+            writer.close();
+            writeAtomically(markerFile, tempFile);
+            lockFile.delete();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package experiment;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * Models that can be run on a fold, by name (the value of --model). New
+ * models are added by registering a runner rather than by changing the code
+ * dispatching on the model name.
+ *
+ * @author vietan
+ */
+public class ModelRegistry {
+
+    /**
+     * Runs a model on a fold.
+     */
+    public interface ModelRunner {
+
+        /**
+         * Run the model as steps depending on the step loading the fold.
+         *
+         * @param ctx The fold context
+         * @param load The step loading the data of the fold
+         */
+        void run(FoldContext ctx, ExperimentStep load) throws Exception;
+    }
+
+    private final LinkedHashMap<String, ModelRunner> runners = new LinkedHashMap<String, ModelRunner>();
+
+    /**
+     * Register a model.
+     *
+     * @param name The model name
+     * @param runner The runner of the model
+     */
+    public synchronized void register(String name, ModelRunner runner) {
+        if (runners.containsKey(name)) {
+            throw new RuntimeException("Model " + name + " is already registered");
+        }
+        runners.put(name, runner);
+    }
+
+    public synchronized boolean contains(String name) {
+        return runners.containsKey(name);
+    }
+
+    /**
+     * Get the runner of a model.
+     */
+    public synchronized ModelRunner get(String name) {
+        ModelRunner runner = runners.get(name);
+        if (runner == null) {
+            throw new RuntimeException("Model " + name + " not supported. "
+                    + "Use one of " + getNames());
+        }
+        return runner;
+    }
+
+    /**
+     * Get the names of the models, in the order they were registered.
+     */
+    public synchronized ArrayList<String> getNames() {
+        return new ArrayList<String>(runners.keySet());
+    }
+}
@@ -4,17 +4,36 @@ import core.AbstractExperiment;
 import core.AbstractSampler;
 import core.AbstractSampler.InitialState;
 import core.crossvalidation.Fold;
+import core.crossvalidation.Instance;
 import data.CompuframesDataset;
 import data.CompuframesDataset.DocType;
+import data.CompuframesDataset.FoldData;
+import data.CorpusFilter;
 import data.CorpusProcessor;
-import data.LabelTextDataset;
 import data.TextDataset;
+import experiment.JobQueue.Job;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.security.MessageDigest;
 import java.util.ArrayList;
-import java.util.Random;
-import mulan.classifier.MultiLabelOutput;
-import mulan.classifier.transformation.BinaryRelevance;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import model.BatchPredictor;
+import model.MultiLabelMetrics;
+import model.ParallelBinaryRelevance;
+import model.RandomBaseline;
+import model.RandomHyperplaneLSH;
+import model.TFIDFNearestNeighbors;
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.Options;
 import sampler.labeled.LabeledLDA;
@@ -24,7 +43,6 @@ import util.CLIUtils;
 import util.IOUtils;
 import util.PredictionUtils;
 import util.evaluation.Measurement;
-import util.evaluation.MultilabelClassificationEvaluation;
 import weka.classifiers.Classifier;
 import weka.classifiers.functions.SMO;
 import weka.classifiers.trees.J48;
@@ -40,10 +58,12 @@ public class MultilabelExperiment extends AbstractExperiment<CompuframesDataset>
     protected String datasetFolder;
     protected DocType docType;
 //    protected MultiLabelEvaluator evaluator;
-    protected LabelTextDataset trainData;
-    protected LabelTextDataset devData;
-    protected LabelTextDataset testData;
     protected int numTopWords = 15;
+    protected final ModelRegistry modelRegistry = new ModelRegistry();
+    // number of folds run at the same time
+    private int numFoldThreads = 1;
+    public static final String LSHIndexFile = "lsh.index";
+    public static final long LSHSeed = 1123581321L;
 
     @Override
     public void setup() {
@@ -54,6 +74,7 @@ public class MultilabelExperiment extends AbstractExperiment<CompuframesDataset>
         datasetFolder = CLIUtils.getStringArgument(cmd, "data-folder", "data");
         data = new CompuframesDataset(datasetName, datasetFolder);
         experimentPath = CLIUtils.getStringArgument(cmd, "expt-folder", "experiment");
+        registerModels();
 //        evaluator = new MultiLabelEvaluator();
     }
 
@@ -66,6 +87,36 @@ public class MultilabelExperiment extends AbstractExperiment<CompuframesDataset>
                 "rounds_4-9_singly_coded.json");
         String formatFolder = CLIUtils.getStringArgument(cmd, "format-folder",
                 "format");
+        corpProc = TextDataset.createCorpusProcessor();
+        data.setCorpusProcessor(corpProc);
+        data.setCorpusFilter(createCorpusFilter());
+        setCorpusCache();
+        setNumThreads();
+        data.loadCorpus(new File(jsonFile));
+        if (cmd.hasOption("incremental")) {
+            data.formatIncremental(new File(datasetFolder, formatFolder).getAbsolutePath());
+        } else {
+            data.format(new File(datasetFolder, formatFolder));
+        }
+    }
+
+    /**
+     * Convert the text sentence files of a preprocessed folder into the binary
+     * sentence format.
+     */
+    public void convertSentenceData() throws Exception {
+        if (verbose) {
+            logln("Converting sentence data ...");
+        }
+        String formatFolder = CLIUtils.getStringArgument(cmd, "format-folder",
+                "format");
+        data.convertSentenceData(new File(datasetFolder, formatFolder).getAbsolutePath());
+    }
+
+    /**
+     * Create the corpus filter from the command line options.
+     */
+    protected CorpusFilter createCorpusFilter() {
         String dType = CLIUtils.getStringArgument(cmd, "doc-type", "all");
         if (dType.equals("all")) {
             docType = DocType.ALL;
@@ -76,11 +127,37 @@ public class MultilabelExperiment extends AbstractExperiment<CompuframesDataset>
         } else {
             throw new RuntimeException("Document type " + dType + " not supported");
         }
-        corpProc = TextDataset.createCorpusProcessor();
-        data.setCorpusProcessor(corpProc);
-        data.setDocumentType(docType);
-        data.loadCorpus(new File(jsonFile));
-        data.format(new File(datasetFolder, formatFolder));
+
+        CorpusFilter filter = new CorpusFilter();
+        filter.setDocumentType(docType);
+        if (cmd.hasOption("rounds")) {
+            filter.setRounds(CorpusFilter.parseIntegerSet(cmd.getOptionValue("rounds")));
+        }
+        if (cmd.hasOption("annotators")) {
+            filter.setAnnotators(CorpusFilter.parseStringSet(cmd.getOptionValue("annotators")));
+        }
+        if (cmd.hasOption("frames")) {
+            filter.setFrames(CorpusFilter.parseIntegerSet(cmd.getOptionValue("frames")));
+        }
+        return filter;
+    }
+
+    /**
+     * Use the corpus cache folder given on the command line, if any.
+     */
+    protected void setCorpusCache() {
+        if (cmd.hasOption("corpus-cache")) {
+            data.setCorpusCacheFolder(new File(cmd.getOptionValue("corpus-cache")));
+        }
+    }
+
+    /**
+     * Use the number of threads given on the command line, if any.
+     */
+    protected void setNumThreads() {
+        if (cmd.hasOption("threads")) {
+            data.setNumThreads(CLIUtils.getIntegerArgument(cmd, "threads", 1));
+        }
     }
 
     public void createDocumentCrossValidation() throws Exception {
@@ -98,33 +175,675 @@ public class MultilabelExperiment extends AbstractExperiment<CompuframesDataset>
         String cvFolder = cmd.getOptionValue("cv-folder");
         IOUtils.createFolder(cvFolder);
 
-        String dType = CLIUtils.getStringArgument(cmd, "doc-type", "all");
-        if (dType.equals("all")) {
-            docType = DocType.ALL;
-        } else if (dType.equals("immigration")) {
-            docType = DocType.IMMIGRATION;
-        } else if (dType.equals("tobacco")) {
-            docType = DocType.TOBACCO;
-        } else {
-            throw new RuntimeException("Document type " + dType + " not supported");
-        }
-
         data.setCorpusProcessor(corpProc);
-        data.setDocumentType(docType);
+        data.setCorpusFilter(createCorpusFilter());
         data.setFormatFilename(formatFile);
+        data.setOutputArff(cmd.hasOption("arff"));
+        setCorpusCache();
+        setNumThreads();
         data.loadCorpus(new File(jsonFile));
         data.createCrossValidation(cvFolder, numFolds, trToDevRatio);
     }
 
+    /**
+     * Run a model on the cross-validation folds. Folds are independent and
+     * are run at the same time on up to --fold-threads threads (default: 1),
+     * each with its own FoldContext. The results of all folds are summarized
+     * once all folds have been run.
+     */
     @Override
     public void run() throws Exception {
         if (verbose) {
             logln("Running ...");
         }
 
-        int numFolds = CLIUtils.getIntegerArgument(cmd, "num-folds", 5);
+        final String cvFolder = cmd.getOptionValue("cv-folder");
+        final String model = CLIUtils.getStringArgument(cmd, "model", "random");
+        modelRegistry.get(model); // fail before loading any fold
+        ArrayList<Integer> folds = getFolds();
+        if (folds.isEmpty()) {
+            return;
+        }
+
+        numFoldThreads = Math.max(1, Math.min(
+                CLIUtils.getIntegerArgument(cmd, "fold-threads", 1), folds.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(numFoldThreads);
+        ArrayList<String> failedFolds = new ArrayList<String>();
+        try {
+            ArrayList<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (final int ff : folds) {
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        runFold(new FoldContext(cvFolder, ff, getFoldOutputFolder(ff),
+                                new HashMap<String, String>()), model);
+                        return null;
+                    }
+                }));
+            }
+            for (int ii = 0; ii < folds.size(); ii++) {
+                try {
+                    results.get(ii).get();
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace();
+                    failedFolds.add(Integer.toString(folds.get(ii)));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        if (!failedFolds.isEmpty()) {
+            throw new RuntimeException("Exception while running " + model
+                    + " on fold(s) " + failedFolds);
+        }
+        summarize();
+    }
+
+    /**
+     * Summarize the results of all folds, unless no result has changed since
+     * the last summary.
+     */
+    private void summarize() throws Exception {
+        final File resultFolder = new File(experimentPath, datasetName);
+        final int numFolds = CLIUtils.getIntegerArgument(cmd, "num-folds", 5);
+        ExperimentStep summary = new ExperimentStep("summarize", resultFolder) {
+            @Override
+            protected void addInputs(MessageDigest md) throws Exception {
+                for (int ff = 0; ff < numFolds; ff++) {
+                    File foldFolder = getFoldOutputFolder(ff);
+                    String[] modelNames = foldFolder.list();
+                    if (modelNames == null) {
+                        continue;
+                    }
+                    Arrays.sort(modelNames);
+                    for (String modelName : modelNames) {
+                        File resultFile = new File(new File(new File(foldFolder, modelName),
+                                TEST_PREFIX + RESULT_FOLDER), RESULT_FILE);
+                        if (resultFile.exists()) {
+                            md.update(("\t" + ff + "\t" + modelName + "\t").getBytes("UTF-8"));
+                            addFile(md, resultFile);
+                        }
+                    }
+                }
+            }
+
+            @Override
+            protected boolean hasOutputs() {
+                return new File(resultFolder, TEST_PREFIX + "meta-summary.txt").exists();
+            }
+
+            @Override
+            protected void execute() throws Exception {
+                evaluate();
+            }
+
+            @Override
+            protected void logln(String msg) {
+                if (verbose) {
+                    MultilabelExperiment.logln(msg);
+                }
+            }
+        };
+        summary.update(cmd.hasOption("force"));
+    }
+
+    /**
+     * Write a queue of jobs to the experiment folder, one for each fold, model
+     * (--models, or --model) and combination of the hyperparameter values of
+     * --grid, then wait for the workers to run them and summarize the
+     * results. Jobs already in the queue are kept, and failed jobs are run
+     * again.
+     */
+    public void coordinate() throws Exception {
+        if (verbose) {
+            logln("Coordinating ...");
+        }
+        String[] models = CLIUtils.getStringArgument(cmd, "models",
+                CLIUtils.getStringArgument(cmd, "model", "random")).split(",");
+        for (String model : models) {
+            modelRegistry.get(model); // fail before submitting jobs of unknown models
+        }
+        ArrayList<LinkedHashMap<String, String>> grid = parseGrid(cmd.getOptionValue("grid"));
+
+        JobQueue queue = createJobQueue();
+        ArrayList<Job> jobs = new ArrayList<Job>();
+        int numNewJobs = 0;
+        for (int ff : getFolds()) {
+            for (String model : models) {
+                for (LinkedHashMap<String, String> params : grid) {
+                    Job job = new Job(model, ff, params);
+                    if (queue.submit(job)) {
+                        numNewJobs++;
+                    }
+                    jobs.add(job);
+                }
+            }
+        }
+        if (verbose) {
+            logln("--- Submitted " + jobs.size() + " jobs (" + numNewJobs + " new) to "
+                    + getJobQueueFolder());
+        }
+        if (cmd.hasOption("submit")) {
+            return;
+        }
+
+        String lastStatus = null;
+        while (true) {
+            int numDone = 0;
+            int numRunning = 0;
+            ArrayList<Job> failedJobs = new ArrayList<Job>();
+            for (Job job : jobs) {
+                if (queue.isDone(job)) {
+                    numDone++;
+                } else if (queue.isFailed(job)) {
+                    failedJobs.add(job);
+                } else if (queue.isClaimed(job)) {
+                    numRunning++;
+                }
+            }
+            String status = "--- done: " + numDone + ", failed: " + failedJobs.size()
+                    + ", running: " + numRunning + ", waiting: "
+                    + (jobs.size() - numDone - failedJobs.size() - numRunning);
+            if (verbose && !status.equals(lastStatus)) {
+                logln(status);
+            }
+            lastStatus = status;
+            if (numDone + failedJobs.size() == jobs.size()) {
+                if (!failedJobs.isEmpty()) {
+                    throw new RuntimeException("Exception while running job(s) " + failedJobs
+                            + ". See " + getJobQueueFolder());
+                }
+                break;
+            }
+            Thread.sleep(getPollInterval());
+        }
+        summarize();
+    }
+
+    /**
+     * Claim and run the jobs of the queue in the experiment folder one at a
+     * time, until every job is done or has failed. Several workers can share a
+     * queue; the jobs of a worker that crashed are taken over once their
+     * claims expire (--lock-timeout).
+     */
+    public void work() throws Exception {
+        runJobs(false);
+    }
+
+    /**
+     * Run the jobs of the queue in the experiment folder as a daemon, which
+     * waits for new jobs (e.g., submitted by coordinate --submit) instead of
+     * exiting when the queue is empty. The folds are kept in memory once
+     * loaded, so a job on a fold that was already used starts without loading
+     * any data. The daemon runs until it is killed; a job it was running is
+     * taken over by another worker or daemon once its claim expires.
+     */
+    public void serve() throws Exception {
+        runJobs(true);
+    }
+
+    private void runJobs(boolean serve) throws Exception {
         String cvFolder = cmd.getOptionValue("cv-folder");
+        JobQueue queue = createJobQueue();
+        if (verbose) {
+            logln((serve ? "Daemon " : "Worker ") + queue.getWorkerId()
+                    + " running jobs from " + getJobQueueFolder());
+        }
 
+        // a worker keeps the last fold (jobs are ordered by fold, so a fold is
+        // usually loaded once) and a daemon keeps all folds
+        HashMap<Integer, FoldData> loadedFolds = new HashMap<Integer, FoldData>();
+        int numJobs = 0;
+        boolean idle = false;
+        while (true) {
+            JobQueue.Claim claim = null;
+            boolean waiting = false;
+            for (Job job : queue.getJobs()) {
+                if (queue.isFinished(job)) {
+                    continue;
+                }
+                claim = queue.claim(job);
+                if (claim != null) {
+                    break;
+                }
+                waiting = true; // claimed by another worker
+            }
+            if (claim == null) {
+                if (!waiting && !serve) {
+                    break;
+                }
+                if (serve && !idle && verbose) {
+                    logln("--- Waiting for jobs. # jobs run: " + numJobs);
+                }
+                idle = true;
+                Thread.sleep(getPollInterval());
+                continue;
+            }
+            idle = false;
+
+            Job job = claim.getJob();
+            if (verbose) {
+                logln("--- Running job " + job);
+            }
+            long startTime = System.currentTimeMillis();
+            try {
+                FoldContext ctx;
+                FoldData foldData = loadedFolds.get(job.getFold());
+                if (foldData != null) {
+                    ctx = new FoldContext(foldData, getFoldOutputFolder(job.getFold()),
+                            job.getParameters());
+                } else {
+                    ctx = new FoldContext(cvFolder, job.getFold(),
+                            getFoldOutputFolder(job.getFold()), job.getParameters());
+                }
+                runFold(ctx, job.getModel());
+                if (ctx.isLoaded() && foldData == null) {
+                    if (!serve) {
+                        loadedFolds.clear();
+                    }
+                    loadedFolds.put(job.getFold(), ctx.getFoldData());
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                if (claim.isLost()) {
+                    releaseLostClaim(claim);
+                } else {
+                    claim.fail(e.toString());
+                }
+                continue;
+            }
+            if (claim.isLost()) {
+                releaseLostClaim(claim);
+                continue;
+            }
+            long time = System.currentTimeMillis() - startTime;
+            claim.complete("time\t" + time);
+            numJobs++;
+            if (verbose) {
+                logln("--- Finished job " + job + " in " + time + " ms");
+            }
+        }
+        if (verbose) {
+            logln("No job left. # jobs run: " + numJobs);
+        }
+    }
+
+    /**
+     * Release a claim taken over by another worker, which is still running
+     * the job in the same output folder, without marking the job as done or
+     * failed.
+     */
+    private void releaseLostClaim(JobQueue.Claim claim) {
+        claim.release();
+        if (verbose) {
+            logln("--- The claim on job " + claim.getJob() + " was taken over by "
+                    + "another worker, which finishes the job");
+        }
+    }
+
+    /**
+     * Tune the hyperparameters of a sampler (--model slda or labeled-lda) on
+     * the development data of the folds by successive halving. Every
+     * combination of the values of --grid is trained for --min-iter
+     * iterations and scored on the development data (--sweep-metric, averaged
+     * over the folds, the error measures being minimized and the others
+     * maximized); the best 1/--eta of them are trained --eta times longer,
+     * and so on until --maxIter iterations. The chains of the remaining
+     * combinations are continued rather than restarted. The scores of each
+     * round are written to sweep.txt and the best combination to best.txt,
+     * in [expt-folder]/[dataset]/sweep-[model].
+     */
+    public void sweep() throws Exception {
+        String model = CLIUtils.getStringArgument(cmd, "model", "slda");
+        if (!model.equals("slda") && !model.equals("labeled-lda")) {
+            throw new RuntimeException("Model " + model + " cannot be swept. "
+                    + "Use slda or labeled-lda");
+        }
+        ArrayList<LinkedHashMap<String, String>> grid = parseGrid(cmd.getOptionValue("grid"));
+        if (grid.get(0).containsKey("maxIter")) {
+            throw new RuntimeException("maxIter is the budget of the sweep and "
+                    + "cannot be in the grid");
+        }
+        String metric = CLIUtils.getStringArgument(cmd, "sweep-metric", "MAP");
+        if (!Arrays.asList(MultiLabelMetrics.NAMES).contains(metric)) {
+            throw new RuntimeException("Measurement " + metric + " does not exist. "
+                    + "Use one of " + Arrays.toString(MultiLabelMetrics.NAMES));
+        }
+        SuccessiveHalving sh = new SuccessiveHalving(
+                CLIUtils.getIntegerArgument(cmd, "min-iter", 10),
+                CLIUtils.getIntegerArgument(cmd, "maxIter", 500),
+                CLIUtils.getIntegerArgument(cmd, "eta", 3));
+        File sweepFolder = new File(new File(experimentPath, datasetName), "sweep-" + model);
+        IOUtils.createFolder(sweepFolder);
+
+        String cvFolder = cmd.getOptionValue("cv-folder");
+        ArrayList<SweepFold> folds = new ArrayList<SweepFold>();
+        for (int ff : getFolds()) {
+            folds.add(new SweepFold(CompuframesDataset.loadFold(cvFolder, ff)));
+        }
+        if (verbose) {
+            logln("Sweeping " + grid.size() + " configurations of " + model + " on "
+                    + folds.size() + " fold(s) with budgets " + sh.getBudgets());
+        }
+
+        // the samplers share a random number generator, so the trials are run
+        // one at a time for the sweep to be reproducible
+        ArrayList<SweepTrial> trials = new ArrayList<SweepTrial>();
+        BufferedWriter writer = IOUtils.getBufferedWriter(new File(sweepFolder, "sweep.txt"));
+        try {
+            writer.write("config\titerations");
+            for (SweepFold fold : folds) {
+                writer.write("\t" + fold.data.getFold().getFoldName());
+            }
+            writer.write("\t" + metric + "\tparameters\n");
+            for (int cc = 0; cc < grid.size(); cc++) {
+                trials.add(new SweepTrial(model, cc, grid.get(cc), folds, sweepFolder,
+                        metric, writer));
+            }
+            ArrayList<Integer> ranking = sh.run(trials);
+
+            SweepTrial best = trials.get(ranking.get(0));
+            BufferedWriter bestWriter = IOUtils.getBufferedWriter(new File(sweepFolder, "best.txt"));
+            for (Map.Entry<String, String> param : best.params.entrySet()) {
+                bestWriter.write(param.getKey() + "\t" + param.getValue() + "\n");
+            }
+            bestWriter.write(metric + "\t" + best.score + "\n");
+            bestWriter.close();
+            if (verbose) {
+                logln("Best configuration: " + best.getName() + " (" + metric + " = "
+                        + best.score + " after " + best.iters + " iterations)");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * The data of a fold used by a sweep, with the token arrays shared by the
+     * samplers of all configurations.
+     */
+    private static class SweepFold {
+
+        final FoldData data;
+        final int[][] trainWords;
+        final int[][] trainLabels;
+        final int[][] devWords;
+        final int[][] devLabels;
+
+        SweepFold(FoldData data) {
+            if (data.getDevelopmentData() == null) {
+                throw new RuntimeException("Fold " + data.getFold().getFoldName()
+                        + " has no development data");
+            }
+            this.data = data;
+            this.trainWords = data.getTrainData().getWords();
+            this.trainLabels = data.getTrainData().getLabels();
+            this.devWords = data.getDevelopmentData().getWords();
+            this.devLabels = data.getDevelopmentData().getLabels();
+        }
+    }
+
+    /**
+     * One configuration of a sweep, with a sampler on each fold whose chain is
+     * continued from one round to the next.
+     */
+    private class SweepTrial implements SuccessiveHalving.Trial {
+
+        private final String model;
+        private final int index;
+        private final LinkedHashMap<String, String> params;
+        private final ArrayList<SweepFold> folds;
+        private final ArrayList<FoldContext> contexts;
+        private final String metric;
+        private final BufferedWriter writer;
+        private AbstractSampler[] samplers;
+        private int iters = 0;
+        private double score;
+
+        SweepTrial(String model, int index, LinkedHashMap<String, String> params,
+                ArrayList<SweepFold> folds, File sweepFolder, String metric,
+                BufferedWriter writer) {
+            this.model = model;
+            this.index = index;
+            this.params = params;
+            this.folds = folds;
+            this.metric = metric;
+            this.writer = writer;
+            this.contexts = new ArrayList<FoldContext>();
+            for (SweepFold fold : folds) {
+                File outputFolder = new File(new File(sweepFolder,
+                        fold.data.getFold().getFoldName()), "config-" + index);
+                contexts.add(new FoldContext(fold.data, outputFolder, params));
+            }
+            this.samplers = new AbstractSampler[folds.size()];
+        }
+
+        String getName() {
+            StringBuilder str = new StringBuilder("config-" + index);
+            for (Map.Entry<String, String> param : params.entrySet()) {
+                str.append(" ").append(param.getKey()).append("=").append(param.getValue());
+            }
+            return str.toString();
+        }
+
+        @Override
+        public void advance(int budget) throws Exception {
+            for (int ff = 0; ff < folds.size(); ff++) {
+                if (samplers[ff] == null) {
+                    samplers[ff] = createSampler(ff);
+                }
+                AbstractSampler sampler = samplers[ff];
+                int burnIn = sampler.getBurnIn();
+                int maxIters = sampler.getMaxIters();
+                int sampleLag = sampler.getSampleLag();
+                int repInterval = sampler.getReportInterval();
+                sampler.setSamplerConfiguration(Math.max(0, burnIn - iters),
+                        budget - iters, sampleLag, repInterval);
+                sampler.iterate();
+                // restore the configuration, which the tester copies
+                sampler.setSamplerConfiguration(burnIn, maxIters, sampleLag, repInterval);
+            }
+            iters = budget;
+        }
+
+        private AbstractSampler createSampler(int ff) {
+            FoldContext ctx = contexts.get(ff);
+            SweepFold fold = folds.get(ff);
+            AbstractSampler sampler;
+            if (model.equals("slda")) {
+                SLDA slda = createSLDA(ctx, ctx.getOutputFolder());
+                slda.train(fold.trainWords, fold.trainLabels);
+                sampler = slda;
+            } else {
+                LabeledLDA llda = createLabeledLDA(ctx, ctx.getOutputFolder());
+                llda.train(fold.trainWords, fold.trainLabels);
+                sampler = llda;
+            }
+            sampler.setVerbose(false);
+            sampler.setLog(false);
+            sampler.setReport(false);
+            sampler.initialize();
+            return sampler;
+        }
+
+        /**
+         * Sample the development documents of each fold with the current
+         * state of its sampler, as the test step of a run does, and average
+         * the scores. Since sampling new documents replaces the documents of
+         * a sampler, this is done by a copy of the sampler reading its state.
+         */
+        @Override
+        public double evaluate() throws Exception {
+            double[] foldScores = new double[folds.size()];
+            double sum = 0.0;
+            for (int ff = 0; ff < folds.size(); ff++) {
+                AbstractSampler sampler = samplers[ff];
+                AbstractSampler tester;
+                if (model.equals("slda")) {
+                    SLDA slda = new SLDA();
+                    slda.setVerbose(false);
+                    slda.configure((SLDA) sampler);
+                    tester = slda;
+                } else {
+                    LabeledLDA llda = new LabeledLDA();
+                    llda.setVerbose(false);
+                    llda.configure((LabeledLDA) sampler);
+                    tester = llda;
+                }
+                int testBurnIn = iters / 2;
+                int testSampleLag = Math.max(1, iters / 10);
+                tester.setSamplerConfiguration(testBurnIn, iters, testSampleLag,
+                        sampler.getReportInterval());
+                tester.setTestConfigurations(testBurnIn, iters, testSampleLag);
+
+                File reportFolder = new File(tester.getReportFolderPath());
+                IOUtils.makeEmptyFolder(reportFolder.getAbsolutePath());
+                String stateName = "iter-" + iters;
+                sampler.outputState(new File(reportFolder, stateName + ".zip"));
+
+                File predFolder = new File(tester.getSamplerFolderPath(),
+                        DEV_PREFIX + AbstractSampler.IterPredictionFolder);
+                IOUtils.makeEmptyFolder(predFolder.getAbsolutePath());
+                if (model.equals("slda")) {
+                    ((SLDA) tester).test(folds.get(ff).devWords, predFolder);
+                } else {
+                    ((LabeledLDA) tester).test(folds.get(ff).devWords, predFolder);
+                }
+                double[][] predictions = PredictionUtils.inputSingleModelClassifications(
+                        new File(predFolder, stateName + ".txt"));
+                SweepFold fold = folds.get(ff);
+                foldScores[ff] = MultiLabelMetrics.compute(
+                        fold.data.getTrainData().getLabelVocab().size(),
+                        fold.devLabels, predictions).getMeasurement(metric);
+                sum += foldScores[ff];
+            }
+            score = sum / folds.size();
+
+            writer.write("config-" + index + "\t" + iters);
+            for (double foldScore : foldScores) {
+                writer.write("\t" + foldScore);
+            }
+            writer.write("\t" + score);
+            for (Map.Entry<String, String> param : params.entrySet()) {
+                writer.write("\t" + param.getKey() + "=" + param.getValue());
+            }
+            writer.write("\n");
+            writer.flush();
+            if (verbose) {
+                logln("--- " + getName() + " after " + iters + " iterations: "
+                        + metric + " = " + score);
+            }
+            // successive halving keeps the highest scores
+            return MultiLabelMetrics.isLowerBetter(metric) ? -score : score;
+        }
+
+        @Override
+        public void release() {
+            samplers = new AbstractSampler[folds.size()];
+        }
+    }
+
+    private File getJobQueueFolder() {
+        return new File(new File(experimentPath, datasetName), JobQueue.folderName);
+    }
+
+    private JobQueue createJobQueue() {
+        return new JobQueue(getJobQueueFolder(), getLockTimeout());
+    }
+
+    private long getLockTimeout() {
+        return 1000L * CLIUtils.getIntegerArgument(cmd, "lock-timeout", 300);
+    }
+
+    private long getPollInterval() {
+        return Math.max(100, Math.min(5000, getLockTimeout() / 4));
+    }
+
+    /**
+     * Parse a hyperparameter grid such as "alpha=0.1,1;K=25,50" into all
+     * combinations of the values. The names are those of command line options.
+     * A value can also be a range (see expandValues), e.g., "alpha=0.01:1:5:log".
+     */
+    private ArrayList<LinkedHashMap<String, String>> parseGrid(String gridStr) {
+        ArrayList<LinkedHashMap<String, String>> grid = new ArrayList<LinkedHashMap<String, String>>();
+        grid.add(new LinkedHashMap<String, String>());
+        if (gridStr == null || gridStr.isEmpty()) {
+            return grid;
+        }
+        for (String paramStr : gridStr.split(";")) {
+            int sep = paramStr.indexOf('=');
+            if (sep < 0) {
+                throw new RuntimeException("Hyperparameter " + paramStr
+                        + " should be given as <name>=<value>[,<value>...]");
+            }
+            String name = paramStr.substring(0, sep).trim();
+            if (!options.hasOption(name)) {
+                throw new RuntimeException("Hyperparameter " + name + " is not an option");
+            }
+            ArrayList<LinkedHashMap<String, String>> newGrid = new ArrayList<LinkedHashMap<String, String>>();
+            for (LinkedHashMap<String, String> params : grid) {
+                for (String value : expandValues(paramStr.substring(sep + 1))) {
+                    LinkedHashMap<String, String> newParams = new LinkedHashMap<String, String>(params);
+                    newParams.put(name, value.trim());
+                    newGrid.add(newParams);
+                }
+            }
+            grid = newGrid;
+        }
+        return grid;
+    }
+
+    /**
+     * Expand comma-separated hyperparameter values, each of which is either a
+     * value or a range [start]:[end]:[number of values], whose values are
+     * evenly spaced, or [start]:[end]:[number of values]:log, whose values are
+     * evenly spaced in log scale. The values of a range of integers are
+     * rounded to integers.
+     */
+    private static ArrayList<String> expandValues(String valueStr) {
+        ArrayList<String> values = new ArrayList<String>();
+        for (String value : valueStr.split(",")) {
+            value = value.trim();
+            if (!value.contains(":")) {
+                values.add(value);
+                continue;
+            }
+            String[] range = value.split(":");
+            boolean log = range.length == 4 && range[3].equals("log");
+            if (range.length != 3 && !log) {
+                throw new RuntimeException("Range " + value + " should be given as "
+                        + "<start>:<end>:<number of values>[:log]");
+            }
+            double start = Double.parseDouble(range[0]);
+            double end = Double.parseDouble(range[1]);
+            int num = Integer.parseInt(range[2]);
+            if (num < 1 || (log && (start <= 0 || end <= 0))) {
+                throw new RuntimeException("Invalid range " + value);
+            }
+            boolean integer = !range[0].contains(".") && !range[1].contains(".");
+            for (int ii = 0; ii < num; ii++) {
+                double ratio = num == 1 ? 0.0 : (double) ii / (num - 1);
+                double v;
+                if (log) {
+                    v = Math.exp(Math.log(start) + ratio * (Math.log(end) - Math.log(start)));
+                } else {
+                    v = start + ratio * (end - start);
+                }
+                String str = integer ? Long.toString(Math.round(v)) : new BigDecimal(v)
+                        .round(new MathContext(6)).stripTrailingZeros().toPlainString();
+                if (!values.contains(str)) {
+                    values.add(str);
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Get the folds given by --fold, or all --num-folds folds.
+     */
+    private ArrayList<Integer> getFolds() {
+        int numFolds = CLIUtils.getIntegerArgument(cmd, "num-folds", 5);
         ArrayList<Integer> runningFolds = new ArrayList<Integer>();
         if (cmd.hasOption("fold")) {
             String foldList = cmd.getOptionValue("fold");
@@ -132,253 +851,646 @@ public class MultilabelExperiment extends AbstractExperiment<CompuframesDataset>
                 runningFolds.add(Integer.parseInt(f));
             }
         }
-
+        ArrayList<Integer> folds = new ArrayList<Integer>();
         for (int ff = 0; ff < numFolds; ff++) {
-            if (!runningFolds.isEmpty() && !runningFolds.contains(ff)) {
-                continue;
+            if (runningFolds.isEmpty() || runningFolds.contains(ff)) {
+                folds.add(ff);
             }
-            if (verbose) {
-                System.out.println("\nRunning fold " + ff);
+        }
+        return folds;
+    }
+
+    private File getFoldOutputFolder(int foldIdx) {
+        return new File(new File(experimentPath, datasetName), new Fold<String, Instance<String>>(foldIdx, null)
+                .getFoldName());
+    }
+
+    /**
+     * Run a model on a fold as a graph of steps (loading the fold, training,
+     * testing and evaluating the model), skipping the steps whose outputs are
+     * up to date unless --force is given.
+     */
+    private void runFold(final FoldContext ctx, String model) throws Exception {
+        if (verbose) {
+            ctx.logln("Running fold " + ctx.getFoldName());
+        }
+        ExperimentStep load = new FoldStep(ctx, "load", null) {
+            @Override
+            protected void addInputs(MessageDigest md) throws Exception {
+                md.update(ctx.getFoldFingerprint().getBytes("UTF-8"));
             }
 
-            Fold fold = new Fold(ff, cvFolder);
-            File foldFolder = new File(new File(experimentPath, datasetName), fold.getFoldName());
-            data.loadCrossValidation(cvFolder, ff);
-            trainData = data.getTrainData();
-            devData = data.getDevelopmentData();
-            testData = data.getTestData();
+            @Override
+            protected void execute() throws Exception {
+                ctx.getFoldData();
+                if (verbose) {
+                    ctx.logln("--- # labels: " + ctx.getLabelVocab().size());
+                    ctx.logln("--- training: " + ctx.getTrainData().getDocIds().length
+                            + "\t" + ctx.getMulanTrainData().getNumInstances());
+                    ctx.logln("--- development: " + ctx.getDevelopmentData().getDocIds().length
+                            + "\t" + ctx.getMulanDevelopmentData().getNumInstances());
+                    ctx.logln("--- test: " + ctx.getTestData().getDocIds().length
+                            + "\t" + ctx.getMulanTestData().getNumInstances());
+                }
+            }
+        };
 
+        modelRegistry.get(model).run(ctx, load);
+    }
+
+    /**
+     * Register the models that can be run (--model).
+     */
+    protected void registerModels() {
+        modelRegistry.register("random", new ModelRegistry.ModelRunner() {
+            @Override
+            public void run(FoldContext ctx, ExperimentStep load) throws Exception {
+                runRandomBaseline(ctx, load);
+            }
+        });
+        modelRegistry.register("tfidf-nn", new ModelRegistry.ModelRunner() {
+            @Override
+            public void run(FoldContext ctx, ExperimentStep load) throws Exception {
+                runTFIDF_NNs(ctx, load);
+            }
+        });
+        modelRegistry.register("labeled-lda", new ModelRegistry.ModelRunner() {
+            @Override
+            public void run(FoldContext ctx, ExperimentStep load) throws Exception {
+                runLabeledLDA(ctx, load);
+            }
+        });
+        modelRegistry.register("slda", new ModelRegistry.ModelRunner() {
+            @Override
+            public void run(FoldContext ctx, ExperimentStep load) throws Exception {
+                runSLDA(ctx, load);
+            }
+        });
+        modelRegistry.register("br", new ModelRegistry.ModelRunner() {
+            @Override
+            public void run(FoldContext ctx, ExperimentStep load) throws Exception {
+                runBinaryRelevance(ctx, load);
+            }
+        });
+        modelRegistry.register("none", new ModelRegistry.ModelRunner() {
+            @Override
+            public void run(FoldContext ctx, ExperimentStep load) throws Exception {
+                ctx.logln("Doing nothing :D");
+            }
+        });
+    }
+
+    /**
+     * Step of a fold, logging with the fold name.
+     */
+    private abstract class FoldStep extends ExperimentStep {
+
+        public FoldStep(FoldContext ctx, String name, File outputFolder) {
+            super(name, outputFolder);
+            this.ctx = ctx;
+        }
+        protected final FoldContext ctx;
+
+        @Override
+        protected void logln(String msg) {
             if (verbose) {
-                System.out.println("Fold " + fold.getFoldName());
-                System.out.println("--- # labels: " + data.getLabelVocab().size());
-                System.out.println("--- training: " + trainData.getWords().length
-                        + "\t" + data.getMulanTrainData().getNumInstances());
-                System.out.println("--- development: " + devData.getWords().length
-                        + "\t" + data.getMulanDevelopmentData().getNumInstances());
-                System.out.println("--- test: " + testData.getWords().length
-                        + "\t" + data.getMulanTestData().getNumInstances());
-                System.out.println();
-            }
-
-            String model = CLIUtils.getStringArgument(cmd, "model", "random");
-            if (model.equals("random")) {
-                runRandomBaseline(foldFolder);
-            } else if (model.equals("tfidf-nn")) {
-                runTFIDF_NNs(foldFolder);
-            } else if (model.equals("labeled-lda")) {
-                runLabeledLDA(foldFolder);
-            } else if (model.equals("slda")) {
-                runSLDA(foldFolder);
-            } else if (model.equals("br")) {
-                runBinaryRelevance(foldFolder);
-            } else if (model.equals("none")) {
-                logln("Doing nothing :D");
-            } else {
-                throw new RuntimeException("Model " + model + " not supported");
+                ctx.logln(msg);
             }
-            evaluate();
         }
     }
 
-    private void runRandomBaseline(File outputFolder) throws Exception {
+    /**
+     * Create the step evaluating the test predictions of a model, stored in
+     * the model folder by its test step.
+     */
+    private ExperimentStep createEvaluateStep(final FoldContext ctx, ExperimentStep load,
+            ExperimentStep test, File modelFolder) {
+        final File predFile = new File(modelFolder, TEST_PREFIX + PREDICTION_FILE);
+        final File resultFile = new File(new File(modelFolder, TEST_PREFIX + RESULT_FOLDER),
+                RESULT_FILE);
+        return new FoldStep(ctx, "evaluate", modelFolder) {
+            @Override
+            protected boolean hasOutputs() {
+                return resultFile.exists();
+            }
+
+            @Override
+            protected void execute() throws Exception {
+                IOUtils.createFolder(resultFile.getParentFile());
+                outputResults(resultFile, ctx.getLabelVocab().size(),
+                        ctx.getTestData().getLabels(),
+                        PredictionUtils.inputSingleModelClassifications(predFile));
+            }
+        }.dependsOn(load).dependsOn(test);
+    }
+
+    private void outputPredictions(File predFile, double[][] predictions) {
+        IOUtils.createFolder(predFile.getParentFile());
+        PredictionUtils.outputSingleModelClassifications(predFile, predictions);
+    }
+
+    private String getStringArgument(FoldContext ctx, String name, String defaultValue) {
+        String value = ctx.getParameter(name);
+        if (value == null) {
+            return CLIUtils.getStringArgument(cmd, name, defaultValue);
+        }
+        return value;
+    }
+
+    private int getIntegerArgument(FoldContext ctx, String name, int defaultValue) {
+        String value = ctx.getParameter(name);
+        if (value == null) {
+            return CLIUtils.getIntegerArgument(cmd, name, defaultValue);
+        }
+        return Integer.parseInt(value);
+    }
+
+    /**
+     * Get the number of threads a model uses on a fold: --threads, or by
+     * default the processors shared by the folds run at the same time.
+     */
+    private int getNumModelThreads(FoldContext ctx) {
+        return getIntegerArgument(ctx, "threads", Math.max(1,
+                Runtime.getRuntime().availableProcessors() / numFoldThreads));
+    }
+
+    private double getDoubleArgument(FoldContext ctx, String name, double defaultValue) {
+        String value = ctx.getParameter(name);
+        if (value == null) {
+            return CLIUtils.getDoubleArgument(cmd, name, defaultValue);
+        }
+        return Double.parseDouble(value);
+    }
+
+    private boolean hasOption(FoldContext ctx, String name) {
+        String value = ctx.getParameter(name);
+        if (value == null) {
+            return cmd.hasOption(name);
+        }
+        return Boolean.parseBoolean(value);
+    }
+
+    private void runRandomBaseline(final FoldContext ctx, ExperimentStep load) throws Exception {
         if (verbose) {
-            logln("--- Run random baseline ...");
+            ctx.logln("--- Run random baseline ...");
         }
-        Random rand = new Random(1);
-        File randomFolder = new File(outputFolder, "Random-Baseline");
-        File teResultFolder = new File(randomFolder, TEST_PREFIX + RESULT_FOLDER);
-        IOUtils.createFolder(teResultFolder);
-        double[][] finalPredictions = new double[testData.getWords().length][testData.getLabelVocab().size()];
-        for (int dd = 0; dd < finalPredictions.length; dd++) {
-            for (int ii = 0; ii < finalPredictions[dd].length; ii++) {
-                finalPredictions[dd][ii] = rand.nextDouble();
+        final int seed = 1;
+        File randomFolder = new File(ctx.getOutputFolder(), "Random-Baseline");
+        final File predFile = new File(randomFolder, TEST_PREFIX + PREDICTION_FILE);
+        ExperimentStep test = new FoldStep(ctx, "test", randomFolder) {
+            @Override
+            protected boolean hasOutputs() {
+                return predFile.exists();
             }
-        }
-        outputResults(new File(teResultFolder, RESULT_FILE), testData.getLabels(), finalPredictions);
+
+            @Override
+            protected void execute() throws Exception {
+                RandomBaseline model = new RandomBaseline(seed);
+                model.build(ctx.getMulanTrainData());
+                // the random predictions depend on the order of the documents
+                double[][] finalPredictions = new BatchPredictor(model, 1)
+                        .predict(ctx.getMulanTestData());
+                outputPredictions(predFile, finalPredictions);
+            }
+        }.dependsOn(load).setParameter("seed", seed);
+        createEvaluateStep(ctx, load, test, randomFolder).update(hasOption(ctx, "force"));
     }
 
-    private void runTFIDF_NNs(File outputFolder) throws Exception {
+    private void runTFIDF_NNs(final FoldContext ctx, ExperimentStep load) throws Exception {
         if (verbose) {
-            logln("--- Run TFIDF nearest neighbors ...");
+            ctx.logln("--- Run TFIDF nearest neighbors ...");
+        }
+
+        final TFIDF model = new TFIDF();
+        final int numNeighbors = getIntegerArgument(ctx, "neighbors", 0);
+        final int numThreads = getNumModelThreads(ctx);
+        final int numTables = getIntegerArgument(ctx, "lsh-tables", 0);
+        final int numBits = getIntegerArgument(ctx, "lsh-bits", 12);
+        final int numProbes = getIntegerArgument(ctx, "lsh-probes", 1);
+        if (numTables > 0 && numNeighbors <= 0) {
+            throw new RuntimeException("--lsh-tables requires --neighbors");
+        }
+        String modelName = model.getName();
+        if (numNeighbors > 0) {
+            modelName += "-knn-" + numNeighbors;
+        }
+        if (numTables > 0) {
+            modelName += "-lsh-" + numTables + "x" + numBits + "-" + numProbes;
         }
+        File modelFolder = new File(ctx.getOutputFolder(), modelName);
+        final File modelFile = new File(modelFolder, AbstractSampler.ModelFile);
+        final File lshFile = new File(modelFolder, LSHIndexFile);
+        final File predFile = new File(modelFolder, TEST_PREFIX + PREDICTION_FILE);
+        ExperimentStep train = new FoldStep(ctx, "train", modelFolder) {
+            @Override
+            protected boolean hasOutputs() {
+                return modelFile.exists();
+            }
+
+            @Override
+            protected void execute() throws Exception {
+                TFIDF trainModel = new TFIDF(ctx.getTrainData().getWords(),
+                        ctx.getTrainData().getLabels(),
+                        ctx.getTrainData().getLabelVocab().size(),
+                        ctx.getTrainData().getWordVocab().size());
+                trainModel.learn();
+                IOUtils.createFolder(modelFile.getParentFile());
+                trainModel.outputPredictor(modelFile);
+            }
+        }.dependsOn(load);
 
-        TFIDF model = new TFIDF(trainData.getWords(),
-                trainData.getLabels(),
-                trainData.getLabelVocab().size(),
-                trainData.getWordVocab().size());
-        File modelFolder = new File(outputFolder, model.getName());
-        IOUtils.createFolder(modelFolder);
+        ExperimentStep index = train;
+        if (numTables > 0) {
+            index = new FoldStep(ctx, "index", modelFolder) {
+                @Override
+                protected boolean hasOutputs() {
+                    return lshFile.exists();
+                }
 
-        if (cmd.hasOption("train")) {
-            model.learn();
-            model.outputPredictor(new File(modelFolder, "model.zip"));
+                @Override
+                protected void execute() throws Exception {
+                    model.inputPredictor(modelFile);
+                    TFIDFNearestNeighbors nn = createTFIDFNearestNeighbors(ctx, model,
+                            numNeighbors);
+                    nn.buildLSH(numTables, numBits, LSHSeed).write(lshFile);
+                }
+            }.dependsOn(load).dependsOn(train);
         }
 
-        if (cmd.hasOption("test")) {
-            File teResultFolder = new File(modelFolder, TEST_PREFIX + RESULT_FOLDER);
-            IOUtils.createFolder(teResultFolder);
-            double[][] predictions = new double[testData.getWords().length][testData.getLabels().length];
-            for (int dd = 0; dd < predictions.length; dd++) {
-                predictions[dd] = model.predict(testData.getWords()[dd]);
+        ExperimentStep test = new FoldStep(ctx, "test", modelFolder) {
+            @Override
+            protected boolean hasOutputs() {
+                return predFile.exists();
+            }
+
+            @Override
+            protected void execute() throws Exception {
+                model.inputPredictor(modelFile);
+                TFIDFNearestNeighbors nn = createTFIDFNearestNeighbors(ctx, model,
+                        numNeighbors);
+                nn.setNumThreads(numThreads);
+                if (numTables > 0) {
+                    nn.setLSH(RandomHyperplaneLSH.read(lshFile), numProbes);
+                }
+                outputPredictions(predFile, nn.predict(ctx.getTestData().getWords()));
+            }
+        }.dependsOn(load).dependsOn(index);
+
+        final File recallFile = new File(modelFolder, DEV_PREFIX + "lsh-recall.txt");
+        ExperimentStep recall = new FoldStep(ctx, "recall", modelFolder) {
+            @Override
+            protected boolean hasOutputs() {
+                return recallFile.exists();
+            }
+
+            @Override
+            protected void execute() throws Exception {
+                BufferedWriter writer = IOUtils.getBufferedWriter(recallFile);
+                if (ctx.getDevelopmentData() == null) {
+                    writer.write("No development data\n");
+                    writer.close();
+                    return;
+                }
+                model.inputPredictor(modelFile);
+                TFIDFNearestNeighbors nn = createTFIDFNearestNeighbors(ctx, model,
+                        numNeighbors);
+                outputLSHRecall(ctx, nn, RandomHyperplaneLSH.read(lshFile), numProbes,
+                        ctx.getDevelopmentData().getWords(), writer);
+                writer.close();
+            }
+        }.dependsOn(load).dependsOn(index);
+
+        boolean force = hasOption(ctx, "force");
+        if (hasOption(ctx, "train")) {
+            train.update(force);
+        }
+        if (hasOption(ctx, "test")) {
+            if (numTables > 0) {
+                recall.update(force);
             }
-            outputResults(new File(teResultFolder, RESULT_FILE), testData.getLabels(), predictions);
+            createEvaluateStep(ctx, load, test, modelFolder).update(force);
         }
     }
 
-    private void runLabeledLDA(File outputFolder) throws Exception {
+    /**
+     * Create the index of the label vectors of a TF-IDF model, or of the
+     * training documents if numNeighbors is positive.
+     */
+    private TFIDFNearestNeighbors createTFIDFNearestNeighbors(FoldContext ctx, TFIDF model,
+            int numNeighbors) {
+        TFIDFNearestNeighbors nn;
+        if (numNeighbors > 0) {
+            nn = TFIDFNearestNeighbors.fromDocuments(ctx.getTrainData().getWords(),
+                    ctx.getTrainData().getLabels(), model.getIdfs(),
+                    ctx.getLabelVocab().size(), numNeighbors);
+        } else {
+            nn = TFIDFNearestNeighbors.fromLabelVectors(model);
+        }
         if (verbose) {
-            logln("--- Run Labeled LDA ...");
+            ctx.logln("--- # references: " + nn.getNumReferences()
+                    + ". # postings: " + nn.getNumPostings());
         }
+        return nn;
+    }
 
-        int burnIn = CLIUtils.getIntegerArgument(cmd, "burnIn", 250);
-        int maxIters = CLIUtils.getIntegerArgument(cmd, "maxIter", 500);
-        int sampleLag = CLIUtils.getIntegerArgument(cmd, "sampleLag", 25);
-        int repInterval = CLIUtils.getIntegerArgument(cmd, "report", 1);
+    /**
+     * Compare the nearest neighbors found with an LSH index to the exact ones
+     * on some documents, and write the recall (the average fraction of the
+     * exact neighbors that are found) and the time per document of both
+     * searches, with one thread.
+     */
+    private void outputLSHRecall(FoldContext ctx, TFIDFNearestNeighbors nn,
+            RandomHyperplaneLSH lsh, int numProbes, int[][] docs,
+            BufferedWriter writer) throws Exception {
+        nn.setNumThreads(1);
+        long startTime = System.nanoTime();
+        int[][] exact = nn.findNeighbors(docs);
+        double exactTime = (System.nanoTime() - startTime) / 1e6 / docs.length;
+        nn.setLSH(lsh, numProbes);
+        startTime = System.nanoTime();
+        int[][] approximate = nn.findNeighbors(docs);
+        double approximateTime = (System.nanoTime() - startTime) / 1e6 / docs.length;
 
-        double alpha = CLIUtils.getDoubleArgument(cmd, "alpha", 0.1);
-        double beta = CLIUtils.getDoubleArgument(cmd, "beta", 0.1);
-        boolean paramOpt = cmd.hasOption("paramOpt");
+        double sumRecall = 0.0;
+        int numDocs = 0;
+        for (int dd = 0; dd < docs.length; dd++) {
+            if (exact[dd].length == 0) {
+                continue;
+            }
+            HashSet<Integer> found = new HashSet<Integer>();
+            for (int r : approximate[dd]) {
+                found.add(r);
+            }
+            int numFound = 0;
+            for (int r : exact[dd]) {
+                if (found.contains(r)) {
+                    numFound++;
+                }
+            }
+            sumRecall += (double) numFound / exact[dd].length;
+            numDocs++;
+        }
+        double recall = numDocs == 0 ? 0.0 : sumRecall / numDocs;
+        writer.write("recall\t" + recall + "\n");
+        writer.write("exact-ms-per-doc\t" + exactTime + "\n");
+        writer.write("lsh-ms-per-doc\t" + approximateTime + "\n");
+        if (verbose) {
+            ctx.logln("--- LSH recall on development data: " + recall
+                    + ". ms per document: " + approximateTime + " (exact: "
+                    + exactTime + ")");
+        }
+    }
+
+    /**
+     * Create a Labeled LDA sampler configured with the options of a run.
+     *
+     * @param ctx The fold context
+     * @param outputFolder The folder in which the sampler folder is created
+     */
+    private LabeledLDA createLabeledLDA(FoldContext ctx, File outputFolder) {
+        int burnIn = getIntegerArgument(ctx, "burnIn", 250);
+        int maxIters = getIntegerArgument(ctx, "maxIter", 500);
+        int sampleLag = getIntegerArgument(ctx, "sampleLag", 25);
+        int repInterval = getIntegerArgument(ctx, "report", 1);
+
+        double alpha = getDoubleArgument(ctx, "alpha", 0.1);
+        double beta = getDoubleArgument(ctx, "beta", 0.1);
+        boolean paramOpt = hasOption(ctx, "paramOpt");
 
         LabeledLDA sampler = new LabeledLDA();
         sampler.setVerbose(verbose);
         sampler.setDebug(debug);
         sampler.setLog(true);
         sampler.setReport(true);
-        sampler.setWordVocab(trainData.getWordVocab());
-        sampler.setLabelVocab(trainData.getLabelVocab());
+        sampler.setWordVocab(ctx.getWordVocab());
+        sampler.setLabelVocab(ctx.getLabelVocab());
 
-        int V = data.getWordVocab().size();
-        int K = data.getLabelVocab().size();
+        int V = ctx.getWordVocab().size();
+        int K = ctx.getLabelVocab().size();
         sampler.configure(outputFolder.getAbsolutePath(),
                 V, K, alpha, beta, InitialState.RANDOM, paramOpt,
                 burnIn, maxIters, sampleLag, repInterval);
-        File samplerFolder = new File(sampler.getSamplerFolderPath());
-        IOUtils.createFolder(samplerFolder);
-
-        if (cmd.hasOption("train")) {
-            sampler.train(trainData.getWords(), trainData.getLabels());
-            sampler.initialize();
-            sampler.iterate();
-            sampler.outputTopicTopWords(new File(samplerFolder, TopWordFile), numTopWords);
-            if (trainData.getTopicCoherence() != null) {
-                sampler.outputTopicCoherence(new File(samplerFolder, TopicCoherenceFile),
-                        trainData.getTopicCoherence());
-            }
-        }
-
-        if (cmd.hasOption("test")) {
-            File teIterPredFolder = new File(sampler.getSamplerFolderPath(),
-                    TEST_PREFIX + AbstractSampler.IterPredictionFolder);
-            IOUtils.createFolder(teIterPredFolder);
-            if (cmd.hasOption("parallel")) {
-                LabeledLDA.parallelTest(testData.getWords(),
-                        teIterPredFolder, sampler);
-            } else {
-                sampler.test(testData.getWords(), teIterPredFolder);
-            }
-            File teResultFolder = new File(samplerFolder, TEST_PREFIX + RESULT_FOLDER);
-            IOUtils.createFolder(teResultFolder);
-            double[][] finalPredictions = PredictionUtils.evaluateClassifications(teIterPredFolder,
-                    new File(teResultFolder, "iter-" + RESULT_FILE),
-                    testData.getLabels());
-            outputResults(new File(teResultFolder, RESULT_FILE), testData.getLabels(), finalPredictions);
-        }
+        return sampler;
     }
 
-    private void runSLDA(File outputFolder) throws Exception {
-        if (verbose) {
-            logln("--- Run Supervised LDA for classification ...");
-        }
-
-        int burnIn = CLIUtils.getIntegerArgument(cmd, "burnIn", 250);
-        int maxIters = CLIUtils.getIntegerArgument(cmd, "maxIter", 500);
-        int sampleLag = CLIUtils.getIntegerArgument(cmd, "sampleLag", 25);
-        int repInterval = CLIUtils.getIntegerArgument(cmd, "report", 1);
+    /**
+     * Create an SLDA sampler configured with the options of a run.
+     *
+     * @param ctx The fold context
+     * @param outputFolder The folder in which the sampler folder is created
+     */
+    private SLDA createSLDA(FoldContext ctx, File outputFolder) {
+        int burnIn = getIntegerArgument(ctx, "burnIn", 250);
+        int maxIters = getIntegerArgument(ctx, "maxIter", 500);
+        int sampleLag = getIntegerArgument(ctx, "sampleLag", 25);
+        int repInterval = getIntegerArgument(ctx, "report", 1);
 
-        double alpha = CLIUtils.getDoubleArgument(cmd, "alpha", 0.1);
-        double beta = CLIUtils.getDoubleArgument(cmd, "beta", 0.1);
-        double sigma = CLIUtils.getDoubleArgument(cmd, "sigma", 0.5);
-        boolean paramOpt = cmd.hasOption("paramOpt");
+        double alpha = getDoubleArgument(ctx, "alpha", 0.1);
+        double beta = getDoubleArgument(ctx, "beta", 0.1);
+        double sigma = getDoubleArgument(ctx, "sigma", 0.5);
+        boolean paramOpt = hasOption(ctx, "paramOpt");
 
         SLDA sampler = new SLDA();
         sampler.setVerbose(verbose);
         sampler.setDebug(debug);
         sampler.setLog(true);
         sampler.setReport(true);
-        sampler.setWordVocab(trainData.getWordVocab());
-        sampler.setLabelVocab(trainData.getLabelVocab());
+        sampler.setWordVocab(ctx.getWordVocab());
+        sampler.setLabelVocab(ctx.getLabelVocab());
 
-        int V = data.getWordVocab().size();
-        int L = data.getLabelVocab().size();
-        int K = CLIUtils.getIntegerArgument(cmd, "K", 50);
+        int V = ctx.getWordVocab().size();
+        int L = ctx.getLabelVocab().size();
+        int K = getIntegerArgument(ctx, "K", 50);
         sampler.configure(outputFolder.getAbsolutePath(),
                 V, K, L, alpha, beta, sigma, InitialState.RANDOM, paramOpt,
                 burnIn, maxIters, sampleLag, repInterval);
-        File samplerFolder = new File(sampler.getSamplerFolderPath());
+        return sampler;
+    }
+
+    private void runLabeledLDA(final FoldContext ctx, ExperimentStep load) throws Exception {
+        if (verbose) {
+            ctx.logln("--- Run Labeled LDA ...");
+        }
+
+        final boolean parallel = hasOption(ctx, "parallel");
+        final LabeledLDA sampler = createLabeledLDA(ctx, ctx.getOutputFolder());
+        final File samplerFolder = new File(sampler.getSamplerFolderPath());
         IOUtils.createFolder(samplerFolder);
 
-        if (cmd.hasOption("train")) {
-            sampler.train(trainData.getWords(), trainData.getLabels());
-            sampler.initialize();
-            sampler.iterate();
-            sampler.outputTopicTopWords(new File(samplerFolder, TopWordFile), numTopWords);
-            if (trainData.getTopicCoherence() != null) {
-                sampler.outputTopicCoherence(new File(samplerFolder, TopicCoherenceFile),
-                        trainData.getTopicCoherence());
+        ExperimentStep train = new FoldStep(ctx, "train", samplerFolder) {
+            @Override
+            protected boolean hasOutputs() {
+                return new File(samplerFolder, AbstractSampler.ReportFolder).exists();
+            }
+
+            @Override
+            protected void execute() throws Exception {
+                sampler.train(ctx.getTrainData().getWords(), ctx.getTrainData().getLabels());
+                sampler.initialize();
+                sampler.iterate();
+                sampler.outputTopicTopWords(new File(samplerFolder, TopWordFile), numTopWords);
+                if (ctx.getTrainData().getTopicCoherence() != null) {
+                    sampler.outputTopicCoherence(new File(samplerFolder, TopicCoherenceFile),
+                            ctx.getTrainData().getTopicCoherence());
+                }
+            }
+        }.dependsOn(load).setParameter("sampler", sampler.getSamplerName());
+
+        final File teIterPredFolder = new File(sampler.getSamplerFolderPath(),
+                TEST_PREFIX + AbstractSampler.IterPredictionFolder);
+        ExperimentStep test = new FoldStep(ctx, "test", samplerFolder) {
+            @Override
+            protected boolean hasOutputs() {
+                return teIterPredFolder.exists();
+            }
+
+            @Override
+            protected void execute() throws Exception {
+                IOUtils.createFolder(teIterPredFolder);
+                if (parallel) {
+                    LabeledLDA.parallelTest(ctx.getTestData().getWords(),
+                            teIterPredFolder, sampler);
+                } else {
+                    sampler.test(ctx.getTestData().getWords(), teIterPredFolder);
+                }
             }
+        }.dependsOn(load).dependsOn(train);
+
+        boolean force = hasOption(ctx, "force");
+        if (hasOption(ctx, "train")) {
+            train.update(force);
+        }
+        if (hasOption(ctx, "test")) {
+            createSamplerEvaluateStep(ctx, load, test, samplerFolder, teIterPredFolder)
+                    .update(force);
         }
+    }
 
-        if (cmd.hasOption("test")) {
-            File teIterPredFolder = new File(sampler.getSamplerFolderPath(),
-                    TEST_PREFIX + AbstractSampler.IterPredictionFolder);
-            IOUtils.createFolder(teIterPredFolder);
-            if (cmd.hasOption("parallel")) {
-                SLDA.parallelTest(testData.getWords(),
-                        teIterPredFolder, sampler);
-            } else {
-                sampler.test(testData.getWords(), teIterPredFolder);
+    private void runSLDA(final FoldContext ctx, ExperimentStep load) throws Exception {
+        if (verbose) {
+            ctx.logln("--- Run Supervised LDA for classification ...");
+        }
+
+        final boolean parallel = hasOption(ctx, "parallel");
+        final SLDA sampler = createSLDA(ctx, ctx.getOutputFolder());
+        final File samplerFolder = new File(sampler.getSamplerFolderPath());
+        IOUtils.createFolder(samplerFolder);
+
+        ExperimentStep train = new FoldStep(ctx, "train", samplerFolder) {
+            @Override
+            protected boolean hasOutputs() {
+                return new File(samplerFolder, AbstractSampler.ReportFolder).exists();
             }
-            File teResultFolder = new File(samplerFolder, TEST_PREFIX + RESULT_FOLDER);
-            IOUtils.createFolder(teResultFolder);
-            double[][] finalPredictions = PredictionUtils.evaluateClassifications(teIterPredFolder,
-                    new File(teResultFolder, "iter-" + RESULT_FILE),
-                    testData.getLabels());
-            outputResults(new File(teResultFolder, RESULT_FILE), testData.getLabels(), finalPredictions);
+
+            @Override
+            protected void execute() throws Exception {
+                sampler.train(ctx.getTrainData().getWords(), ctx.getTrainData().getLabels());
+                sampler.initialize();
+                sampler.iterate();
+                sampler.outputTopicTopWords(new File(samplerFolder, TopWordFile), numTopWords);
+                if (ctx.getTrainData().getTopicCoherence() != null) {
+                    sampler.outputTopicCoherence(new File(samplerFolder, TopicCoherenceFile),
+                            ctx.getTrainData().getTopicCoherence());
+                }
+            }
+        }.dependsOn(load).setParameter("sampler", sampler.getSamplerName())
+                .setParameter("sigma", getDoubleArgument(ctx, "sigma", 0.5));
+
+        final File teIterPredFolder = new File(sampler.getSamplerFolderPath(),
+                TEST_PREFIX + AbstractSampler.IterPredictionFolder);
+        ExperimentStep test = new FoldStep(ctx, "test", samplerFolder) {
+            @Override
+            protected boolean hasOutputs() {
+                return teIterPredFolder.exists();
+            }
+
+            @Override
+            protected void execute() throws Exception {
+                IOUtils.createFolder(teIterPredFolder);
+                if (parallel) {
+                    SLDA.parallelTest(ctx.getTestData().getWords(),
+                            teIterPredFolder, sampler);
+                } else {
+                    sampler.test(ctx.getTestData().getWords(), teIterPredFolder);
+                }
+            }
+        }.dependsOn(load).dependsOn(train);
+
+        boolean force = hasOption(ctx, "force");
+        if (hasOption(ctx, "train")) {
+            train.update(force);
+        }
+        if (hasOption(ctx, "test")) {
+            createSamplerEvaluateStep(ctx, load, test, samplerFolder, teIterPredFolder)
+                    .update(force);
         }
     }
 
-    private void runBinaryRelevance(File outputFolder) throws Exception {
-        Classifier classifer;
-        String classifierName = CLIUtils.getStringArgument(cmd, "classifier", "c45");
-        if (classifierName.equals("svm")) {
-            classifer = new SMO();
-        } else if (classifierName.equals("c45")) {
-            classifer = new J48();
-        } else {
+    /**
+     * Create the step evaluating the predictions of the samples of a sampler.
+     */
+    private ExperimentStep createSamplerEvaluateStep(final FoldContext ctx,
+            ExperimentStep load, ExperimentStep test, File samplerFolder,
+            final File teIterPredFolder) {
+        final File teResultFolder = new File(samplerFolder, TEST_PREFIX + RESULT_FOLDER);
+        return new FoldStep(ctx, "evaluate", samplerFolder) {
+            @Override
+            protected boolean hasOutputs() {
+                return new File(teResultFolder, RESULT_FILE).exists();
+            }
+
+            @Override
+            protected void execute() throws Exception {
+                IOUtils.createFolder(teResultFolder);
+                double[][] finalPredictions = PredictionUtils.evaluateClassifications(teIterPredFolder,
+                        new File(teResultFolder, "iter-" + RESULT_FILE),
+                        ctx.getTestData().getLabels());
+                outputResults(new File(teResultFolder, RESULT_FILE), ctx.getLabelVocab().size(),
+                        ctx.getTestData().getLabels(), finalPredictions);
+            }
+        }.dependsOn(load).dependsOn(test);
+    }
+
+    private void runBinaryRelevance(final FoldContext ctx, ExperimentStep load) throws Exception {
+        final String classifierName = getStringArgument(ctx, "classifier", "c45");
+        if (!classifierName.equals("svm") && !classifierName.equals("c45")) {
             throw new RuntimeException("Classifier " + classifierName
                     + " is not supported");
         }
 
         if (verbose) {
-            logln("--- Running Binary Relevance with " + classifierName);
+            ctx.logln("--- Running Binary Relevance with " + classifierName);
         }
-        BinaryRelevance model = new BinaryRelevance(classifer);
-        model.setDebug(true);
-        model.build(data.getMulanTrainData());
+        final int numThreads = getNumModelThreads(ctx);
+        File modelFolder = new File(ctx.getOutputFolder(), "br-" + classifierName);
+        final File predFile = new File(modelFolder, TEST_PREFIX + PREDICTION_FILE);
 
-        File modelFolder = new File(outputFolder, "br-" + classifierName);
-        IOUtils.createFolder(modelFolder);
+        // the trained model is not stored, so training and testing are one step
+        ExperimentStep test = new FoldStep(ctx, "train-test", modelFolder) {
+            @Override
+            protected boolean hasOutputs() {
+                return predFile.exists();
+            }
 
-        // test
-        File teResultFolder = new File(modelFolder, TEST_PREFIX + RESULT_FOLDER);
-        IOUtils.createFolder(teResultFolder);
+            @Override
+            protected void execute() throws Exception {
+                Classifier classifer;
+                if (classifierName.equals("svm")) {
+                    classifer = new SMO();
+                } else {
+                    classifer = new J48();
+                }
+                ParallelBinaryRelevance model = new ParallelBinaryRelevance(classifer,
+                        numThreads);
+                model.setDebug(true);
+                model.build(ctx.getMulanTrainData());
 
-        double[][] finalPredictions = new double[data.getMulanTestData().getNumInstances()][];
-        for (int d = 0; d < data.getMulanTestData().getNumInstances(); d++) {
-            MultiLabelOutput output = model.makePrediction(data.getMulanTestData().getDataSet().instance(d));
-            finalPredictions[d] = output.getConfidences();
-        }
-        outputResults(new File(teResultFolder, RESULT_FILE), testData.getLabels(), finalPredictions);
+                double[][] finalPredictions = new BatchPredictor(model, numThreads)
+                        .predict(ctx.getMulanTestData());
+                outputPredictions(predFile, finalPredictions);
+            }
+        }.dependsOn(load).setParameter("classifier", classifierName);
+        createEvaluateStep(ctx, load, test, modelFolder).update(hasOption(ctx, "force"));
     }
 
     @Override
@@ -398,15 +1510,16 @@ public class MultilabelExperiment extends AbstractExperiment<CompuframesDataset>
                 RESULT_FILE);
     }
 
-    private void outputResults(File outputFile, int[][] trueLabels, double[][] predictions) {
+    private void outputResults(File outputFile, int numLabels, int[][] trueLabels,
+            double[][] predictions) {
         if (verbose) {
             logln("Outputing results to " + outputFile);
         }
         try {
-            MultilabelClassificationEvaluation eval = new MultilabelClassificationEvaluation(trueLabels, predictions);
-            eval.computeMeasurements();
+            MultiLabelMetrics metrics = MultiLabelMetrics.compute(numLabels, trueLabels,
+                    predictions);
             BufferedWriter writer = IOUtils.getBufferedWriter(outputFile);
-            for (Measurement m : eval.getMeasurements()) {
+            for (Measurement m : metrics.getMeasurements()) {
                 writer.write(m.getName() + "\t" + m.getValue() + "\n");
             }
             writer.close();
@@ -435,23 +1548,62 @@ public class MultilabelExperiment extends AbstractExperiment<CompuframesDataset>
             addOption("run-mode", "Run mode");
             addOption("model", "Model");
 
+            // job queue
+            addOption("models", "Comma-separated models to queue (default: --model)");
+            addOption("grid", "Hyperparameter values to queue or sweep, e.g., "
+                    + "alpha=0.1,1;K=25,50 or alpha=0.01:1:5:log");
+            addOption("lock-timeout", "Seconds after which the job of an "
+                    + "unresponsive worker can be claimed again (default: 300)");
+            options.addOption("submit", false, "Only submit the jobs to the "
+                    + "queue, without waiting for them");
+
+            // hyperparameter sweep
+            addOption("min-iter", "Number of iterations of the first round "
+                    + "of a sweep (default: 10)");
+            addOption("eta", "Ratio between the numbers of iterations of "
+                    + "consecutive rounds of a sweep (default: 3)");
+            addOption("sweep-metric", "Measurement optimized by a sweep (default: MAP). "
+                    + "Is-error and One-error are minimized, the others maximized");
+
             // mode parameters
             addGreekParametersOptions();
 
             // processing options
             addCorpusProcessorOptions();
             addOption("doc-type", "Document type");
+            addOption("rounds", "Comma-separated annotation rounds to keep");
+            addOption("annotators", "Comma-separated annotators to keep");
+            addOption("frames", "Comma-separated frame labels to keep");
+            addOption("corpus-cache", "Folder storing binary snapshots of loaded corpora");
+            addOption("threads", "Number of threads, per fold when running models "
+                    + "(default: number of processors, divided by --fold-threads for run)");
+            addOption("fold-threads", "Number of folds run at the same time (default: 1)");
+            options.addOption("incremental", false, "Merge the corpus into the "
+                    + "previously preprocessed data instead of preprocessing from scratch");
 
             // cross validation
             addCrossValidationOptions();
+            options.addOption("arff", false, "Also export the cross-validation "
+                    + "splits as ARFF files");
 
             // sampling
             addSamplingOptions();
+            addOption("K", "Number of topics of SLDA (default: 50)");
 
             // baselines
             addOption("classifier", "Weka classifier");
+            addOption("neighbors", "Number of nearest training documents "
+                    + "scoring the labels of a document with tfidf-nn (default: 0, "
+                    + "the label vectors)");
+            addOption("lsh-tables", "Number of LSH tables searching the nearest "
+                    + "training documents of tfidf-nn approximately (default: 0, exact search)");
+            addOption("lsh-bits", "Number of bits of the LSH signatures (default: 12)");
+            addOption("lsh-probes", "Number of bits in which the LSH buckets "
+                    + "searched may differ from a document's (default: 1)");
 
             options.addOption("paramOpt", false, "Optimizing parameters");
+            options.addOption("force", false, "Execute all steps of a run, "
+                    + "even those whose outputs are up to date");
             options.addOption("v", false, "verbose");
             options.addOption("d", false, "debug");
             options.addOption("help", false, "Help");
@@ -472,10 +1624,20 @@ public class MultilabelExperiment extends AbstractExperiment<CompuframesDataset>
             String runMode = CLIUtils.getStringArgument(cmd, "run-mode", "run");
             if (runMode.equals("preprocess")) {
                 expt.preprocess();
+            } else if (runMode.equals("convert-sent-data")) {
+                expt.convertSentenceData();
             } else if (runMode.equals("create-cv")) {
                 expt.createDocumentCrossValidation();
             } else if (runMode.equals("run")) {
                 expt.run();
+            } else if (runMode.equals("coordinate")) {
+                expt.coordinate();
+            } else if (runMode.equals("worker")) {
+                expt.work();
+            } else if (runMode.equals("serve")) {
+                expt.serve();
+            } else if (runMode.equals("sweep")) {
+                expt.sweep();
             } else {
                 throw new RuntimeException("Run mode " + runMode + " is not supported");
             }
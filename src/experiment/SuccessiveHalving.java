@@ -0,0 +1,111 @@
+package experiment;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Successive halving, the allocation used within each bracket of Hyperband:
+ * all configurations are trained with a small budget (e.g., a few Gibbs
+ * iterations) and scored, then only the best 1/eta of them are trained
+ * further, with eta times the budget, and so on until the maximum budget is
+ * reached. Since training is continued rather than restarted, each rung
+ * costs about the same, the number of configurations times the first budget.
+ *
+ * @author vietan
+ */
+public class SuccessiveHalving {
+
+    /**
+     * A configuration whose training can be continued.
+     */
+    public interface Trial {
+
+        /**
+         * Continue training until the given total budget has been used.
+         */
+        void advance(int budget) throws Exception;
+
+        /**
+         * Score the current model. Higher is better.
+         */
+        double evaluate() throws Exception;
+
+        /**
+         * Free the resources of a trial that is not trained further.
+         */
+        void release();
+    }
+
+    private final int minBudget;
+    private final int maxBudget;
+    private final int eta;
+
+    /**
+     * @param minBudget Budget of the first rung
+     * @param maxBudget Budget of the last rung
+     * @param eta Ratio between the budgets of consecutive rungs, and between
+     * the numbers of trials of consecutive rungs
+     */
+    public SuccessiveHalving(int minBudget, int maxBudget, int eta) {
+        if (minBudget <= 0 || maxBudget < minBudget || eta < 2) {
+            throw new RuntimeException("Invalid successive halving budgets "
+                    + minBudget + " to " + maxBudget + " with eta " + eta);
+        }
+        this.minBudget = minBudget;
+        this.maxBudget = maxBudget;
+        this.eta = eta;
+    }
+
+    /**
+     * Get the budget of each rung.
+     */
+    public ArrayList<Integer> getBudgets() {
+        ArrayList<Integer> budgets = new ArrayList<Integer>();
+        long budget = minBudget;
+        while (budget < maxBudget) {
+            budgets.add((int) budget);
+            budget *= eta;
+        }
+        budgets.add(maxBudget);
+        return budgets;
+    }
+
+    /**
+     * Run successive halving.
+     *
+     * @param trials The trials, which are released once eliminated
+     * @return The indices of the trials of the last rung, best first
+     */
+    public ArrayList<Integer> run(ArrayList<? extends Trial> trials) throws Exception {
+        ArrayList<Integer> survivors = new ArrayList<Integer>();
+        for (int ii = 0; ii < trials.size(); ii++) {
+            survivors.add(ii);
+        }
+        final double[] scores = new double[trials.size()];
+        ArrayList<Integer> budgets = getBudgets();
+        for (int rung = 0; rung < budgets.size(); rung++) {
+            for (int ii : survivors) {
+                Trial trial = trials.get(ii);
+                trial.advance(budgets.get(rung));
+                scores[ii] = trial.evaluate();
+            }
+            // stable sort, so ties keep the order of the trials
+            Collections.sort(survivors, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer i1, Integer i2) {
+                    return Double.compare(scores[i2], scores[i1]);
+                }
+            });
+            if (rung == budgets.size() - 1) {
+                break;
+            }
+            int numKept = Math.max(1, (int) Math.ceil((double) survivors.size() / eta));
+            for (int ii : survivors.subList(numKept, survivors.size())) {
+                trials.get(ii).release();
+            }
+            survivors = new ArrayList<Integer>(survivors.subList(0, numKept));
+        }
+        return survivors;
+    }
+}
@@ -0,0 +1,167 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import mulan.classifier.MultiLabelLearnerBase;
+import mulan.classifier.MultiLabelOutput;
+import mulan.data.MultiLabelInstances;
+import weka.core.Instances;
+
+/**
+ * Predicts the labels of a set of instances with a trained Mulan learner. The
+ * instances are split into contiguous ranges predicted at the same time, the
+ * first by the learner and the others by copies of the learner, since the
+ * prediction of many Weka classifiers is not thread-safe (e.g., SMO filters
+ * the instance). The copies are all made before any thread predicts, since a
+ * learner copied while it predicts may be copied in a half-updated state
+ * (e.g., the filters of SMO). Each thread gives the learner its instances with
+ * the labels missing in one reusable instance, rather than copying each
+ * instance.
+ *
+ * The predictions are the same as calling makePrediction on each instance in
+ * order, except for learners whose predictions depend on the order of the
+ * instances (e.g., RandomBaseline), which should be used with one thread.
+ * A batch predictor predicts one batch at a time.
+ *
+ * @author vietan
+ */
+public class BatchPredictor {
+
+    private final MultiLabelLearnerBase learner;
+    private final int numThreads;
+    // learners of the threads, the first being the learner itself, kept for
+    // the next batches
+    private MultiLabelLearnerBase[] learners;
+
+    /**
+     * @param learner The trained learner, which should not be trained again
+     * @param numThreads The number of threads
+     */
+    public BatchPredictor(MultiLabelLearnerBase learner, int numThreads) {
+        this.learner = learner;
+        this.numThreads = Math.max(1, numThreads);
+    }
+
+    /**
+     * Predict the label confidences of all instances.
+     *
+     * @return The confidences of each instance and label
+     */
+    public double[][] predict(MultiLabelInstances data) {
+        double[][] confidences = new double[data.getNumInstances()][data.getNumLabels()];
+        predict(data, confidences);
+        return confidences;
+    }
+
+    /**
+     * Predict the label confidences of all instances into a given array. The
+     * confidences of a learner predicting only a bipartition are 1 for the
+     * relevant labels and 0 for the others.
+     *
+     * @param confidences The array storing the confidences of each instance
+     * and label, whose rows are allocated if null
+     */
+    public void predict(MultiLabelInstances data, final double[][] confidences) {
+        final Instances dataset = data.getDataSet();
+        final int[] labelIndices = data.getLabelIndices();
+        final int numInstances = dataset.numInstances();
+        final int numLabels = labelIndices.length;
+        if (confidences.length < numInstances) {
+            throw new RuntimeException("Prediction array of " + confidences.length
+                    + " rows for " + numInstances + " instances");
+        }
+        int numRanges = Math.max(1, Math.min(numThreads, numInstances));
+        if (numRanges == 1) {
+            try {
+                predictRange(learner, dataset, labelIndices, numLabels, 0,
+                        numInstances, confidences);
+            } catch (Exception e) {
+                e.printStackTrace();
+                throw new RuntimeException("Exception while predicting with " + learner.globalInfo());
+            }
+            return;
+        }
+
+        final MultiLabelLearnerBase[] rangeLearners = getLearners(numRanges);
+        ExecutorService executor = Executors.newFixedThreadPool(numRanges);
+        try {
+            ArrayList<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int tt = 0; tt < numRanges; tt++) {
+                final MultiLabelLearnerBase rangeLearner = rangeLearners[tt];
+                final int start = (int) ((long) numInstances * tt / numRanges);
+                final int end = (int) ((long) numInstances * (tt + 1) / numRanges);
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        predictRange(rangeLearner, dataset, labelIndices,
+                                numLabels, start, end, confidences);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+            throw new RuntimeException("Exception while predicting with " + learner.globalInfo());
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            throw new RuntimeException("Exception while predicting with " + learner.globalInfo());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Get the learner and its copies for a number of threads. Missing copies
+     * are made on the calling thread, before any thread predicts.
+     */
+    private MultiLabelLearnerBase[] getLearners(int num) {
+        if (learners != null && learners.length >= num) {
+            return learners;
+        }
+        MultiLabelLearnerBase[] newLearners = new MultiLabelLearnerBase[num];
+        newLearners[0] = learner;
+        int numCopied = 1;
+        if (learners != null) {
+            System.arraycopy(learners, 0, newLearners, 0, learners.length);
+            numCopied = learners.length;
+        }
+        try {
+            for (int tt = numCopied; tt < num; tt++) {
+                newLearners[tt] = (MultiLabelLearnerBase) learner.makeCopy();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new RuntimeException("Exception while copying " + learner.globalInfo());
+        }
+        learners = newLearners;
+        return learners;
+    }
+
+    private static void predictRange(MultiLabelLearnerBase learner, Instances dataset,
+            int[] labelIndices, int numLabels, int start, int end,
+            double[][] confidences) throws Exception {
+        LabelMaskedInstance masked = new LabelMaskedInstance(dataset, labelIndices);
+        for (int dd = start; dd < end; dd++) {
+            masked.load(dataset.instance(dd));
+            MultiLabelOutput output = learner.makePrediction(masked);
+            if (confidences[dd] == null) {
+                confidences[dd] = new double[numLabels];
+            }
+            if (output.hasConfidences()) {
+                System.arraycopy(output.getConfidences(), 0, confidences[dd], 0, numLabels);
+            } else {
+                boolean[] bipartition = output.getBipartition();
+                for (int jj = 0; jj < numLabels; jj++) {
+                    confidences[dd][jj] = bipartition[jj] ? 1.0 : 0.0;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package model;
+
+import data.SparseInstanceView;
+
+/**
+ * Sparse Weka instance of a binary relevance problem: the feature values of a
+ * multi-label instance, shared with the problems of the other labels, followed
+ * by the value of one label as the class (the last attribute).
+ *
+ * Copies share the feature arrays until modified.
+ *
+ * @author vietan
+ */
+class BinaryLabelInstance extends SparseInstanceView {
+
+    private static final long serialVersionUID = 1L;
+    private final int[] featureIndices;
+    private final double[] featureValues;
+    private final double classValue;
+
+    /**
+     * @param weight The instance weight
+     * @param featureIndices The indices of the non-zero features, in
+     * increasing order
+     * @param featureValues The values of the non-zero features
+     * @param classValue The class value (0, 1 or missing)
+     * @param numAttributes The number of features plus one
+     */
+    BinaryLabelInstance(double weight, int[] featureIndices, double[] featureValues,
+            double classValue, int numAttributes) {
+        this.featureIndices = featureIndices;
+        this.featureValues = featureValues;
+        this.classValue = classValue;
+        this.m_Weight = weight;
+        this.m_NumAttributes = numAttributes;
+    }
+
+    @Override
+    public Object copy() {
+        if (!isShared()) {
+            return super.copy();
+        }
+        BinaryLabelInstance result = new BinaryLabelInstance(m_Weight, featureIndices,
+                featureValues, classValue, m_NumAttributes);
+        result.m_Dataset = m_Dataset;
+        return result;
+    }
+
+    @Override
+    protected int getNumViewValues() {
+        // as in SparseInstance, a class value of 0 is not stored
+        return classValue == 0 ? featureIndices.length : featureIndices.length + 1;
+    }
+
+    @Override
+    protected int getViewIndex(int position) {
+        if (position < featureIndices.length) {
+            return featureIndices[position];
+        }
+        return m_NumAttributes - 1;
+    }
+
+    @Override
+    protected double getViewValue(int position) {
+        if (position < featureIndices.length) {
+            return featureValues[position];
+        }
+        return classValue;
+    }
+}
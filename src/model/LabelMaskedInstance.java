@@ -0,0 +1,93 @@
+package model;
+
+import data.SparseInstanceView;
+import java.util.Arrays;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * Reusable sparse Weka instance holding the values of a multi-label instance
+ * with all labels missing, as given to a learner for prediction. Loading an
+ * instance overwrites the values of the previous one, so it replaces copying
+ * each instance and setting its labels missing. Copies of the instance do not
+ * change when another instance is loaded.
+ *
+ * @author vietan
+ */
+class LabelMaskedInstance extends SparseInstanceView {
+
+    private static final long serialVersionUID = 1L;
+    // label attribute indices, in increasing order
+    private final int[] sortedLabelIndices;
+    private final boolean[] isLabel;
+    private int[] indices;
+    private double[] values;
+    private int numValues;
+
+    /**
+     * @param dataset The dataset of the instances to be loaded
+     * @param labelIndices The indices of the label attributes
+     */
+    LabelMaskedInstance(Instances dataset, int[] labelIndices) {
+        this.sortedLabelIndices = labelIndices.clone();
+        Arrays.sort(this.sortedLabelIndices);
+        this.isLabel = new boolean[dataset.numAttributes()];
+        for (int labelIndex : labelIndices) {
+            this.isLabel[labelIndex] = true;
+        }
+        this.indices = new int[Math.max(16, labelIndices.length)];
+        this.values = new double[this.indices.length];
+        this.m_NumAttributes = dataset.numAttributes();
+        this.m_Dataset = dataset;
+    }
+
+    /**
+     * Load the values of an instance, with the labels missing.
+     */
+    void load(Instance instance) {
+        share();
+        m_Weight = instance.weight();
+        numValues = 0;
+        int nextLabel = 0;
+        for (int ii = 0; ii < instance.numValues(); ii++) {
+            int index = instance.index(ii);
+            while (nextLabel < sortedLabelIndices.length
+                    && sortedLabelIndices[nextLabel] < index) {
+                add(sortedLabelIndices[nextLabel++], Utils.missingValue());
+            }
+            double value = instance.valueSparse(ii);
+            if (!isLabel[index] && value != 0) {
+                add(index, value);
+            }
+        }
+        while (nextLabel < sortedLabelIndices.length) {
+            add(sortedLabelIndices[nextLabel++], Utils.missingValue());
+        }
+    }
+
+    private void add(int index, double value) {
+        if (numValues == indices.length) {
+            indices = Arrays.copyOf(indices, 2 * numValues);
+            values = Arrays.copyOf(values, 2 * numValues);
+        }
+        indices[numValues] = index;
+        values[numValues] = value;
+        numValues++;
+    }
+
+    @Override
+    protected int getNumViewValues() {
+        return numValues;
+    }
+
+    @Override
+    protected int getViewIndex(int position) {
+        return indices[position];
+    }
+
+    @Override
+    protected double getViewValue(int position) {
+        return values[position];
+    }
+}
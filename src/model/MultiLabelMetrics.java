@@ -0,0 +1,644 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import util.evaluation.Measurement;
+import weka.core.Utils;
+
+/**
+ * Multi-label evaluation measures computed from the label scores of the
+ * instances, one instance at a time. The measures and their values are those
+ * of MultilabelClassificationEvaluation, which uses Mulan's measures:
+ * <ul>
+ * <li>MAP: mean over the labels with relevant instances of the average
+ * precision of the instances ranked by score</li>
+ * <li>Micro-AUC: area under the ROC curve of all instance-label pairs</li>
+ * <li>Macro-AUC: mean over the labels of the area under the ROC curve</li>
+ * <li>Is-error: fraction of instances with an irrelevant label ranked before
+ * a relevant one</li>
+ * <li>One-error: fraction of instances whose top ranked label is
+ * irrelevant</li>
+ * </ul>
+ * When a bipartition of the labels is also given for every instance, these
+ * are followed by Mulan's bipartition measures: the example-based Hamming
+ * Loss, Subset Accuracy, Precision, Recall, F Measure, Accuracy and
+ * Specificity, and the micro- and macro-averaged Precision, Recall, F-Measure
+ * and Specificity of the labels.
+ *
+ * All of Mulan's ranking and confidence measures are also available with
+ * getAllMeasurements: the example-based Average Precision, Coverage, Error
+ * Set Size and Ranking Loss of the label ranking of each instance, and the
+ * geometric mean average precision and the (geometric) mean average
+ * interpolated precision (at 10 recall levels) of the labels.
+ *
+ * The example-based measures only keep counts or sums, and the bipartition
+ * label-based measures the true/false positives/negatives of each label. The
+ * ranking label-based measures keep the score and relevance of each instance
+ * in one primitive array per label, instead of Mulan's objects for each
+ * instance-label pair. Metrics computed on parts of the instances can be
+ * merged, e.g., when evaluating in several threads or pooling folds. Since
+ * tied scores are ranked by instance order, as in Mulan, parts should be
+ * merged in the order of their instances.
+ *
+ * Not thread-safe: each thread updates its own metrics.
+ *
+ * @author vietan
+ */
+public class MultiLabelMetrics {
+
+    public static final String MAP = "MAP";
+    public static final String MICRO_AUC = "Micro-AUC";
+    public static final String MACRO_AUC = "Macro-AUC";
+    public static final String IS_ERROR = "Is-error";
+    public static final String ONE_ERROR = "One-error";
+    public static final String[] NAMES = {MAP, MICRO_AUC, MACRO_AUC, IS_ERROR, ONE_ERROR};
+    public static final String HAMMING_LOSS = "Hamming Loss";
+    public static final String SUBSET_ACCURACY = "Subset Accuracy";
+    public static final String EXAMPLE_PRECISION = "Example-Based Precision";
+    public static final String EXAMPLE_RECALL = "Example-Based Recall";
+    public static final String EXAMPLE_F_MEASURE = "Example-Based F Measure";
+    public static final String EXAMPLE_ACCURACY = "Example-Based Accuracy";
+    public static final String EXAMPLE_SPECIFICITY = "Example-Based Specificity";
+    public static final String MICRO_PRECISION = "Micro-averaged Precision";
+    public static final String MICRO_RECALL = "Micro-averaged Recall";
+    public static final String MICRO_F_MEASURE = "Micro-averaged F-Measure";
+    public static final String MICRO_SPECIFICITY = "Micro-averaged Specificity";
+    public static final String MACRO_PRECISION = "Macro-averaged Precision";
+    public static final String MACRO_RECALL = "Macro-averaged Recall";
+    public static final String MACRO_F_MEASURE = "Macro-averaged F-Measure";
+    public static final String MACRO_SPECIFICITY = "Macro-averaged Specificity";
+    public static final String AVERAGE_PRECISION = "Average Precision";
+    public static final String COVERAGE = "Coverage";
+    public static final String ERROR_SET_SIZE = "ErrorSetSize";
+    public static final String RANKING_LOSS = "Ranking Loss";
+    public static final String GMAP = "Geometric Mean Average Precision";
+    public static final String MAIP = "Mean Average Interpolated Precision";
+    public static final String GMAIP = "Geometric Mean Average Interpolated Precision";
+    // recall levels of the interpolated precision, as in Mulan's Evaluator
+    private static final int NUM_RECALL_LEVELS = 10;
+    private final int numLabels;
+    private int numInstances;
+    private int numIsErrors;
+    private int numOneErrors;
+    // sums over the instances of the ranking measures, the average precision
+    // being only defined for instances with a relevant label
+    private int numWithRelevant;
+    private double sumAveragePrecision;
+    private double sumCoverage;
+    private double sumErrorSetSize;
+    private double sumRankingLoss;
+    // score and relevance of each instance, for each label
+    private double[][] scores;
+    private boolean[][] relevant;
+    private int capacity;
+    private final boolean[] buffer;
+    // number of instances with a bipartition, sums over these instances of
+    // the example-based measures, and counts of each label
+    private int numBipartitions;
+    private double sumHammingLoss;
+    private double sumSubsetAccuracy;
+    private double sumPrecision;
+    private double sumRecall;
+    private double sumFMeasure;
+    private double sumAccuracy;
+    private double sumSpecificity;
+    private final int[] truePositives;
+    private final int[] falsePositives;
+    private final int[] falseNegatives;
+    private final int[] trueNegatives;
+
+    public MultiLabelMetrics(int numLabels) {
+        this.numLabels = numLabels;
+        this.capacity = 16;
+        this.scores = new double[numLabels][capacity];
+        this.relevant = new boolean[numLabels][capacity];
+        this.buffer = new boolean[numLabels];
+        this.truePositives = new int[numLabels];
+        this.falsePositives = new int[numLabels];
+        this.falseNegatives = new int[numLabels];
+        this.trueNegatives = new int[numLabels];
+    }
+
+    public int getNumLabels() {
+        return numLabels;
+    }
+
+    public int getNumInstances() {
+        return numInstances;
+    }
+
+    /**
+     * Whether a smaller value of a measure is better (the error measures).
+     */
+    public static boolean isLowerBetter(String name) {
+        return name.equals(IS_ERROR) || name.equals(ONE_ERROR)
+                || name.equals(HAMMING_LOSS) || name.equals(COVERAGE)
+                || name.equals(ERROR_SET_SIZE) || name.equals(RANKING_LOSS);
+    }
+
+    /**
+     * Compute the measures of a set of instances, which may be empty.
+     *
+     * @param numLabels The number of labels
+     * @param trueLabels The relevant labels of each instance
+     * @param predictions The label scores of each instance
+     */
+    public static MultiLabelMetrics compute(int numLabels, int[][] trueLabels,
+            double[][] predictions) {
+        MultiLabelMetrics metrics = new MultiLabelMetrics(numLabels);
+        for (int dd = 0; dd < predictions.length; dd++) {
+            metrics.update(trueLabels[dd], predictions[dd]);
+        }
+        return metrics;
+    }
+
+    /**
+     * Add an instance.
+     *
+     * @param labels The relevant labels of the instance
+     * @param labelScores The score of each label
+     */
+    public void update(int[] labels, double[] labelScores) {
+        Arrays.fill(buffer, false);
+        for (int label : labels) {
+            buffer[label] = true;
+        }
+        update(buffer, labelScores);
+    }
+
+    /**
+     * Add an instance.
+     *
+     * @param truth Whether each label is relevant
+     * @param labelScores The score of each label
+     */
+    public void update(boolean[] truth, double[] labelScores) {
+        update(truth, labelScores, null);
+    }
+
+    /**
+     * Add an instance.
+     *
+     * @param truth Whether each label is relevant
+     * @param labelScores The score of each label
+     * @param bipartition Whether each label is predicted relevant, or null if
+     * the labels are only scored
+     */
+    public void update(boolean[] truth, double[] labelScores, boolean[] bipartition) {
+        if (truth.length != numLabels || labelScores.length != numLabels
+                || (bipartition != null && bipartition.length != numLabels)) {
+            throw new IllegalArgumentException("Expected " + numLabels + " labels. "
+                    + truth.length + " true labels and " + labelScores.length
+                    + " scores found");
+        }
+        if (bipartition != null) {
+            updateBipartition(truth, bipartition);
+        }
+        ensureCapacity(numInstances + 1);
+        for (int jj = 0; jj < numLabels; jj++) {
+            scores[jj][numInstances] = labelScores[jj];
+            relevant[jj][numInstances] = truth[jj];
+        }
+        numInstances++;
+
+        updateRanking(truth, labelScores);
+    }
+
+    /**
+     * Update the measures of the label ranking of an instance. As in Mulan,
+     * the labels are ranked by decreasing score with Weka's stableSort, which
+     * ranks labels whose scores differ by less than 1e-6 by decreasing label
+     * index.
+     */
+    private void updateRanking(boolean[] truth, double[] labelScores) {
+        int[] increasing = Utils.stableSort(labelScores);
+        int[] rank = new int[numLabels];
+        // number of relevant labels ranked at or before each relevant label
+        int[] numRelevantAbove = new int[numLabels];
+        int numRelevant = 0;
+        int numIrrelevant = 0;
+        double errorSetSize = 0.0;
+        int lowestRelevantRank = 0;
+        for (int pp = 0; pp < numLabels; pp++) {
+            int label = increasing[numLabels - 1 - pp];
+            rank[label] = pp + 1;
+            if (truth[label]) {
+                numRelevant++;
+                numRelevantAbove[label] = numRelevant;
+                errorSetSize += numIrrelevant;
+                lowestRelevantRank = pp + 1;
+            } else {
+                numIrrelevant++;
+            }
+        }
+        if (!truth[increasing[numLabels - 1]]) {
+            numOneErrors++;
+        }
+        if (errorSetSize > 0) {
+            numIsErrors++;
+        }
+        sumCoverage += lowestRelevantRank == 0 ? 0.0 : lowestRelevantRank - 1;
+        sumErrorSetSize += errorSetSize;
+        if (numRelevant > 0 && numIrrelevant > 0) {
+            sumRankingLoss += errorSetSize / (double) (numRelevant * numIrrelevant);
+        }
+        if (numRelevant > 0) {
+            double ap = 0.0;
+            for (int jj = 0; jj < numLabels; jj++) {
+                if (truth[jj]) {
+                    ap += (double) numRelevantAbove[jj] / rank[jj];
+                }
+            }
+            sumAveragePrecision += ap / numRelevant;
+            numWithRelevant++;
+        }
+    }
+
+    private void updateBipartition(boolean[] truth, boolean[] bipartition) {
+        double tp = 0.0;
+        double fp = 0.0;
+        double fn = 0.0;
+        double tn = 0.0;
+        for (int jj = 0; jj < numLabels; jj++) {
+            if (truth[jj]) {
+                if (bipartition[jj]) {
+                    tp++;
+                    truePositives[jj]++;
+                } else {
+                    fn++;
+                    falseNegatives[jj]++;
+                }
+            } else if (bipartition[jj]) {
+                fp++;
+                falsePositives[jj]++;
+            } else {
+                tn++;
+                trueNegatives[jj]++;
+            }
+        }
+        numBipartitions++;
+        sumHammingLoss += (fp + fn) / numLabels;
+        sumSubsetAccuracy += fp + fn == 0 ? 1.0 : 0.0;
+        sumPrecision += getPrecision(tp, fp, fn);
+        sumRecall += getRecall(tp, fp, fn);
+        sumFMeasure += getFMeasure(tp, fp, fn);
+        // the accuracy of an instance with no relevant or predicted label is 1
+        sumAccuracy += tp + fp + fn == 0 ? 1.0 : tp / (tp + fp + fn);
+        sumSpecificity += getSpecificity(tn, fp, fn);
+    }
+
+    /**
+     * Add the instances of other metrics, which come after the instances of
+     * these metrics.
+     */
+    public void merge(MultiLabelMetrics other) {
+        if (other.numLabels != numLabels) {
+            throw new IllegalArgumentException("Cannot merge metrics of "
+                    + other.numLabels + " labels into metrics of " + numLabels
+                    + " labels");
+        }
+        ensureCapacity(numInstances + other.numInstances);
+        for (int jj = 0; jj < numLabels; jj++) {
+            System.arraycopy(other.scores[jj], 0, scores[jj], numInstances, other.numInstances);
+            System.arraycopy(other.relevant[jj], 0, relevant[jj], numInstances, other.numInstances);
+        }
+        numInstances += other.numInstances;
+        numIsErrors += other.numIsErrors;
+        numOneErrors += other.numOneErrors;
+        numWithRelevant += other.numWithRelevant;
+        sumAveragePrecision += other.sumAveragePrecision;
+        sumCoverage += other.sumCoverage;
+        sumErrorSetSize += other.sumErrorSetSize;
+        sumRankingLoss += other.sumRankingLoss;
+        numBipartitions += other.numBipartitions;
+        sumHammingLoss += other.sumHammingLoss;
+        sumSubsetAccuracy += other.sumSubsetAccuracy;
+        sumPrecision += other.sumPrecision;
+        sumRecall += other.sumRecall;
+        sumFMeasure += other.sumFMeasure;
+        sumAccuracy += other.sumAccuracy;
+        sumSpecificity += other.sumSpecificity;
+        for (int jj = 0; jj < numLabels; jj++) {
+            truePositives[jj] += other.truePositives[jj];
+            falsePositives[jj] += other.falsePositives[jj];
+            falseNegatives[jj] += other.falseNegatives[jj];
+            trueNegatives[jj] += other.trueNegatives[jj];
+        }
+    }
+
+    private void ensureCapacity(int minCapacity) {
+        if (minCapacity <= capacity) {
+            return;
+        }
+        capacity = Math.max(minCapacity, 2 * capacity);
+        for (int jj = 0; jj < numLabels; jj++) {
+            scores[jj] = Arrays.copyOf(scores[jj], capacity);
+            relevant[jj] = Arrays.copyOf(relevant[jj], capacity);
+        }
+    }
+
+    /**
+     * Get the measures, in the order of MultilabelClassificationEvaluation,
+     * followed by the bipartition measures if every instance has a
+     * bipartition.
+     */
+    public ArrayList<Measurement> getMeasurements() {
+        return getMeasurements(false);
+    }
+
+    /**
+     * Get the measures of getMeasurements followed by all other ranking and
+     * confidence measures of Mulan.
+     */
+    public ArrayList<Measurement> getAllMeasurements() {
+        return getMeasurements(true);
+    }
+
+    private ArrayList<Measurement> getMeasurements(boolean all) {
+        double map = 0.0;
+        int numLabelsWithRelevant = 0;
+        double macroAUC = 0.0;
+        // products and sum of the label measures, NaN if a label has no
+        // relevant instance as in Mulan
+        double apProduct = 1.0;
+        double maip = 0.0;
+        double maipProduct = 1.0;
+        // order of the instances by decreasing score, for each label
+        int[][] orders = new int[numLabels][];
+        for (int jj = 0; jj < numLabels; jj++) {
+            orders[jj] = sortByDecreasingScore(scores[jj], numInstances);
+            double ap = getAveragePrecision(relevant[jj], orders[jj]);
+            if (ap >= 0) {
+                map += ap;
+                numLabelsWithRelevant++;
+            }
+            macroAUC += getAUC(scores[jj], relevant[jj], orders[jj]);
+            if (all) {
+                apProduct *= ap;
+                double aip = getAverageInterpolatedPrecision(relevant[jj], orders[jj]);
+                maip += aip;
+                maipProduct *= aip;
+            }
+        }
+
+        // all instance-label pairs
+        double[] allScores = new double[numInstances * numLabels];
+        boolean[] allRelevant = new boolean[numInstances * numLabels];
+        for (int dd = 0; dd < numInstances; dd++) {
+            for (int jj = 0; jj < numLabels; jj++) {
+                allScores[dd * numLabels + jj] = scores[jj][dd];
+                allRelevant[dd * numLabels + jj] = relevant[jj][dd];
+            }
+        }
+        double microAUC = getAUC(allScores, allRelevant,
+                sortByDecreasingScore(allScores, allScores.length));
+
+        ArrayList<Measurement> measurements = new ArrayList<Measurement>();
+        measurements.add(new Measurement(MAP, map / numLabelsWithRelevant));
+        measurements.add(new Measurement(MICRO_AUC, microAUC));
+        measurements.add(new Measurement(MACRO_AUC, macroAUC / numLabels));
+        measurements.add(new Measurement(IS_ERROR, (double) numIsErrors / numInstances));
+        measurements.add(new Measurement(ONE_ERROR, (double) numOneErrors / numInstances));
+        if (numBipartitions > 0 && numBipartitions == numInstances) {
+            addBipartitionMeasurements(measurements);
+        }
+        if (all) {
+            measurements.add(new Measurement(AVERAGE_PRECISION, sumAveragePrecision / numWithRelevant));
+            measurements.add(new Measurement(COVERAGE, sumCoverage / numInstances));
+            measurements.add(new Measurement(ERROR_SET_SIZE, sumErrorSetSize / numInstances));
+            measurements.add(new Measurement(RANKING_LOSS, sumRankingLoss / numInstances));
+            measurements.add(new Measurement(GMAP, Math.pow(apProduct, 1.0 / numLabels)));
+            measurements.add(new Measurement(MAIP, maip / numLabels));
+            measurements.add(new Measurement(GMAIP, Math.pow(maipProduct, 1.0 / numLabels)));
+        }
+        return measurements;
+    }
+
+    private void addBipartitionMeasurements(ArrayList<Measurement> measurements) {
+        measurements.add(new Measurement(HAMMING_LOSS, sumHammingLoss / numBipartitions));
+        measurements.add(new Measurement(SUBSET_ACCURACY, sumSubsetAccuracy / numBipartitions));
+        measurements.add(new Measurement(EXAMPLE_PRECISION, sumPrecision / numBipartitions));
+        measurements.add(new Measurement(EXAMPLE_RECALL, sumRecall / numBipartitions));
+        measurements.add(new Measurement(EXAMPLE_F_MEASURE, sumFMeasure / numBipartitions));
+        measurements.add(new Measurement(EXAMPLE_ACCURACY, sumAccuracy / numBipartitions));
+        measurements.add(new Measurement(EXAMPLE_SPECIFICITY, sumSpecificity / numBipartitions));
+
+        double tp = 0.0;
+        double fp = 0.0;
+        double fn = 0.0;
+        double tn = 0.0;
+        double macroPrecision = 0.0;
+        double macroRecall = 0.0;
+        double macroFMeasure = 0.0;
+        double macroSpecificity = 0.0;
+        for (int jj = 0; jj < numLabels; jj++) {
+            tp += truePositives[jj];
+            fp += falsePositives[jj];
+            fn += falseNegatives[jj];
+            tn += trueNegatives[jj];
+            macroPrecision += getPrecision(truePositives[jj], falsePositives[jj], falseNegatives[jj]);
+            macroRecall += getRecall(truePositives[jj], falsePositives[jj], falseNegatives[jj]);
+            macroFMeasure += getFMeasure(truePositives[jj], falsePositives[jj], falseNegatives[jj]);
+            macroSpecificity += getSpecificity(trueNegatives[jj], falsePositives[jj], falseNegatives[jj]);
+        }
+        measurements.add(new Measurement(MICRO_PRECISION, getPrecision(tp, fp, fn)));
+        measurements.add(new Measurement(MICRO_RECALL, getRecall(tp, fp, fn)));
+        measurements.add(new Measurement(MICRO_F_MEASURE, getFMeasure(tp, fp, fn)));
+        measurements.add(new Measurement(MICRO_SPECIFICITY, getSpecificity(tn, fp, fn)));
+        measurements.add(new Measurement(MACRO_PRECISION, macroPrecision / numLabels));
+        measurements.add(new Measurement(MACRO_RECALL, macroRecall / numLabels));
+        measurements.add(new Measurement(MACRO_F_MEASURE, macroFMeasure / numLabels));
+        measurements.add(new Measurement(MACRO_SPECIFICITY, macroSpecificity / numLabels));
+    }
+
+    // As in Mulan, the precision, recall, F-measure and specificity are 1 when
+    // there is nothing to predict and predicted nothing, and 0 when undefined.
+    private static double getPrecision(double tp, double fp, double fn) {
+        if (tp + fp + fn == 0) {
+            return 1.0;
+        }
+        if (tp + fp == 0) {
+            return 0.0;
+        }
+        return tp / (tp + fp);
+    }
+
+    private static double getRecall(double tp, double fp, double fn) {
+        if (tp + fp + fn == 0) {
+            return 1.0;
+        }
+        if (tp + fn == 0) {
+            return 0.0;
+        }
+        return tp / (tp + fn);
+    }
+
+    private static double getFMeasure(double tp, double fp, double fn) {
+        if (tp + fp + fn == 0) {
+            return 1.0;
+        }
+        return 2 * tp / (2 * tp + fn + fp);
+    }
+
+    private static double getSpecificity(double tn, double fp, double fn) {
+        if (tn + fp + fn == 0) {
+            return 1.0;
+        }
+        if (tn + fp == 0) {
+            return 0.0;
+        }
+        return tn / (tn + fp);
+    }
+
+    /**
+     * Get the value of a measure.
+     */
+    public double getMeasurement(String name) {
+        ArrayList<String> names = new ArrayList<String>();
+        for (Measurement m : getMeasurements()) {
+            if (m.getName().equals(name)) {
+                return m.getValue();
+            }
+            names.add(m.getName());
+        }
+        throw new RuntimeException("Measurement " + name + " does not exist. "
+                + "Use one of " + names);
+    }
+
+    /**
+     * Compute the average precision of the instances ranked by decreasing
+     * score, which is NaN if no instance is relevant.
+     */
+    private static double getAveragePrecision(boolean[] isRelevant, int[] order) {
+        double ap = 0.0;
+        double numRetrieved = 0.0;
+        double numRelevant = 0.0;
+        for (int ii = 0; ii < order.length; ii++) {
+            numRetrieved += 1.0;
+            if (isRelevant[order[ii]]) {
+                numRelevant += 1.0;
+                ap += numRelevant / numRetrieved;
+            }
+        }
+        return ap / numRelevant;
+    }
+
+    /**
+     * Compute the mean over the recall levels of the highest precision at a
+     * recall of at least the level, of the instances ranked by decreasing
+     * score. This is NaN if no instance is relevant.
+     */
+    private static double getAverageInterpolatedPrecision(boolean[] isRelevant, int[] order) {
+        double[] precisions = new double[order.length];
+        double[] recalls = new double[order.length];
+        double numRelevant = 0.0;
+        for (int ii = 0; ii < order.length; ii++) {
+            if (isRelevant[order[ii]]) {
+                numRelevant += 1.0;
+            }
+            precisions[ii] = numRelevant / (ii + 1.0);
+        }
+        double numRetrievedRelevant = 0.0;
+        for (int ii = 0; ii < order.length; ii++) {
+            if (isRelevant[order[ii]]) {
+                numRetrievedRelevant += 1.0;
+            }
+            recalls[ii] = numRetrievedRelevant / numRelevant;
+        }
+        double sum = 0.0;
+        for (int ll = 0; ll < NUM_RECALL_LEVELS; ll++) {
+            double recallLevel = (double) ll / (NUM_RECALL_LEVELS - 1);
+            int pos = 0;
+            while (pos < recalls.length && !(recalls[pos] >= recallLevel)) {
+                pos++;
+            }
+            if (pos == recalls.length) {
+                return Double.NaN;
+            }
+            double maxPrecision = precisions[pos];
+            for (int ii = pos + 1; ii < precisions.length; ii++) {
+                if (precisions[ii] > maxPrecision) {
+                    maxPrecision = precisions[ii];
+                }
+            }
+            sum += maxPrecision;
+        }
+        return sum / NUM_RECALL_LEVELS;
+    }
+
+    /**
+     * Compute the area under the ROC curve, counting a tied relevant and
+     * irrelevant instance as half ranked correctly. As in Weka's
+     * ThresholdCurve, the groups of tied scores are added by increasing score.
+     */
+    private static double getAUC(double[] values, boolean[] isRelevant, int[] order) {
+        double numPositives = 0.0;
+        double numNegatives = 0.0;
+        for (int ii = 0; ii < order.length; ii++) {
+            if (isRelevant[order[ii]]) {
+                numPositives += 1.0;
+            } else {
+                numNegatives += 1.0;
+            }
+        }
+        double area = 0.0;
+        double cumNegatives = 0.0;
+        int end = order.length;
+        while (end > 0) {
+            int start = end - 1;
+            while (start > 0 && values[order[start - 1]] == values[order[end - 1]]) {
+                start--;
+            }
+            double groupPositives = 0.0;
+            double groupNegatives = 0.0;
+            for (int ii = start; ii < end; ii++) {
+                if (isRelevant[order[ii]]) {
+                    groupPositives += 1.0;
+                } else {
+                    groupNegatives += 1.0;
+                }
+            }
+            area += groupPositives * (cumNegatives + 0.5 * groupNegatives);
+            cumNegatives += groupNegatives;
+            end = start;
+        }
+        return area / (numNegatives * numPositives);
+    }
+
+    /**
+     * Sort the first instances by decreasing score, tied instances keeping
+     * their order.
+     */
+    private static int[] sortByDecreasingScore(double[] values, int length) {
+        int[] order = new int[length];
+        for (int ii = 0; ii < length; ii++) {
+            order[ii] = ii;
+        }
+        int[] temp = new int[length];
+        // bottom-up merge sort, which is stable
+        for (int width = 1; width < length; width *= 2) {
+            for (int lo = 0; lo < length - width; lo += 2 * width) {
+                int mid = lo + width;
+                int hi = Math.min(lo + 2 * width, length);
+                int ll = lo;
+                int rr = mid;
+                int kk = lo;
+                while (ll < mid && rr < hi) {
+                    if (values[order[rr]] > values[order[ll]]) {
+                        temp[kk++] = order[rr++];
+                    } else {
+                        temp[kk++] = order[ll++];
+                    }
+                }
+                while (ll < mid) {
+                    temp[kk++] = order[ll++];
+                }
+                while (rr < hi) {
+                    temp[kk++] = order[rr++];
+                }
+                System.arraycopy(temp, lo, order, lo, hi - lo);
+            }
+        }
+        return order;
+    }
+}
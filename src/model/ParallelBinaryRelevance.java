@@ -0,0 +1,201 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import mulan.classifier.MultiLabelLearnerBase;
+import mulan.classifier.MultiLabelOutput;
+import mulan.data.MultiLabelInstances;
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.TechnicalInformation;
+import weka.core.Utils;
+
+/**
+ * Binary relevance learner training the classifiers of the labels at the same
+ * time on a thread pool. It gives the same predictions as Mulan's
+ * BinaryRelevance, whose binary problems have the features of the
+ * multi-label instances (in the same order) followed by a {0, 1} class.
+ *
+ * Unlike BinaryRelevance, which copies the training set for each label, the
+ * non-zero features of each training instance are extracted once and shared,
+ * read-only, by the BinaryLabelInstance views of all binary problems. Each
+ * label is trained on its own copy of the base classifier.
+ *
+ * @author vietan
+ */
+public class ParallelBinaryRelevance extends MultiLabelLearnerBase {
+
+    private static final long serialVersionUID = 1L;
+    private final Classifier baseClassifier;
+    private final int numThreads;
+    private Classifier[] classifiers;
+    // header of the binary problem of each label
+    private Instances[] headers;
+    // index of each attribute among the features, or -1 for labels
+    private int[] featurePositions;
+    // whether the first value of each label attribute is "1" rather than "0"
+    private boolean[] reversedLabels;
+
+    /**
+     * @param baseClassifier The classifier copied for each label
+     * @param numThreads The number of labels trained at the same time
+     */
+    public ParallelBinaryRelevance(Classifier baseClassifier, int numThreads) {
+        this.baseClassifier = baseClassifier;
+        this.numThreads = Math.max(1, numThreads);
+    }
+
+    public String getName() {
+        return "parallel-br";
+    }
+
+    @Override
+    protected void buildInternal(MultiLabelInstances trainingSet) throws Exception {
+        Instances data = trainingSet.getDataSet();
+        featurePositions = new int[data.numAttributes()];
+        ArrayList<Attribute> attributes = new ArrayList<Attribute>();
+        for (int ii = 0; ii < data.numAttributes(); ii++) {
+            featurePositions[ii] = -1;
+        }
+        for (int ii = 0; ii < featureIndices.length; ii++) {
+            featurePositions[featureIndices[ii]] = ii;
+            attributes.add((Attribute) data.attribute(featureIndices[ii]).copy());
+        }
+        ArrayList<String> binaryValues = new ArrayList<String>();
+        binaryValues.add("0");
+        binaryValues.add("1");
+        attributes.add(new Attribute("BinaryRelevanceLabel", binaryValues));
+
+        headers = new Instances[numLabels];
+        reversedLabels = new boolean[numLabels];
+        for (int jj = 0; jj < numLabels; jj++) {
+            Attribute label = data.attribute(labelIndices[jj]);
+            headers[jj] = new Instances(data.relationName() + "-" + label.name(),
+                    attributes, 0);
+            headers[jj].setClassIndex(attributes.size() - 1);
+            reversedLabels[jj] = label.value(0).equals("1");
+        }
+
+        // features of each training instance, shared by the binary problems
+        final int numInstances = data.numInstances();
+        final int[][] indices = new int[numInstances][];
+        final double[][] values = new double[numInstances][];
+        final double[] weights = new double[numInstances];
+        final double[][] classValues = new double[numLabels][numInstances];
+        for (int dd = 0; dd < numInstances; dd++) {
+            Instance instance = data.instance(dd);
+            indices[dd] = extractFeatureIndices(instance);
+            values[dd] = extractFeatureValues(instance, indices[dd].length);
+            weights[dd] = instance.weight();
+            for (int jj = 0; jj < numLabels; jj++) {
+                classValues[jj][dd] = getClassValue(instance, jj);
+            }
+        }
+
+        classifiers = AbstractClassifier.makeCopies(baseClassifier, numLabels);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(numThreads, numLabels));
+        try {
+            ArrayList<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int jj = 0; jj < numLabels; jj++) {
+                final int label = jj;
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        Instances problem = new Instances(headers[label], numInstances);
+                        for (int dd = 0; dd < numInstances; dd++) {
+                            problem.add(new BinaryLabelInstance(weights[dd], indices[dd],
+                                    values[dd], classValues[label][dd], problem.numAttributes()));
+                        }
+                        debug("Building model " + (label + 1) + "/" + numLabels);
+                        classifiers[label].buildClassifier(problem);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+            throw new RuntimeException("Exception while training binary relevance classifiers");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    protected MultiLabelOutput makePredictionInternal(Instance instance) throws Exception {
+        int[] indices = extractFeatureIndices(instance);
+        double[] values = extractFeatureValues(instance, indices.length);
+        boolean[] bipartition = new boolean[numLabels];
+        double[] confidences = new double[numLabels];
+        for (int jj = 0; jj < numLabels; jj++) {
+            BinaryLabelInstance labelInstance = new BinaryLabelInstance(instance.weight(),
+                    indices, values, Utils.missingValue(), headers[jj].numAttributes());
+            labelInstance.setDataset(headers[jj]);
+            double[] distribution = classifiers[jj].distributionForInstance(labelInstance);
+            bipartition[jj] = !(distribution[0] > distribution[1]);
+            confidences[jj] = distribution[1];
+        }
+        return new MultiLabelOutput(bipartition, confidences);
+    }
+
+    /**
+     * Get the class value of the binary problem of a label, 1 if the instance
+     * has the label.
+     */
+    private double getClassValue(Instance instance, int label) {
+        double value = instance.value(labelIndices[label]);
+        if (reversedLabels[label] && !Utils.isMissingValue(value)) {
+            return 1.0 - value;
+        }
+        return value;
+    }
+
+    /**
+     * Get the positions, among the features, of the non-zero features of an
+     * instance, in increasing order.
+     */
+    private int[] extractFeatureIndices(Instance instance) {
+        int numValues = 0;
+        int[] indices = new int[instance.numValues()];
+        for (int ii = 0; ii < instance.numValues(); ii++) {
+            int position = featurePositions[instance.index(ii)];
+            if (position >= 0 && instance.valueSparse(ii) != 0) {
+                indices[numValues++] = position;
+            }
+        }
+        int[] result = new int[numValues];
+        System.arraycopy(indices, 0, result, 0, numValues);
+        return result;
+    }
+
+    private double[] extractFeatureValues(Instance instance, int numValues) {
+        double[] values = new double[numValues];
+        int nn = 0;
+        for (int ii = 0; ii < instance.numValues(); ii++) {
+            int position = featurePositions[instance.index(ii)];
+            if (position >= 0 && instance.valueSparse(ii) != 0) {
+                values[nn++] = instance.valueSparse(ii);
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public String globalInfo() {
+        return "Binary relevance training the label classifiers in parallel";
+    }
+
+    @Override
+    public TechnicalInformation getTechnicalInformation() {
+        return null;
+    }
+}
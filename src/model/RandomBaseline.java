@@ -17,7 +17,11 @@ public class RandomBaseline extends MultiLabelLearnerBase {
     private Random rand;
 
     public RandomBaseline() {
-        this.rand = new Random(1);
+        this(1);
+    }
+
+    public RandomBaseline(long seed) {
+        this.rand = new Random(seed);
     }
 
     public String getName() {
@@ -0,0 +1,213 @@
+package model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+/**
+ * Random-hyperplane locality sensitive hashing of sparse vectors for cosine
+ * similarity. Each of the tables hashes a vector to the signs of its dot
+ * products with numBits random hyperplanes, so that two vectors get the same
+ * bit with probability 1 - angle / pi. Vectors whose signature is the same
+ * (or differs in at most numProbes bits) in some table are candidate
+ * neighbors. More tables or probes increase the recall; more bits decrease the
+ * number of candidates.
+ *
+ * The hyperplanes are not stored: the coordinate of a hyperplane for a word
+ * is a random sign derived from a hash of the seed, table and word.
+ *
+ * @author vietan
+ */
+public class RandomHyperplaneLSH {
+
+    public static final int MAGIC = 0x43464c53; // CFLS
+    public static final int VERSION = 1;
+    public static final int MAX_BITS = 30;
+    private final int numTables;
+    private final int numBits;
+    private final long seed;
+    private final int numVectors;
+    // vectors of each table, sorted by signature
+    private final int[][] sortedSignatures;
+    private final int[][] sortedVectors;
+
+    private RandomHyperplaneLSH(int numTables, int numBits, long seed, int numVectors,
+            int[][] sortedSignatures, int[][] sortedVectors) {
+        this.numTables = numTables;
+        this.numBits = numBits;
+        this.seed = seed;
+        this.numVectors = numVectors;
+        this.sortedSignatures = sortedSignatures;
+        this.sortedVectors = sortedVectors;
+    }
+
+    /**
+     * Hash sparse vectors stored in compressed sparse row format: the entries
+     * of vector r are at positions offsets[r] to offsets[r + 1] - 1.
+     *
+     * @param numTables The number of hash tables
+     * @param numBits The number of bits of a signature
+     * @param seed The seed of the hyperplanes
+     */
+    public static RandomHyperplaneLSH build(int numTables, int numBits, long seed,
+            int[] offsets, int[] indices, double[] values) {
+        if (numTables <= 0 || numBits <= 0 || numBits > MAX_BITS) {
+            throw new RuntimeException("Invalid LSH configuration: " + numTables
+                    + " tables of " + numBits + " bits");
+        }
+        int numVectors = offsets.length - 1;
+        int[][] signatures = new int[numTables][numVectors];
+        double[] projections = new double[numBits];
+        for (int r = 0; r < numVectors; r++) {
+            for (int t = 0; t < numTables; t++) {
+                signatures[t][r] = computeSignature(seed, t, numBits, indices, values,
+                        offsets[r], offsets[r + 1], projections);
+            }
+        }
+        int[][] sortedSignatures = new int[numTables][numVectors];
+        int[][] sortedVectors = new int[numTables][numVectors];
+        long[] keys = new long[numVectors];
+        for (int t = 0; t < numTables; t++) {
+            for (int r = 0; r < numVectors; r++) {
+                keys[r] = ((long) signatures[t][r] << 32) | r;
+            }
+            Arrays.sort(keys);
+            for (int ii = 0; ii < numVectors; ii++) {
+                sortedSignatures[t][ii] = (int) (keys[ii] >>> 32);
+                sortedVectors[t][ii] = (int) keys[ii];
+            }
+        }
+        return new RandomHyperplaneLSH(numTables, numBits, seed, numVectors,
+                sortedSignatures, sortedVectors);
+    }
+
+    public int getNumTables() {
+        return numTables;
+    }
+
+    public int getNumBits() {
+        return numBits;
+    }
+
+    public int getNumVectors() {
+        return numVectors;
+    }
+
+    /**
+     * Compute the signature of a sparse vector in a table.
+     *
+     * @param projections Buffer of numBits values
+     */
+    public int computeSignature(int table, int[] indices, double[] values,
+            int start, int end, double[] projections) {
+        return computeSignature(seed, table, numBits, indices, values, start, end,
+                projections);
+    }
+
+    private static int computeSignature(long seed, int table, int numBits, int[] indices,
+            double[] values, int start, int end, double[] projections) {
+        Arrays.fill(projections, 0, numBits, 0.0);
+        for (int p = start; p < end; p++) {
+            long signs = mix(seed + 0x9E3779B97F4A7C15L * (table + 1) + indices[p]);
+            for (int b = 0; b < numBits; b++) {
+                if (((signs >>> b) & 1L) == 0) {
+                    projections[b] += values[p];
+                } else {
+                    projections[b] -= values[p];
+                }
+            }
+        }
+        int signature = 0;
+        for (int b = 0; b < numBits; b++) {
+            if (projections[b] >= 0) {
+                signature |= 1 << b;
+            }
+        }
+        return signature;
+    }
+
+    /**
+     * SplitMix64 finalizer, giving 64 random bits for each word of a table.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Get the position of the first vector of a bucket in a table, or of the
+     * next bucket if the bucket is empty.
+     */
+    public int getBucketStart(int table, int signature) {
+        int[] sigs = sortedSignatures[table];
+        int lo = 0;
+        int hi = sigs.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sigs[mid] < signature) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    public int getSignature(int table, int position) {
+        return sortedSignatures[table][position];
+    }
+
+    public int getVector(int table, int position) {
+        return sortedVectors[table][position];
+    }
+
+    public void write(File file) throws Exception {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(numTables);
+        out.writeInt(numBits);
+        out.writeLong(seed);
+        out.writeInt(numVectors);
+        for (int t = 0; t < numTables; t++) {
+            for (int ii = 0; ii < numVectors; ii++) {
+                out.writeInt(sortedSignatures[t][ii]);
+                out.writeInt(sortedVectors[t][ii]);
+            }
+        }
+        out.close();
+    }
+
+    public static RandomHyperplaneLSH read(File file) throws Exception {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file), 1 << 16));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new RuntimeException("Unsupported LSH index file " + file);
+            }
+            int numTables = in.readInt();
+            int numBits = in.readInt();
+            long seed = in.readLong();
+            int numVectors = in.readInt();
+            int[][] sortedSignatures = new int[numTables][numVectors];
+            int[][] sortedVectors = new int[numTables][numVectors];
+            for (int t = 0; t < numTables; t++) {
+                for (int ii = 0; ii < numVectors; ii++) {
+                    sortedSignatures[t][ii] = in.readInt();
+                    sortedVectors[t][ii] = in.readInt();
+                }
+            }
+            return new RandomHyperplaneLSH(numTables, numBits, seed, numVectors,
+                    sortedSignatures, sortedVectors);
+        } finally {
+            in.close();
+        }
+    }
+}
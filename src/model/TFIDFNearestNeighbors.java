@@ -0,0 +1,588 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import sampler.labeled.TFIDF;
+import util.SparseVector;
+
+/**
+ * TF-IDF cosine similarity scoring of documents against a set of labeled
+ * reference vectors, using an inverted index from each word to the
+ * references containing it. Only the postings of the words of a document are
+ * visited, so scoring a document costs the number of matching postings rather
+ * than the size of all references.
+ *
+ * The references are either the label vectors of a trained TFIDF model (the
+ * score of a label is then its cosine similarity, as in TFIDF.predict), or the
+ * training documents (the score of a label is the sum of the similarities of
+ * the nearest training documents having it). Documents are scored in blocks
+ * by several threads, each keeping its own accumulators.
+ *
+ * For large training sets, the nearest training documents can instead be
+ * searched approximately with a RandomHyperplaneLSH index (see setLSH), in
+ * which case the inverted index is not built.
+ *
+ * @author vietan
+ */
+public class TFIDFNearestNeighbors {
+
+    // documents shorter than this are not used as references, as in TFIDF
+    public static final int MIN_DOC_LENGTH = 5;
+    private final double[] idfs;
+    private final int numLabels;
+    // words and weights of reference r are at positions refOffsets[r] to
+    // refOffsets[r + 1] - 1
+    private final int[] refOffsets;
+    private final int[] refTerms;
+    private final double[] refWeights;
+    private final double[] refNorms;
+    private final int[][] refLabels;
+    private final int numNeighbors;
+    // inverted index, built on first exact search: the postings of word v are
+    // at positions termOffsets[v] to termOffsets[v + 1] - 1
+    private int[] termOffsets;
+    private int[] postingRefs;
+    private double[] postingWeights;
+    private RandomHyperplaneLSH lsh;
+    private int numProbes;
+    private int numThreads = 1;
+    private int blockSize = 256;
+
+    /**
+     * @param idfs The inverse document frequencies of the words
+     * @param numLabels The number of labels
+     * @param refTerms The words of each reference, without duplicates
+     * @param refWeights The weights of the words of each reference
+     * @param refLabels The labels of each reference
+     * @param numNeighbors The number of most similar references voting for
+     * their labels, or 0 for all references
+     */
+    private TFIDFNearestNeighbors(double[] idfs, int numLabels,
+            ArrayList<int[]> refTerms, ArrayList<double[]> refWeights,
+            ArrayList<int[]> refLabels, int numNeighbors) {
+        this.idfs = idfs;
+        this.numLabels = numLabels;
+        this.numNeighbors = numNeighbors;
+        int numRefs = refTerms.size();
+        this.refLabels = refLabels.toArray(new int[numRefs][]);
+        this.refNorms = new double[numRefs];
+        this.refOffsets = new int[numRefs + 1];
+        for (int r = 0; r < numRefs; r++) {
+            refOffsets[r + 1] = refOffsets[r] + refTerms.get(r).length;
+        }
+        this.refTerms = new int[refOffsets[numRefs]];
+        this.refWeights = new double[refOffsets[numRefs]];
+        for (int r = 0; r < numRefs; r++) {
+            int[] terms = refTerms.get(r);
+            double[] weights = refWeights.get(r);
+            double norm = 0.0;
+            for (int ii = 0; ii < terms.length; ii++) {
+                this.refTerms[refOffsets[r] + ii] = terms[ii];
+                this.refWeights[refOffsets[r] + ii] = weights[ii];
+                norm += weights[ii] * weights[ii];
+            }
+            refNorms[r] = Math.sqrt(norm);
+        }
+    }
+
+    private synchronized void buildInvertedIndex() {
+        if (termOffsets != null) {
+            return;
+        }
+        int[] offsets = new int[idfs.length + 1];
+        for (int p = 0; p < refTerms.length; p++) {
+            offsets[refTerms[p] + 1]++;
+        }
+        for (int v = 0; v < idfs.length; v++) {
+            offsets[v + 1] += offsets[v];
+        }
+        postingRefs = new int[refTerms.length];
+        postingWeights = new double[refTerms.length];
+        int[] next = Arrays.copyOf(offsets, idfs.length);
+        for (int r = 0; r < refNorms.length; r++) {
+            for (int p = refOffsets[r]; p < refOffsets[r + 1]; p++) {
+                int pos = next[refTerms[p]]++;
+                postingRefs[pos] = r;
+                postingWeights[pos] = refWeights[p];
+            }
+        }
+        termOffsets = offsets;
+    }
+
+    /**
+     * Create an index of the label vectors of a trained TFIDF model, giving
+     * the same scores as TFIDF.predict.
+     */
+    public static TFIDFNearestNeighbors fromLabelVectors(TFIDF model) {
+        SparseVector[] labelVectors = model.getLabelVectors();
+        ArrayList<int[]> refTerms = new ArrayList<int[]>();
+        ArrayList<double[]> refWeights = new ArrayList<double[]>();
+        ArrayList<int[]> refLabels = new ArrayList<int[]>();
+        for (int ll = 0; ll < labelVectors.length; ll++) {
+            if (labelVectors[ll].size() == 0) {
+                continue; // scored 0, as in TFIDF.predict
+            }
+            int[] terms = new int[labelVectors[ll].size()];
+            double[] weights = new double[terms.length];
+            int ii = 0;
+            for (int v : labelVectors[ll].getIndices()) {
+                terms[ii] = v;
+                weights[ii] = labelVectors[ll].get(v);
+                ii++;
+            }
+            refTerms.add(terms);
+            refWeights.add(weights);
+            refLabels.add(new int[]{ll});
+        }
+        return new TFIDFNearestNeighbors(model.getIdfs(), labelVectors.length,
+                refTerms, refWeights, refLabels, 0);
+    }
+
+    /**
+     * Create an index of training documents, weighted as in TFIDF.learn
+     * (augmented term frequency times inverse document frequency). Documents
+     * without labels or shorter than MIN_DOC_LENGTH are left out.
+     *
+     * @param words The words of the training documents
+     * @param labels The labels of the training documents
+     * @param idfs The inverse document frequencies of the words
+     * @param numLabels The number of labels
+     * @param numNeighbors The number of nearest training documents voting for
+     * their labels
+     */
+    public static TFIDFNearestNeighbors fromDocuments(int[][] words, int[][] labels,
+            double[] idfs, int numLabels, int numNeighbors) {
+        if (numNeighbors <= 0) {
+            throw new RuntimeException("Invalid number of neighbors " + numNeighbors);
+        }
+        ArrayList<int[]> refTerms = new ArrayList<int[]>();
+        ArrayList<double[]> refWeights = new ArrayList<double[]>();
+        ArrayList<int[]> refLabels = new ArrayList<int[]>();
+        for (int dd = 0; dd < words.length; dd++) {
+            if (labels[dd] == null || labels[dd].length == 0
+                    || words[dd].length < MIN_DOC_LENGTH) {
+                continue;
+            }
+            int[] terms = new int[words[dd].length];
+            int[] counts = new int[words[dd].length];
+            int numTerms = countTerms(words[dd], terms, counts);
+            int maxCount = 0;
+            for (int ii = 0; ii < numTerms; ii++) {
+                maxCount = Math.max(maxCount, counts[ii]);
+            }
+            double[] weights = new double[numTerms];
+            for (int ii = 0; ii < numTerms; ii++) {
+                weights[ii] = (0.5 + 0.5 * counts[ii] / maxCount) * idfs[terms[ii]];
+            }
+            refTerms.add(Arrays.copyOf(terms, numTerms));
+            refWeights.add(weights);
+            refLabels.add(labels[dd]);
+        }
+        return new TFIDFNearestNeighbors(idfs, numLabels, refTerms, refWeights,
+                refLabels, numNeighbors);
+    }
+
+    public int getNumReferences() {
+        return refNorms.length;
+    }
+
+    public int getNumPostings() {
+        return refTerms.length;
+    }
+
+    public void setNumThreads(int numThreads) {
+        this.numThreads = Math.max(1, numThreads);
+    }
+
+    /**
+     * Set the number of documents scored by a thread at a time.
+     */
+    public void setBlockSize(int blockSize) {
+        this.blockSize = Math.max(1, blockSize);
+    }
+
+    /**
+     * Hash the references with random-hyperplane LSH.
+     *
+     * @param numTables The number of hash tables
+     * @param numBits The number of bits of a signature
+     * @param seed The seed of the hyperplanes
+     */
+    public RandomHyperplaneLSH buildLSH(int numTables, int numBits, long seed) {
+        return RandomHyperplaneLSH.build(numTables, numBits, seed, refOffsets,
+                refTerms, refWeights);
+    }
+
+    /**
+     * Search the nearest references approximately: the candidate neighbors of
+     * a document are the references hashed to the same bucket in some table
+     * of the index, or to a bucket whose signature differs in at most
+     * numProbes bits. Only the similarities of the candidates are computed.
+     *
+     * @param lsh The LSH index of the references (see buildLSH), or null to
+     * search exactly
+     * @param numProbes The number of bits in which a probed bucket may differ
+     */
+    public void setLSH(RandomHyperplaneLSH lsh, int numProbes) {
+        if (lsh != null) {
+            if (numNeighbors <= 0) {
+                throw new RuntimeException("Approximate search requires a number of neighbors");
+            }
+            if (lsh.getNumVectors() != refNorms.length) {
+                throw new RuntimeException("LSH index of " + lsh.getNumVectors()
+                        + " vectors for " + refNorms.length + " references");
+            }
+        }
+        this.lsh = lsh;
+        this.numProbes = Math.max(0, numProbes);
+    }
+
+    /**
+     * Score the labels of a document.
+     */
+    public double[] predict(int[] doc) {
+        if (lsh == null) {
+            buildInvertedIndex();
+        }
+        return new Scorer().score(doc);
+    }
+
+    /**
+     * Score the labels of documents, in blocks shared by the threads.
+     */
+    public double[][] predict(final int[][] docs) {
+        final double[][] predictions = new double[docs.length][];
+        forEachDocument(docs.length, new DocumentTask() {
+            @Override
+            public void run(Scorer scorer, int dd) {
+                predictions[dd] = scorer.score(docs[dd]);
+            }
+        });
+        return predictions;
+    }
+
+    /**
+     * Find the nearest references of documents.
+     *
+     * @return The indices of the nearest references of each document, most
+     * similar first
+     */
+    public int[][] findNeighbors(final int[][] docs) {
+        if (numNeighbors <= 0) {
+            throw new RuntimeException("No number of neighbors to find");
+        }
+        final int[][] neighbors = new int[docs.length][];
+        forEachDocument(docs.length, new DocumentTask() {
+            @Override
+            public void run(Scorer scorer, int dd) {
+                neighbors[dd] = scorer.findNeighbors(docs[dd]);
+            }
+        });
+        return neighbors;
+    }
+
+    private interface DocumentTask {
+
+        void run(Scorer scorer, int dd);
+    }
+
+    private void forEachDocument(final int numDocs, final DocumentTask task) {
+        if (lsh == null) {
+            buildInvertedIndex();
+        }
+        final int numBlocks = (numDocs + blockSize - 1) / blockSize;
+        int threads = Math.min(numThreads, numBlocks);
+        if (threads <= 1) {
+            Scorer scorer = new Scorer();
+            for (int dd = 0; dd < numDocs; dd++) {
+                task.run(scorer, dd);
+            }
+            return;
+        }
+
+        final AtomicInteger nextBlock = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            ArrayList<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int tt = 0; tt < threads; tt++) {
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        Scorer scorer = new Scorer();
+                        int block;
+                        while ((block = nextBlock.getAndIncrement()) < numBlocks) {
+                            int end = Math.min(numDocs, (block + 1) * blockSize);
+                            for (int dd = block * blockSize; dd < end; dd++) {
+                                task.run(scorer, dd);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+            throw new RuntimeException("Exception while scoring documents");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while scoring documents");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Count the distinct words of a document.
+     *
+     * @return The number of distinct words, stored with their counts at the
+     * beginning of terms and counts
+     */
+    private static int countTerms(int[] doc, int[] terms, int[] counts) {
+        int[] sorted = Arrays.copyOf(doc, doc.length);
+        Arrays.sort(sorted);
+        int numTerms = 0;
+        for (int ii = 0; ii < sorted.length; ii++) {
+            if (numTerms > 0 && terms[numTerms - 1] == sorted[ii]) {
+                counts[numTerms - 1]++;
+            } else {
+                terms[numTerms] = sorted[ii];
+                counts[numTerms] = 1;
+                numTerms++;
+            }
+        }
+        return numTerms;
+    }
+
+    /**
+     * Accumulators of one thread. The similarities with the references are
+     * accumulated in a dense array, reset lazily using a stamp per reference.
+     */
+    private class Scorer {
+
+        private final double[] sims = new double[refNorms.length];
+        private final int[] stamps = new int[refNorms.length];
+        private final int[] touched = new int[refNorms.length];
+        private int numTouched;
+        private int stamp = 0;
+        private int[] terms = new int[0];
+        private int[] counts = new int[0];
+        private double[] weights = new double[0];
+        // dense query vector, used to compute the similarities of LSH candidates
+        private double[] queryWeights;
+        private double[] projections;
+        // bounded min-heap of the most similar references
+        private final int[] heapRefs = new int[Math.max(0, numNeighbors)];
+        private final double[] heapSims = new double[Math.max(0, numNeighbors)];
+        private int heapSize;
+
+        double[] score(int[] doc) {
+            double[] scores = new double[numLabels];
+            if (!computeSimilarities(doc)) {
+                return scores;
+            }
+            if (numNeighbors <= 0) {
+                for (int ii = 0; ii < numTouched; ii++) {
+                    int r = touched[ii];
+                    for (int ll : refLabels[r]) {
+                        scores[ll] += sims[r];
+                    }
+                }
+                return scores;
+            }
+            selectNeighbors();
+            for (int ii = 0; ii < heapSize; ii++) {
+                for (int ll : refLabels[heapRefs[ii]]) {
+                    scores[ll] += heapSims[ii];
+                }
+            }
+            return scores;
+        }
+
+        int[] findNeighbors(int[] doc) {
+            heapSize = 0;
+            if (computeSimilarities(doc)) {
+                selectNeighbors();
+            }
+            // sort the heap by popping its least similar reference
+            int[] neighbors = new int[heapSize];
+            for (int ii = heapSize - 1; ii >= 0; ii--) {
+                neighbors[ii] = heapRefs[0];
+                swap(0, heapSize - 1);
+                heapSize--;
+                siftDown(heapSize);
+            }
+            return neighbors;
+        }
+
+        /**
+         * Compute the cosine similarities of a document with the references
+         * sharing a word with it, or with the LSH candidates.
+         *
+         * @return Whether the document has a non-zero vector
+         */
+        private boolean computeSimilarities(int[] doc) {
+            numTouched = 0;
+            if (doc.length == 0) {
+                return false;
+            }
+            if (terms.length < doc.length) {
+                terms = new int[doc.length];
+                counts = new int[doc.length];
+                weights = new double[doc.length];
+            }
+            int numTerms = countTerms(doc, terms, counts);
+            double norm = 0.0;
+            for (int ii = 0; ii < numTerms; ii++) {
+                weights[ii] = counts[ii] * idfs[terms[ii]];
+                norm += weights[ii] * weights[ii];
+            }
+            norm = Math.sqrt(norm);
+            if (norm == 0.0) {
+                return false;
+            }
+            stamp++;
+            if (lsh == null) {
+                for (int ii = 0; ii < numTerms; ii++) {
+                    int v = terms[ii];
+                    for (int p = termOffsets[v]; p < termOffsets[v + 1]; p++) {
+                        int r = postingRefs[p];
+                        if (stamps[r] != stamp) {
+                            stamps[r] = stamp;
+                            sims[r] = 0.0;
+                            touched[numTouched++] = r;
+                        }
+                        sims[r] += weights[ii] * postingWeights[p];
+                    }
+                }
+            } else {
+                collectCandidates(numTerms);
+                if (queryWeights == null) {
+                    queryWeights = new double[idfs.length];
+                }
+                for (int ii = 0; ii < numTerms; ii++) {
+                    queryWeights[terms[ii]] = weights[ii];
+                }
+                for (int ii = 0; ii < numTouched; ii++) {
+                    int r = touched[ii];
+                    double dotProduct = 0.0;
+                    for (int p = refOffsets[r]; p < refOffsets[r + 1]; p++) {
+                        dotProduct += refWeights[p] * queryWeights[refTerms[p]];
+                    }
+                    sims[r] = dotProduct;
+                }
+                for (int ii = 0; ii < numTerms; ii++) {
+                    queryWeights[terms[ii]] = 0.0;
+                }
+            }
+            for (int ii = 0; ii < numTouched; ii++) {
+                int r = touched[ii];
+                sims[r] /= refNorms[r] * norm;
+            }
+            return true;
+        }
+
+        private void collectCandidates(int numTerms) {
+            if (projections == null) {
+                projections = new double[lsh.getNumBits()];
+            }
+            for (int t = 0; t < lsh.getNumTables(); t++) {
+                int signature = lsh.computeSignature(t, terms, weights, 0, numTerms,
+                        projections);
+                probe(t, signature, 0, numProbes);
+            }
+        }
+
+        /**
+         * Add the references of a bucket and of the buckets whose signatures
+         * differ in at most numFlips of the bits from the given bit on.
+         */
+        private void probe(int table, int signature, int fromBit, int numFlips) {
+            for (int pos = lsh.getBucketStart(table, signature);
+                    pos < lsh.getNumVectors() && lsh.getSignature(table, pos) == signature;
+                    pos++) {
+                int r = lsh.getVector(table, pos);
+                if (stamps[r] != stamp) {
+                    stamps[r] = stamp;
+                    touched[numTouched++] = r;
+                }
+            }
+            if (numFlips == 0) {
+                return;
+            }
+            for (int b = fromBit; b < lsh.getNumBits(); b++) {
+                probe(table, signature ^ (1 << b), b + 1, numFlips - 1);
+            }
+        }
+
+        private void selectNeighbors() {
+            heapSize = 0;
+            for (int ii = 0; ii < numTouched; ii++) {
+                int r = touched[ii];
+                if (heapSize < heapRefs.length) {
+                    heapRefs[heapSize] = r;
+                    heapSims[heapSize] = sims[r];
+                    siftUp(heapSize++);
+                } else if (isWorse(heapRefs[0], heapSims[0], r, sims[r])) {
+                    heapRefs[0] = r;
+                    heapSims[0] = sims[r];
+                    siftDown(heapSize);
+                }
+            }
+        }
+
+        /**
+         * Whether reference r1 is less similar than r2. Ties are broken by
+         * reference index so that the neighbors do not depend on the order
+         * of the postings.
+         */
+        private boolean isWorse(int r1, double sim1, int r2, double sim2) {
+            return sim1 < sim2 || (sim1 == sim2 && r1 > r2);
+        }
+
+        private void siftUp(int pos) {
+            while (pos > 0) {
+                int parent = (pos - 1) / 2;
+                if (!isWorse(heapRefs[pos], heapSims[pos], heapRefs[parent], heapSims[parent])) {
+                    break;
+                }
+                swap(pos, parent);
+                pos = parent;
+            }
+        }
+
+        private void siftDown(int heapSize) {
+            int pos = 0;
+            while (true) {
+                int worst = pos;
+                for (int child = 2 * pos + 1; child <= 2 * pos + 2 && child < heapSize; child++) {
+                    if (isWorse(heapRefs[child], heapSims[child], heapRefs[worst], heapSims[worst])) {
+                        worst = child;
+                    }
+                }
+                if (worst == pos) {
+                    break;
+                }
+                swap(pos, worst);
+                pos = worst;
+            }
+        }
+
+        private void swap(int i, int j) {
+            int r = heapRefs[i];
+            heapRefs[i] = heapRefs[j];
+            heapRefs[j] = r;
+            double sim = heapSims[i];
+            heapSims[i] = heapSims[j];
+            heapSims[j] = sim;
+        }
+    }
+}